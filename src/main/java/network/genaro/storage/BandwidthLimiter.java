@@ -0,0 +1,91 @@
+package network.genaro.storage;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A token bucket that paces the bytes of transfers to a rate, the rate can be changed at any time.
+ *
+ * Every acquire() reserves the time its bytes take at the rate after the bytes reserved before, and sleeps until
+ * then, so the threads sharing a limiter are paced one after another. An idle limiter saves up GENARO_LIMITER_MAX_BURST
+ * milliseconds of tokens at most, so there is no burst after idle. A limiter may have a parent(the limiter of all the
+ * transfers), the bytes are reserved in both and waited for once, until the slower of them lets them go.
+ *
+ * The transfers acquire their bytes a segment(GENARO_LIMITER_SEGMENT) at a time, and acquire() returns before taking
+ * any lock while neither the limiter nor its parents have a rate.
+ */
+final class BandwidthLimiter {
+    // milliseconds of tokens saved up by an idle limiter
+    static final long GENARO_LIMITER_MAX_BURST = 20;
+    // the bytes a transfer moves between two acquire()
+    static final int GENARO_LIMITER_SEGMENT = 64 * 1024;
+
+    private final BandwidthLimiter parent;
+
+    // bytes per second, 0 means unlimited; written with the lock held, read without it by the fast path
+    private volatile long rate = 0;
+    // the time(System.nanoTime) when the bytes reserved so far are all sent
+    private long nextFreeTime = System.nanoTime();
+
+    BandwidthLimiter(final BandwidthLimiter parent) {
+        this.parent = parent;
+    }
+
+    long getRate() {
+        return rate;
+    }
+
+    /**
+     * @param rate bytes per second, 0 means unlimited
+     */
+    synchronized void setRate(final long rate) {
+        this.rate = Math.max(0, rate);
+        // the bytes reserved at the old rate do not delay the ones at the new rate
+        nextFreeTime = Math.min(nextFreeTime, System.nanoTime());
+    }
+
+    /**
+     * Block until bytes may be transferred, return at once if the thread is interrupted(with the interrupt flag kept).
+     */
+    void acquire(final long bytes) {
+        if (bytes <= 0 || isUnlimited()) {
+            return;
+        }
+
+        // the bytes are reserved in this limiter and its parents at once, then waited for once
+        long waitTime = reserve(bytes, System.nanoTime());
+        if (waitTime > 0) {
+            try {
+                TimeUnit.NANOSECONDS.sleep(waitTime);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    // no limiter up to the root has a rate, read without the locks
+    private boolean isUnlimited() {
+        for (BandwidthLimiter limiter = this; limiter != null; limiter = limiter.parent) {
+            if (limiter.rate > 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // reserve bytes here and in the parents, return the nanoseconds until the slowest of them lets them go
+    private long reserve(final long bytes, final long now) {
+        long waitTime = 0;
+        // a limiter without a rate is passed without its lock
+        if (rate > 0) {
+            synchronized (this) {
+                if (rate > 0) {
+                    nextFreeTime = Math.max(nextFreeTime, now - TimeUnit.MILLISECONDS.toNanos(GENARO_LIMITER_MAX_BURST));
+                    nextFreeTime += bytes * TimeUnit.SECONDS.toNanos(1) / rate;
+                    waitTime = nextFreeTime - now;
+                }
+            }
+        }
+
+        return parent == null ? waitTime : Math.max(waitTime, parent.reserve(bytes, now));
+    }
+}
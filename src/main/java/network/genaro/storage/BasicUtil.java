@@ -3,10 +3,25 @@ package network.genaro.storage;
 import okhttp3.Call;
 import okhttp3.OkHttpClient;
 
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.Random;
 //import java.util.concurrent.Callable;
 //import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeoutException;
+
+import static network.genaro.storage.Parameters.*;
+import static network.genaro.storage.Genaro.genaroStrError;
 
 final class BasicUtil {
     private static Random random = new Random();
@@ -57,6 +72,53 @@ final class BasicUtil {
 //        return f;
 //    }
 
+    // the exception to rethrow for a bridge request that failed with e, CancellationException is kept as is
+    static RuntimeException bridgeFailure(final Exception e) {
+        if (e instanceof CancellationException) {
+            return (CancellationException) e;
+        } else if (e instanceof TimeoutException) {
+            return new GenaroRuntimeException(genaroStrError(GENARO_BRIDGE_TIMEOUT_ERROR));
+        } else if (e instanceof ExecutionException && e.getCause() instanceof GenaroRuntimeException) {
+            return (GenaroRuntimeException) e.getCause();
+        } else {
+            return new GenaroRuntimeException(genaroStrError(GENARO_BRIDGE_REQUEST_ERROR));
+        }
+    }
+
+    // the cause of a failure of a CompletableFuture
+    static Throwable unwrap(final Throwable e) {
+        return (e instanceof CompletionException || e instanceof ExecutionException) && e.getCause() != null ? e.getCause() : e;
+    }
+
+    // read len bytes into buff unless the stream ends first, return the bytes read, -1 if the stream has ended already
+    static int readFully(final InputStream is, final byte[] buff, final int len) throws IOException {
+        int done = 0;
+        while (done < len) {
+            int delta = is.read(buff, done, len - done);
+            if (delta == -1) {
+                break;
+            }
+            done += delta;
+        }
+        return done == 0 && len > 0 ? -1 : done;
+    }
+
+    // write value as json to path through a temp file in the same dir, so that path is never half written
+    static void writeJsonAtomically(final Object value, final String path) throws IOException {
+        File target = new File(path).getAbsoluteFile();
+        File tmp = File.createTempFile(target.getName(), ".tmp", target.getParentFile());
+        try {
+            new ObjectMapper().writeValue(tmp, value);
+            try {
+                Files.move(tmp.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(tmp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            Files.deleteIfExists(tmp.toPath());
+        }
+    }
+
     static void cancelOkHttpCallWithTag(OkHttpClient client, Object tag) {
         for(Call call: client.dispatcher().queuedCalls()) {
             if(call.request().tag().equals(tag)) {
@@ -0,0 +1,157 @@
+package network.genaro.storage;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Date;
+import java.util.concurrent.ThreadLocalRandom;
+
+import android.util.Log;
+
+import okhttp3.Call;
+import okhttp3.Interceptor;
+import okhttp3.Request;
+import okhttp3.Response;
+
+/**
+ * Governs all the requests to bridge made by a Genaro instance and its transfers, as an interceptor of their
+ * OkHttpClients(the requests to farmers pass through untouched).
+ *
+ * At most maxConcurrency bridge requests are in flight, and they are paced to maxRate requests per second. When
+ * bridge answers 429/420, every bridge request waits until the backoff ends: the "Retry-After" of the response if
+ * given, and an exponential backoff with jitter of the consecutive rate errors at least. The rate limited request
+ * is retried GENARO_BRIDGE_MAX_RATE_RETRIES times after the backoff before the error is returned to the caller.
+ */
+final class BridgeGovernor implements Interceptor {
+    private static final String TAG = "BridgeGovernor";
+
+    static final int GENARO_BRIDGE_MAX_CONCURRENCY = 6;
+    // requests per second
+    static final int GENARO_BRIDGE_MAX_RATE = 10;
+    // milliseconds of the backoff after the first rate error, doubled by every consecutive one
+    static final long GENARO_BRIDGE_BACKOFF_BASE = 1000;
+    static final long GENARO_BRIDGE_BACKOFF_MAX = 30000;
+    static final int GENARO_BRIDGE_MAX_RATE_RETRIES = 3;
+    // milliseconds between the checks of cancellation while waiting
+    private static final long POLL_INTERVAL = 100;
+
+    private final Genaro bridge;
+    // paces the requests, a request is taken as one byte
+    private final BandwidthLimiter pacer = new BandwidthLimiter(null);
+
+    private int maxConcurrency = GENARO_BRIDGE_MAX_CONCURRENCY;
+    private int inFlight = 0;
+    // no bridge request is sent before
+    private long backoffUntil = 0;
+    private int rateErrors = 0;
+
+    BridgeGovernor(final Genaro bridge) {
+        this.bridge = bridge;
+        pacer.setRate(GENARO_BRIDGE_MAX_RATE);
+    }
+
+    /**
+     * @param maxConcurrency the max count of bridge requests in flight
+     * @param maxRate the max count of bridge requests per second, 0 means unlimited
+     */
+    synchronized void setLimits(final int maxConcurrency, final int maxRate) {
+        if (maxConcurrency > 0) {
+            this.maxConcurrency = maxConcurrency;
+            notifyAll();
+        }
+        if (maxRate >= 0) {
+            pacer.setRate(maxRate);
+        }
+    }
+
+    @Override
+    public Response intercept(final Chain chain) throws IOException {
+        Request request = chain.request();
+        String bridgeUrl = bridge.getBridgeUrl();
+        if (bridgeUrl == null || !request.url().toString().startsWith(bridgeUrl)) {
+            return chain.proceed(request);
+        }
+
+        for (int i = 0; ; i++) {
+            enter(chain.call());
+            Response response;
+            try {
+                pacer.acquire(1);
+                response = chain.proceed(request);
+            } finally {
+                leave();
+            }
+
+            int code = response.code();
+            if (code != 429 && code != 420) {
+                onAccepted();
+                return response;
+            }
+
+            long delay = onRateLimited(response);
+            if (i == GENARO_BRIDGE_MAX_RATE_RETRIES) {
+                return response;
+            }
+
+            Log.w(TAG, String.format("Bridge rate limited, back off %d ms before retry: %s", delay, request.url().encodedPath()));
+            response.close();
+        }
+    }
+
+    // wait until the backoff ends and a slot is free
+    private synchronized void enter(final Call call) throws IOException {
+        while (true) {
+            if (call.isCanceled()) {
+                throw new IOException("Canceled");
+            }
+
+            long waitTime = backoffUntil - System.currentTimeMillis();
+            if (waitTime <= 0 && inFlight < maxConcurrency) {
+                inFlight++;
+                return;
+            }
+
+            try {
+                wait(waitTime > 0 ? Math.min(waitTime, POLL_INTERVAL) : POLL_INTERVAL);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+        }
+    }
+
+    private synchronized void leave() {
+        inFlight--;
+        notifyAll();
+    }
+
+    private synchronized void onAccepted() {
+        rateErrors = 0;
+    }
+
+    // extend the backoff shared by all the requests, return its milliseconds
+    private synchronized long onRateLimited(final Response response) {
+        long delay = Math.min(GENARO_BRIDGE_BACKOFF_MAX, GENARO_BRIDGE_BACKOFF_BASE << Math.min(rateErrors, 5));
+        rateErrors++;
+        // jitter, so the waiting requests are not sent at the same moment again
+        delay += ThreadLocalRandom.current().nextLong(delay / 4 + 1);
+        delay = Math.max(delay, retryAfter(response));
+
+        backoffUntil = Math.max(backoffUntil, System.currentTimeMillis() + delay);
+        return delay;
+    }
+
+    // milliseconds of the "Retry-After"(seconds or a date) of response, 0 if not given
+    private static long retryAfter(final Response response) {
+        String value = response.header("Retry-After");
+        if (value == null) {
+            return 0;
+        }
+
+        try {
+            return Math.max(0, Long.parseLong(value.trim()) * 1000);
+        } catch (NumberFormatException e) {
+            Date date = response.headers().getDate("Retry-After");
+            return date == null ? 0 : Math.max(0, date.getTime() - System.currentTimeMillis());
+        }
+    }
+}
@@ -0,0 +1,186 @@
+package network.genaro.storage;
+
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Supplier;
+
+import android.util.Log;
+
+import network.genaro.storage.GenaroCallback.ResolveFileCallback;
+import network.genaro.storage.GenaroCallback.StoreFileCallback;
+
+/**
+ * Delivers the callbacks of a transfer on a dedicated serial thread, so app code never runs on the transfer threads.
+ *
+ * The events are delivered in the order they are posted, onProgress is coalesced to at most
+ * GENARO_PROGRESS_UPDATES_PER_SECOND calls per second, and only the first terminal event(onFinish, onFail or
+ * onCancel) is delivered, the pending progress is flushed before it and nothing is delivered after it.
+ */
+final class CallbackDispatcher {
+    private static final String TAG = "CallbackDispatcher";
+
+    static final int GENARO_PROGRESS_UPDATES_PER_SECOND = 10;
+
+    private final ScheduledExecutorService executor;
+    private volatile Thread dispatcherThread;
+
+    // the latest progress not delivered yet
+    private final AtomicReference<Float> pendingProgress = new AtomicReference<>();
+    // polled on every tick if not null
+    private volatile Supplier<Float> progressSource;
+
+    // the following are only accessed by the dispatcher thread
+    private ProgressSink progressSink;
+    private float lastProgress = -1.0f;
+    private boolean isTerminated = false;
+
+    private interface ProgressSink {
+        void onProgress(float progress);
+    }
+
+    CallbackDispatcher() {
+        ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1, runnable -> {
+            Thread thread = new Thread(runnable, TAG);
+            thread.setDaemon(true);
+            dispatcherThread = thread;
+            return thread;
+        });
+        executor.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+        this.executor = executor;
+
+        long interval = 1000 / GENARO_PROGRESS_UPDATES_PER_SECOND;
+        executor.scheduleAtFixedRate(this::tick, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    ResolveFileCallback wrap(final ResolveFileCallback callback) {
+        post(() -> progressSink = callback::onProgress);
+        return new ResolveFileCallback() {
+            @Override
+            public void onBegin() { post(callback::onBegin); }
+            @Override
+            public void onFinish(long fileBytes, byte[] sha256) { terminate(() -> callback.onFinish(fileBytes, sha256)); }
+            @Override
+            public void onFail(String error) { terminate(() -> callback.onFail(error)); }
+            @Override
+            public void onCancel() { terminate(callback::onCancel); }
+            @Override
+            public void onProgress(float progress) { setPendingProgress(progress); }
+        };
+    }
+
+    StoreFileCallback wrap(final StoreFileCallback callback) {
+        post(() -> progressSink = callback::onProgress);
+        return new StoreFileCallback() {
+            @Override
+            public void onBegin(long fileSize) { post(() -> callback.onBegin(fileSize)); }
+            @Override
+            public void onFinish(String fileId, byte[] sha256OfEncrypted) { terminate(() -> callback.onFinish(fileId, sha256OfEncrypted)); }
+            @Override
+            public void onFail(String error) { terminate(() -> callback.onFail(error)); }
+            @Override
+            public void onCancel() { terminate(callback::onCancel); }
+            @Override
+            public void onProgress(float progress) { setPendingProgress(progress); }
+        };
+    }
+
+    /**
+     * Poll the progress from source on every tick instead of being told, null to stop polling.
+     */
+    void setProgressSource(final Supplier<Float> source) {
+        progressSource = source;
+    }
+
+    private void setPendingProgress(final float progress) {
+        pendingProgress.set(progress);
+    }
+
+    private void post(final Runnable event) {
+        try {
+            executor.execute(() -> {
+                if (!isTerminated) {
+                    deliver(event);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // already terminated, drop it
+        }
+    }
+
+    private void terminate(final Runnable event) {
+        post(() -> {
+            progressSource = null;
+            flushProgress();
+            isTerminated = true;
+            try {
+                event.run();
+            } finally {
+                executor.shutdown();
+            }
+        });
+    }
+
+    private void tick() {
+        if (isTerminated) {
+            return;
+        }
+
+        Supplier<Float> source = progressSource;
+        if (source != null) {
+            float progress = source.get();
+            // the progress polled never goes back
+            if (progress > lastProgress) {
+                pendingProgress.compareAndSet(null, progress);
+            }
+        }
+
+        flushProgress();
+    }
+
+    private void flushProgress() {
+        Float progress = pendingProgress.getAndSet(null);
+        if (progress == null || progress == lastProgress || progressSink == null) {
+            return;
+        }
+
+        lastProgress = progress;
+        deliver(() -> progressSink.onProgress(progress));
+    }
+
+    // an exception thrown by app code must not kill the dispatcher thread
+    private void deliver(final Runnable event) {
+        try {
+            event.run();
+        } catch (RuntimeException e) {
+            Log.w(TAG, "Callback threw an exception: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Stop the dispatcher after the posted events are delivered.
+     */
+    void shutdown() {
+        executor.shutdown();
+    }
+
+    /**
+     * Wait until the dispatcher is stopped, i.e. the terminal event(if any) is delivered.
+     */
+    void awaitTermination() {
+        // called by a callback, the events after it can not be delivered before it returns
+        if (Thread.currentThread() == dispatcherThread) {
+            return;
+        }
+
+        try {
+            while (!executor.awaitTermination(1, TimeUnit.SECONDS)) {
+                // wait again
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
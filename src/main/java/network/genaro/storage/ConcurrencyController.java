@@ -0,0 +1,151 @@
+package network.genaro.storage;
+
+import java.util.concurrent.atomic.LongAdder;
+
+import android.util.Log;
+
+/**
+ * Adapts the count of shards transferred at the same time to the link, by additive increase and multiplicative
+ * decrease(AIMD).
+ *
+ * The aggregate throughput of the transfers is measured every GENARO_CONCURRENCY_EPOCH milliseconds. If all the
+ * slots were in use and the throughput has risen since the last epoch, one more slot is opened; if a transfer timed
+ * out or the throughput collapsed, the slots are halved(once an epoch at most). Otherwise the limit is kept.
+ *
+ * The bytes are counted without the lock, the epoch is evaluated when a slot is released and on every tick() of the
+ * watchdog of the transfer.
+ */
+final class ConcurrencyController {
+    private static final String TAG = "ConcurrencyController";
+
+    static final int GENARO_CONCURRENCY_MIN = 1;
+    static final int GENARO_CONCURRENCY_INITIAL = 4;
+    static final int GENARO_CONCURRENCY_MAX = 16;
+    // milliseconds of an epoch of measurement
+    static final long GENARO_CONCURRENCY_EPOCH = 2000;
+    // the throughput is regarded as rising if it is GENARO_CONCURRENCY_RISE_RATIO times of the last epoch at least
+    static final double GENARO_CONCURRENCY_RISE_RATIO = 1.05;
+    // the throughput is regarded as collapsed if it is below GENARO_CONCURRENCY_COLLAPSE_RATIO of the last epoch
+    static final double GENARO_CONCURRENCY_COLLAPSE_RATIO = 0.5;
+
+    private final int maxLimit;
+    private int limit;
+    private int inFlight = 0;
+    private boolean isShutdown = false;
+
+    private long epochStart = System.currentTimeMillis();
+    private final LongAdder epochBytes = new LongAdder();
+    // whether all the slots were in use during the epoch
+    private boolean isSaturated = false;
+    // bytes per millisecond of the last epoch, 0 if unknown
+    private double lastThroughput = 0;
+    private long lastDecrease = 0;
+
+    ConcurrencyController() {
+        this(GENARO_CONCURRENCY_INITIAL, GENARO_CONCURRENCY_MAX);
+    }
+
+    ConcurrencyController(final int initialLimit, final int maxLimit) {
+        this.maxLimit = Math.max(GENARO_CONCURRENCY_MIN, maxLimit);
+        this.limit = Math.max(GENARO_CONCURRENCY_MIN, Math.min(initialLimit, this.maxLimit));
+    }
+
+    synchronized int getLimit() {
+        return limit;
+    }
+
+    /**
+     * Block until a slot is free.
+     *
+     * @return false if shutdown(or interrupted), the slot is not taken then and release() must not be called
+     */
+    synchronized boolean acquire() {
+        while (!isShutdown && inFlight >= limit) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+
+        if (isShutdown) {
+            return false;
+        }
+
+        inFlight++;
+        if (inFlight >= limit) {
+            isSaturated = true;
+        }
+        return true;
+    }
+
+    synchronized void release() {
+        inFlight--;
+        evaluate(System.currentTimeMillis());
+        notifyAll();
+    }
+
+    // a transfer timed out, the limit is decreased
+    synchronized void timedOut() {
+        decrease(System.currentTimeMillis(), "A transfer timed out");
+    }
+
+    void transferred(final long delta) {
+        epochBytes.add(delta);
+    }
+
+    // evaluate the epoch if it is over, so that it is measured while no slot is released
+    synchronized void tick() {
+        evaluate(System.currentTimeMillis());
+    }
+
+    // wake up and fail the acquiring threads
+    synchronized void shutdown() {
+        isShutdown = true;
+        notifyAll();
+    }
+
+    private void evaluate(final long now) {
+        long elapsed = now - epochStart;
+        if (elapsed < GENARO_CONCURRENCY_EPOCH) {
+            return;
+        }
+
+        double throughput = epochBytes.sum() * 1.0 / elapsed;
+        // a drop while the slots are not all in use is not caused by the link
+        if (isSaturated && lastThroughput > 0 && throughput < lastThroughput * GENARO_CONCURRENCY_COLLAPSE_RATIO) {
+            decrease(now, "Throughput collapsed");
+            return;
+        }
+
+        if (isSaturated && limit < maxLimit && (lastThroughput == 0 || throughput >= lastThroughput * GENARO_CONCURRENCY_RISE_RATIO)) {
+            limit++;
+            Log.i(TAG, String.format("Throughput is rising, transfer %d shards at the same time", limit));
+            notifyAll();
+        }
+
+        lastThroughput = throughput;
+        startEpoch(now);
+    }
+
+    private void decrease(final long now, final String reason) {
+        if (now - lastDecrease < GENARO_CONCURRENCY_EPOCH) {
+            return;
+        }
+
+        lastDecrease = now;
+        limit = Math.max(GENARO_CONCURRENCY_MIN, limit / 2);
+        Log.i(TAG, String.format("%s, transfer %d shards at the same time", reason, limit));
+
+        // measure again from the new limit
+        lastThroughput = 0;
+        startEpoch(now);
+    }
+
+    private void startEpoch(final long now) {
+        epochStart = now;
+        epochBytes.reset();
+        isSaturated = inFlight >= limit;
+    }
+}
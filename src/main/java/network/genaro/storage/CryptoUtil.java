@@ -52,7 +52,7 @@ final class CryptoUtil {
     private static final int RIPEMD160_DIGEST_SIZE = 20;
     private static final int AES_GCM_DIGEST_LENGTH = 16;
     private static final int AES_GCM_IV_LENGTH = 32;
-//    static final int AES_BLOCK_SIZE = 16;
+    static final int AES_BLOCK_SIZE = 16;
 
     static final int BLOCK_BYTES = 8 * 512;
 
@@ -90,6 +90,26 @@ final class CryptoUtil {
         return sha256Md.digest();
     }
 
+    // the SHA-256 of size bytes of fc from position
+    static byte[] sha256OfRange(final FileChannel fc, final long position, final long size) throws IOException, NoSuchAlgorithmException {
+        MessageDigest sha256Md = MessageDigest.getInstance("SHA-256");
+        ByteBuffer readBuffer = ByteBuffer.allocate(BLOCK_BYTES);
+
+        long done = 0;
+        while (done < size) {
+            readBuffer.clear();
+            readBuffer.limit((int) Math.min(BLOCK_BYTES, size - done));
+            int readBytes = fc.read(readBuffer, position + done);
+            if (readBytes == -1) {
+                throw new IOException("Unexpected end of file");
+            }
+            sha256Md.update(readBuffer.array(), 0, readBytes);
+            done += readBytes;
+        }
+
+        return sha256Md.digest();
+    }
+
     static byte[] sha512(final byte[] input) throws NoSuchAlgorithmException {
         return MessageDigest.getInstance("SHA-512").digest(input);
     }
@@ -262,22 +282,20 @@ final class CryptoUtil {
         return Hex.toHexString(sig);
     }
 
-//    int increment_ctr_aes_iv(byte[] iv, long bytes_position)
-//    {
-//        if (bytes_position % AES_BLOCK_SIZE != 0) {
-//            return 1;
-//        }
-//
-//        long times = bytes_position / AES_BLOCK_SIZE;
-//
-//        while (times > 0) {
-//            int i = AES_BLOCK_SIZE - 1;
-//            if (++(iv)[i] == 0) {
-//                while (i > 0 && ++(iv)[--i] == 0);
-//            }
-//            times--;
-//        }
-//
-//        return 0;
-//    }
+    // the ctr of AES-256-CTR at bytesPosition of the stream, bytesPosition must be a multiple of AES_BLOCK_SIZE
+    static byte[] incrementCtrAesIv(final byte[] iv, final long bytesPosition) {
+        if (bytesPosition % AES_BLOCK_SIZE != 0) {
+            throw new IllegalArgumentException("Position is not aligned to the AES block size");
+        }
+
+        BigInteger ctr = new BigInteger(1, iv).add(BigInteger.valueOf(bytesPosition / AES_BLOCK_SIZE))
+                .mod(BigInteger.ONE.shiftLeft(8 * AES_BLOCK_SIZE));
+        byte[] ctrBytes = ctr.toByteArray();
+
+        // strip the sign byte or pad the leading zeros
+        byte[] newIv = new byte[AES_BLOCK_SIZE];
+        int length = Math.min(ctrBytes.length, AES_BLOCK_SIZE);
+        System.arraycopy(ctrBytes, ctrBytes.length - length, newIv, AES_BLOCK_SIZE - length, length);
+        return newIv;
+    }
 }
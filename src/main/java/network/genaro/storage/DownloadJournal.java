@@ -0,0 +1,208 @@
+package network.genaro.storage;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Map;
+import java.util.TreeMap;
+
+import android.util.Log;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * The journal of a download, saved in a sidecar file next to the .genarotemp file, so that an interrupted download
+ * can be resumed by Genaro.resumeDownload.
+ *
+ * It records the shards that have been written into the temp file and verified, by their hash and size, and the
+ * total count of pointers once known. A shard in the journal is hashed again before it is trusted. The file is
+ * rewritten atomically on every change.
+ */
+@JsonIgnoreProperties(ignoreUnknown = true)
+final class DownloadJournal {
+    private static final String TAG = "DownloadJournal";
+
+    private String bucketId;
+    private String fileId;
+    private long shardSize;
+    // -1 if unknown
+    private int totalPointers = -1;
+    // shard index -> entry
+    private Map<Integer, ShardEntry> shards = new TreeMap<>();
+
+    @JsonIgnore
+    private String journalPath;
+    // not saved again once deleted
+    @JsonIgnore
+    private boolean isDeleted = false;
+
+    @JsonIgnoreProperties(ignoreUnknown = true)
+    static final class ShardEntry {
+        private String hash;
+        private long size;
+        private boolean parity;
+
+        public String getHash() {
+            return hash;
+        }
+
+        void setHash(String hash) {
+            this.hash = hash;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        void setSize(long size) {
+            this.size = size;
+        }
+
+        public boolean isParity() {
+            return parity;
+        }
+
+        void setParity(boolean parity) {
+            this.parity = parity;
+        }
+    }
+
+    DownloadJournal() { }
+
+    DownloadJournal(final String journalPath, final String bucketId, final String fileId) {
+        this.journalPath = journalPath;
+        this.bucketId = bucketId;
+        this.fileId = fileId;
+    }
+
+    /**
+     * @return the journal saved in journalPath, null if not exists or unreadable
+     */
+    static DownloadJournal load(final String journalPath) {
+        Path path = Paths.get(journalPath);
+        if (!Files.exists(path)) {
+            return null;
+        }
+
+        try {
+            DownloadJournal journal = new ObjectMapper().readValue(path.toFile(), DownloadJournal.class);
+            journal.journalPath = journalPath;
+            return journal;
+        } catch (IOException e) {
+            Log.w(TAG, "Load download journal failed: " + e.getMessage());
+            return null;
+        }
+    }
+
+    // whether the journal is of the same file
+    boolean isSameDownload(final String bucketId, final String fileId) {
+        return bucketId.equals(this.bucketId) && fileId.equals(this.fileId);
+    }
+
+    public String getBucketId() {
+        return bucketId;
+    }
+
+    void setBucketId(String bucketId) {
+        this.bucketId = bucketId;
+    }
+
+    public String getFileId() {
+        return fileId;
+    }
+
+    void setFileId(String fileId) {
+        this.fileId = fileId;
+    }
+
+    public synchronized long getShardSize() {
+        return shardSize;
+    }
+
+    synchronized void setShardSize(long shardSize) {
+        this.shardSize = shardSize;
+    }
+
+    public synchronized int getTotalPointers() {
+        return totalPointers;
+    }
+
+    synchronized void setTotalPointers(int totalPointers) {
+        this.totalPointers = totalPointers;
+    }
+
+    public synchronized Map<Integer, ShardEntry> getShards() {
+        return new TreeMap<>(shards);
+    }
+
+    synchronized void setShards(Map<Integer, ShardEntry> shards) {
+        this.shards = new TreeMap<>(shards);
+    }
+
+    synchronized boolean isEmpty() {
+        return shards.isEmpty();
+    }
+
+    // whether the shard of pointer has been verified
+    synchronized boolean isVerified(final Pointer pointer) {
+        ShardEntry entry = shards.get(pointer.getIndex());
+        return entry != null && entry.hash != null && entry.hash.equals(pointer.getHash()) &&
+                entry.size == pointer.getSize() && entry.parity == pointer.isParity();
+    }
+
+    /**
+     * @return the pointers made up from the verified shards(without farmers), index -> pointer
+     */
+    synchronized Map<Integer, Pointer> verifiedPointers() {
+        Map<Integer, Pointer> pointers = new TreeMap<>();
+        shards.forEach((index, entry) -> {
+            Pointer pointer = new Pointer();
+            pointer.setIndex(index);
+            pointer.setHash(entry.hash);
+            pointer.setSize(entry.size);
+            pointer.setParity(entry.parity);
+            pointer.setReport(new GenaroExchangeReport());
+            pointers.put(index, pointer);
+        });
+        return pointers;
+    }
+
+    synchronized void shardVerified(final Pointer pointer) {
+        ShardEntry entry = new ShardEntry();
+        entry.hash = pointer.getHash();
+        entry.size = pointer.getSize();
+        entry.parity = pointer.isParity();
+        shards.put(pointer.getIndex(), entry);
+        save();
+    }
+
+    synchronized void forget(final int index) {
+        if (shards.remove(index) != null) {
+            save();
+        }
+    }
+
+    synchronized void save() {
+        if (isDeleted) {
+            return;
+        }
+
+        try {
+            BasicUtil.writeJsonAtomically(this, journalPath);
+        } catch (IOException e) {
+            Log.w(TAG, "Save download journal failed: " + e.getMessage());
+        }
+    }
+
+    synchronized void delete() {
+        isDeleted = true;
+        try {
+            Files.deleteIfExists(Paths.get(journalPath));
+        } catch (IOException e) {
+            // do nothing
+        }
+    }
+}
@@ -5,33 +5,42 @@ import java.io.InputStream;
 import java.io.BufferedInputStream;
 import java.net.InetSocketAddress;
 import java.net.Proxy;
+import java.net.SocketTimeoutException;
 import java.nio.ByteBuffer;
-import java.nio.MappedByteBuffer;
-import java.nio.channels.Channels;
 import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
 import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.nio.file.StandardOpenOption;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.atomic.AtomicBoolean;
-import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.CancellationException;
 import java.util.concurrent.TimeoutException;
 
 import android.util.Log;
 
-import javax.crypto.CipherInputStream;
-import javax.crypto.spec.IvParameterSpec;
 import javax.crypto.spec.SecretKeySpec;
-import static javax.crypto.Cipher.DECRYPT_MODE;
 
 import com.fasterxml.jackson.core.type.TypeReference;
 import com.fasterxml.jackson.databind.JsonNode;
@@ -48,12 +57,11 @@ import okhttp3.RequestBody;
 import org.spongycastle.util.encoders.Hex;
 import org.xbill.DNS.utils.base16;
 
-import com.backblaze.erasure.OutputInputByteTableCodingLoop;
-import com.backblaze.erasure.ReedSolomon;
-
+import network.genaro.storage.GenaroCallback.ResolveBytesCallback;
 import network.genaro.storage.GenaroCallback.ResolveFileCallback;
 import static network.genaro.storage.Parameters.*;
 import static network.genaro.storage.Genaro.genaroStrError;
+import network.genaro.storage.Pointer.PointerStatus;
 import static network.genaro.storage.Pointer.PointerStatus.*;
 
 public final class Downloader implements Runnable {
@@ -64,6 +72,21 @@ public final class Downloader implements Runnable {
     static final int GENARO_MAX_REPORT_TRIES = 2;
     static final int GENARO_MAX_REQUEST_POINTERS = 3;
     static final int GENARO_MAX_GET_FILE_INFO = 3;
+    // a data shard is regarded as stalled if no data is received for GENARO_SHARD_STALL_TIMEOUT seconds
+    static final int GENARO_SHARD_STALL_TIMEOUT = 15;
+    // a data shard is hedged if it has been downloading for GENARO_HEDGE_MIN_ELAPSED seconds at least, and its throughput
+    // is below GENARO_HEDGE_SLOW_RATIO of the median throughput of GENARO_HEDGE_MIN_PEERS peers at least, or its elapsed time
+    // is above GENARO_HEDGE_DEADLINE_FACTOR times of the median download time of the finished data shards
+    static final int GENARO_HEDGE_MIN_ELAPSED = 5;
+    static final int GENARO_HEDGE_MIN_PEERS = 3;
+    static final double GENARO_HEDGE_SLOW_RATIO = 0.5;
+    static final int GENARO_HEDGE_DEADLINE_FACTOR = 3;
+    // a shard is split into byte ranges of GENARO_RANGE_MIN_SIZE bytes at least if range connections are enabled
+    static final long GENARO_RANGE_MIN_SIZE = 4L * 1024 * 1024;
+    // the download to a stream keeps about GENARO_STREAM_BUFFER_SIZE bytes of shards not delivered, and
+    // GENARO_STREAM_MIN_WINDOW shards at least
+    static final long GENARO_STREAM_BUFFER_SIZE = 64L * 1024 * 1024;
+    static final int GENARO_STREAM_MIN_WINDOW = 2;
 
     private String path;
     private String tempPath;
@@ -72,32 +95,61 @@ public final class Downloader implements Runnable {
     private String fileId;
     private boolean overwrite;
 
-    // the total downloaded bytes
-    private AtomicLong downloadedBytes = new AtomicLong();
+    // the downloaded bytes, updated by the I/O threads and polled by dispatcher
+    private final TransferProgress progress = new TransferProgress();
     private long totalBytes;
     private long fileSize;
 
-    // increased uploaded bytes since last onProgress Call
-    private AtomicLong deltaDownloaded = new AtomicLong();
-
-    private AtomicBoolean stopOnProgressCall = new AtomicBoolean(false);
-
     private GenaroFile file;
     private List<Pointer> pointers;
 
+    // whether all the pages of pointers have arrived, the totals(totalPointers, totalBytes...) are known only after that
+    private volatile boolean isPointersComplete = false;
+    // the pointers arrived before the shard size is known, or before they can be scheduled
+    private final List<Pointer> pendingPointers = new ArrayList<>();
+    // whether the file info has arrived and the assembler is ready, guarded by pendingPointers
+    private boolean isSchedulable = false;
+    // the count of pointers whose download is not finished
+    private final AtomicInteger runningShards = new AtomicInteger();
+
     private long shardSize;
     private int totalPointers;
     private int totalDataPointers;
     private int totalParityPointers;
 
     private FileChannel downFileChannel;
+    // the destination of the download into memory(resolveBytes), null if downloaded into a file
+    private final MemoryChannel memory;
+    // the destination of the download to a stream(resolveStream), null otherwise
+    private final WritableByteChannel sink;
+    // delivers the data shards to sink in file order
+    private ShardStreamer streamer;
+    // the data shards of the download to a stream, each is kept in memory until it is delivered
+    private final Map<Integer, MemoryChannel> streamShards = new ConcurrentHashMap<>();
+    // the data pointers of the download to a stream not started yet, the lowest index first
+    private final PriorityQueue<Pointer> streamQueue = new PriorityQueue<>(Comparator.comparingInt(Pointer::getIndex));
+    // index -> the bytes of the data shard of the download to a stream reserved from the memory budget
+    private final Map<Integer, Long> streamReserved = new ConcurrentHashMap<>();
+    // whether to resume from the journal of an interrupted download
+    private boolean isResume = false;
+    // the verified shards in the temp file, kept with the temp file if the download fails
+    private DownloadJournal journal;
+    // whether the file is committed to path
+    private boolean isFinished = false;
+    // decrypts the verified data shards into the destination
+    private ShardAssembler assembler;
 
     private CompletableFuture<GenaroFile> futureGetFileInfo;
+    // the file info requested while queued, used instead of requesting it again
+    private volatile GenaroFile prefetchedFileInfo;
     private CompletableFuture<List<Pointer>> futureGetPointers;
-    private CompletableFuture<Void> futureAllFromRequestShard;
+    // completes when all the started shard downloads are finished
+    private final CompletableFuture<Void> futureAllFromRequestShard = new CompletableFuture<>();
 
     // the CompletableFuture that runs this Downloader
     private CompletableFuture<Void> futureBelongsTo;
+    // the place of the download in the transfer manager, null if run directly
+    private TransferManager.Ticket ticket;
 
     // whether cancel() is called
     private boolean isCanceled = false;
@@ -106,20 +158,104 @@ public final class Downloader implements Runnable {
 
     private ResolveFileCallback resolveFileCallback;
 
-    // not try to download from these farmers
-    private String excludedFarmerIds;
+    // the farmers failed in this download, not try to download from them
+    private final Set<String> excludedFarmerIds = ConcurrentHashMap.newKeySet();
+    // the statistics of farmers shared by all the transfers
+    private final FarmerRegistry farmerRegistry = FarmerRegistry.getInstance();
+    // limits the bandwidth of this download, and of all the downloads by its parent
+    private final BandwidthLimiter limiter;
+    // adapts the count of the shards downloaded at the same time to the link, hedges are not counted
+    private final ConcurrencyController concurrency = new ConcurrencyController();
+    // ranks the mirrors of the shards, null if the fast mirrors are not preferred
+    private MirrorSelector mirrorSelector;
 
     // whether the shard is non-missing
-    private boolean[] shardsPresent;
+    private final BitSet shardsPresent = new BitSet();
 
     // whether all data shards(ignoring parity shards) are present
     private boolean isDataShardsAllPresent = false;
 
+    // if rs, the parity pointers not started yet, they are downloaded only when some data shards are in trouble
+    private final Deque<Pointer> parityReserve = new ArrayDeque<>();
+    // the count of parity shards wanted but not started yet
+    private int parityWanted = 0;
+    // the indexes of the data shards that parity shards have been wanted for
+    private final Set<Integer> compensatedShards = new HashSet<>();
+    // the data pointers being downloaded, checked by watchdog
+    private final Set<Pointer> activeDataPointers = ConcurrentHashMap.newKeySet();
+    // the downloaded size of activeDataPointers, when it changed last time and when it is seen first time, only accessed by watchdog
+    private final Map<Pointer, long[]> lastActivities = new HashMap<>();
+    // the size and the download time(in milliseconds) of the finished data shards
+    private final List<long[]> finishedTransfers = new ArrayList<>();
+    // cancel the calls of requestShard in flight
+    private final Map<Pointer, Runnable> shardCancels = new ConcurrentHashMap<>();
+    // the hedges of the slow data shards, index -> hedge
+    private final Map<Integer, Hedge> hedges = new ConcurrentHashMap<>();
+
+    // a second request of a slow data shard from another farmer, the first finished one wins
+    private static final class Hedge {
+        final Pointer primary;
+        final CompletableFuture<Boolean> result = new CompletableFuture<>();
+        // completes when the primary has stopped writing into the region of the shard
+        final CompletableFuture<Void> primaryStopped = new CompletableFuture<>();
+        volatile Pointer pointer;
+
+        private boolean isStarted = false;
+        private boolean isCanceled = false;
+        // the first source verified takes the shard, null if none yet
+        private Pointer winner = null;
+
+        Hedge(final Pointer primary) {
+            this.primary = primary;
+        }
+
+        synchronized boolean start() {
+            isStarted = !isCanceled;
+            return isStarted;
+        }
+
+        synchronized void cancel() {
+            isCanceled = true;
+        }
+
+        synchronized boolean isCanceled() {
+            return isCanceled;
+        }
+
+        // return whether the verified source takes the shard
+        synchronized boolean claim(final Pointer source) {
+            if (winner == null) {
+                winner = source;
+            }
+            return winner == source;
+        }
+
+        // the primary failed, no need to wait for a hedge that has not started
+        synchronized boolean abandonIfNotStarted() {
+            if (!isStarted) {
+                isCanceled = true;
+            }
+            return isCanceled;
+        }
+    }
+
     // CachedThreadPool takes up too much memory，and it will cause memory overflow when high concurrency
     // private static final ExecutorService uploaderExecutor = Executors.newCachedThreadPool();
 
     // for CPU bound application，set the thread pool size to N+1 is suggested; for I/O bound application, set the thread pool size to 2N+1 is suggested
-    private final ExecutorService downloaderExecutor = Executors.newFixedThreadPool(2 * Runtime.getRuntime().availableProcessors() + 1);
+    // the shards in flight are limited by concurrency, the pool is large enough for its maximum
+    private final ExecutorService downloaderExecutor = Executors.newFixedThreadPool(Math.max(2 * Runtime.getRuntime().availableProcessors() + 1,
+            ConcurrencyController.GENARO_CONCURRENCY_MAX));
+
+    // delivers the callbacks, so that the I/O threads never call app code
+    private final CallbackDispatcher dispatcher = new CallbackDispatcher();
+
+    // finds the stalled shards
+    private final ScheduledExecutorService watchdog = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "DownloaderWatchdog");
+        thread.setDaemon(true);
+        return thread;
+    });
 
     private final OkHttpClient downHttpClient;
 
@@ -130,11 +266,37 @@ public final class Downloader implements Runnable {
 
     public Downloader(final Genaro bridge, final String bucketId, final String fileId, final String filePath, final boolean overwrite,
                       final boolean isDecrypt, final String keyStr, final String ctrStr, final ResolveFileCallback resolveFileCallback) throws GenaroException {
-        if (bridge == null || bucketId == null || fileId == null || filePath == null || resolveFileCallback == null) {
+        this(bridge, bucketId, fileId, filePath, null, null, overwrite, isDecrypt, keyStr, ctrStr, resolveFileCallback);
+    }
+
+    // download to sink in file order, sink is not closed
+    public Downloader(final Genaro bridge, final String bucketId, final String fileId, final WritableByteChannel sink, final boolean isDecrypt,
+                      final String keyStr, final String ctrStr, final ResolveFileCallback resolveFileCallback) throws GenaroException {
+        this(bridge, bucketId, fileId, null, null, sink, true, isDecrypt, keyStr, ctrStr, resolveFileCallback);
+    }
+
+    // download into memory without any temp file
+    public Downloader(final Genaro bridge, final String bucketId, final String fileId, final boolean isDecrypt, final String keyStr,
+                      final String ctrStr, final ResolveBytesCallback resolveBytesCallback) throws GenaroException {
+        this(bridge, bucketId, fileId, new MemoryChannel(), isDecrypt, keyStr, ctrStr, resolveBytesCallback);
+    }
+
+    private Downloader(final Genaro bridge, final String bucketId, final String fileId, final MemoryChannel memory, final boolean isDecrypt,
+                       final String keyStr, final String ctrStr, final ResolveBytesCallback resolveBytesCallback) throws GenaroException {
+        this(bridge, bucketId, fileId, null, memory, null, true, isDecrypt, keyStr, ctrStr, toFileCallback(resolveBytesCallback, memory));
+    }
+
+    private Downloader(final Genaro bridge, final String bucketId, final String fileId, final String filePath, final MemoryChannel memory,
+                       final WritableByteChannel sink, final boolean overwrite, final boolean isDecrypt, final String keyStr, final String ctrStr,
+                       final ResolveFileCallback resolveFileCallback) throws GenaroException {
+        if (bridge == null || bucketId == null || fileId == null || (filePath == null && memory == null && sink == null) || resolveFileCallback == null) {
             throw new GenaroException("Illegal arguments");
         }
 
         this.bridge = bridge;
+        this.memory = memory;
+        this.sink = sink;
+        this.limiter = new BandwidthLimiter(bridge.getDownloadLimiter());
         this.fileId = fileId;
         this.bucketId = bucketId;
         this.path = filePath;
@@ -142,13 +304,14 @@ public final class Downloader implements Runnable {
         this.keyStr = keyStr;
         this.ctrStr = ctrStr;
         this.isDecrypt = isDecrypt;
-        this.tempPath = filePath + ".genarotemp";
-        this.resolveFileCallback = resolveFileCallback;
+        this.tempPath = filePath == null ? null : filePath + ".genarotemp";
+        this.resolveFileCallback = dispatcher.wrap(resolveFileCallback);
 
         OkHttpClient.Builder builder = new OkHttpClient.Builder()
                 .connectTimeout(GENARO_OKHTTP_CONNECT_TIMEOUT, TimeUnit.SECONDS)
                 .writeTimeout(GENARO_OKHTTP_WRITE_TIMEOUT, TimeUnit.SECONDS)
-                .readTimeout(GENARO_OKHTTP_READ_TIMEOUT, TimeUnit.SECONDS);
+                .readTimeout(GENARO_OKHTTP_READ_TIMEOUT, TimeUnit.SECONDS)
+                .addInterceptor(bridge.getBridgeGovernor());
 
         // set proxy server
         String proxyAddr = bridge.getProxyAddr();
@@ -165,6 +328,26 @@ public final class Downloader implements Runnable {
         this(bridge, bucketId, fileId, path, overwrite, isDecrypt, keyStr, ctrStr, new ResolveFileCallback() {});
     }
 
+    // the data is taken from memory on finish
+    private static ResolveFileCallback toFileCallback(final ResolveBytesCallback callback, final MemoryChannel memory) {
+        if (callback == null) {
+            return null;
+        }
+
+        return new ResolveFileCallback() {
+            @Override
+            public void onBegin() { callback.onBegin(); }
+            @Override
+            public void onFinish(long fileBytes, byte[] sha256) { callback.onFinish(memory.toByteArray(), sha256); }
+            @Override
+            public void onFail(String error) { callback.onFail(error); }
+            @Override
+            public void onCancel() { callback.onCancel(); }
+            @Override
+            public void onProgress(float progress) { callback.onProgress(progress); }
+        };
+    }
+
     public List<Pointer> getPointers() {
         return pointers;
     }
@@ -189,31 +372,65 @@ public final class Downloader implements Runnable {
         this.futureBelongsTo = futureBelongsTo;
     }
 
+    void setTicket(final TransferManager.Ticket ticket) {
+        this.ticket = ticket;
+        this.futureBelongsTo = ticket.getFuture();
+    }
+
+    // the download of higher priority is started first(default 0), takes effect only while it is queued
+    public void setPriority(final int priority) {
+        if (ticket != null) {
+            ticket.setPriority(priority);
+        }
+    }
+
     boolean isCanceled() {
         return isCanceled;
     }
 
+    void setResume(final boolean isResume) {
+        this.isResume = isResume;
+    }
+
+    public long getRateLimit() {
+        return limiter.getRate();
+    }
+
+    // bytes per second of this download, 0 means unlimited, takes effect at once
+    public void setRateLimit(final long bytesPerSecond) {
+        limiter.setRate(bytesPerSecond);
+    }
+
     private final class RequestShardCallbackFuture extends CompletableFuture<Response> implements Callback {
-        RequestShardCallbackFuture(Downloader downloader, Pointer pointer) {
+        RequestShardCallbackFuture(Downloader downloader, Pointer pointer, FileChannel channel, long position) {
             this.downloader = downloader;
             this.pointer = pointer;
+            this.channel = channel;
+            this.position = position;
         }
 
         private Downloader downloader;
         private Pointer pointer;
-        private static final int SEGMENT_SIZE = 2 * 1024;
+        // where to write the shard
+        private FileChannel channel;
+        private long position;
+        // when the response arrives, 0 if not yet
+        private volatile long responseTime;
+        // the shard is read, paced and written a segment at a time
+        private static final int SEGMENT_SIZE = BandwidthLimiter.GENARO_LIMITER_SEGMENT;
 
         private void fail(Response response) {
             if (response != null) {
                 response.close();
             }
             Log.w(TAG, String.format("Download Pointer %d failed", pointer.getIndex()));
-            downloadedBytes.addAndGet(-pointer.getDownloadedSize());
+            progress.shardFailed(pointer.getDownloadedSize());
             pointer.setDownloadedSize(0);
         }
 
         @Override
         public void onResponse(Call call, Response response) {
+            responseTime = System.currentTimeMillis();
             int code = response.code();
 
             int errorStatus = 0;
@@ -244,69 +461,15 @@ public final class Downloader implements Runnable {
 
             try (InputStream is = response.body().byteStream();
                  BufferedInputStream bis = new BufferedInputStream(is)) {
-                while ((delta = bis.read(buff)) != -1) {
+                while ((delta = BasicUtil.readFully(bis, buff, buff.length)) != -1) {
+                    limiter.acquire(delta);
                     downloadedMd.update(buff, 0, delta);
 
-                    downFileChannel.write(ByteBuffer.wrap(buff, 0, delta), shardSize * pointer.getIndex() + pointer.getDownloadedSize());
+                    channel.write(ByteBuffer.wrap(buff, 0, delta), position + pointer.getDownloadedSize());
                     pointer.setDownloadedSize(pointer.getDownloadedSize() + delta);
 
-                    downloadedBytes.addAndGet(delta);
-                    deltaDownloaded.addAndGet(delta);
-
-                    // calculate the download progress
-                    if (!stopOnProgressCall.get() && deltaDownloaded.floatValue() / totalBytes >= 0.001f) {  // call onProgress every 0.1%
-                        float progress;
-
-                        // if rs, we will not wait for all the shards are downloaded, just download the number of "totalDataPointers",
-                        // and be aware of that the last data shard is smaller than or equal to other shards.
-                        if (file.isRs()) {
-                            List<Pointer> pointers = downloader.getPointers();
-                            Pointer lastDataPointer = pointers.get(totalDataPointers - 1);
-                            int totalDataPointers = downloader.getTotalDataPointers();
-
-                            // it will not download all shards
-                            long fakeDownBytes = pointers.stream()
-                                    .filter(pointer -> pointer.getIndex() != totalDataPointers - 1)
-                                    .sorted((o1, o2) -> o2.getDownloadedSize() > o1.getDownloadedSize() ? 1 : -1)
-                                    .limit(totalDataPointers - 1)
-                                    .mapToLong(pointer -> pointer.getDownloadedSize())
-                                    .sum();
-                            fakeDownBytes += lastDataPointer.getDownloadedSize();
-
-                            long fakeTotalBytes;
-
-                            // the last data shard is sucessfully downloaded
-                            if (!shardsPresent[totalDataPointers - 1]) {
-                                fakeTotalBytes = shardSize * totalDataPointers;
-                            } else {
-                                fakeTotalBytes = fileSize;
-                            }
-
-                            if (fakeDownBytes >= fakeTotalBytes) {
-                                stopOnProgressCall.set(true);
-                            }
-
-                            progress = fakeDownBytes * 1.0f / fakeTotalBytes;
-                        } else {
-                            long downBytes = downloadedBytes.get();
-
-                            // we need to decrypt the file after all data are downloaded, so let the progress to be 99.9xx%
-                            if (downBytes >= totalBytes) {
-                                downBytes = totalBytes - 1;
-                                stopOnProgressCall.set(true);
-                            }
-
-                            progress = downBytes * 1.0f / totalBytes;
-                        }
-
-                        // after the whole data are downloaded, Reed-Solomon algorithm and decryption may take a long time
-                        if (progress >= 0.999f) {
-                            progress = 0.999f;
-                        }
-
-                        resolveFileCallback.onProgress(progress);
-                        deltaDownloaded.set(0);
-                    }
+                    progress.transferred(delta);
+                    concurrency.transferred(delta);
 
                     if (downloader.isCanceled()) {
                         fail(response);
@@ -326,7 +489,6 @@ public final class Downloader implements Runnable {
                     return;
                 }
 
-                shardsPresent[pointer.getIndex()] = true;
                 pointer.getReport().setCode(GENARO_REPORT_SUCCESS);
                 pointer.getReport().setMessage(GENARO_REPORT_SHARD_DOWNLOADED);
 
@@ -335,6 +497,8 @@ public final class Downloader implements Runnable {
                 fail(response);
                 if (downloader.isCanceled()) {
                     super.completeExceptionally(new GenaroRuntimeException(genaroStrError(GENARO_TRANSFER_CANCELED)));
+                } else if (e instanceof SocketTimeoutException) {
+                    super.completeExceptionally(new GenaroRuntimeException(genaroStrError(GENARO_FARMER_TIMEOUT_ERROR)));
                 } else {
                     super.completeExceptionally(new GenaroRuntimeException(genaroStrError(GENARO_FARMER_REQUEST_ERROR)));
                 }
@@ -351,13 +515,168 @@ public final class Downloader implements Runnable {
         }
     }
 
-    private Pointer requestShard(final Pointer pointer) {
+    // completes when the shard is done, it waits for the hedge of the shard without blocking
+    private CompletableFuture<Pointer> requestShard(final Pointer pointer) {
+        // the shard verified by an interrupted download is not downloaded again
+        if (pointer.getRequestCount() == 0 && !pointer.isReplaced() && restoreShard(pointer)) {
+            return CompletableFuture.completedFuture(pointer);
+        }
+
         if (pointer.getStatus() == POINTER_ERROR_REPORTED || pointer.getStatus() == POINTER_MISSING) {
-            return pointer;
+            return CompletableFuture.completedFuture(pointer);
+        }
+
+        pointer.setRequestCount(pointer.getRequestCount() + 1);
+
+        if (isCanceled) {
+            throw new GenaroRuntimeException(genaroStrError(GENARO_TRANSFER_CANCELED));
+        }
+
+        // the shard may be kept in the shard cache of the host
+        if (pointer.getRequestCount() == 1 && restoreCachedShard(pointer)) {
+            return CompletableFuture.completedFuture(pointer);
+        }
+
+        // switch to a faster mirror before the first request
+        if (mirrorSelector != null && pointer.getRequestCount() == 1 && !pointer.isReplaced()) {
+            preferFastMirror(pointer);
+        }
+
+        Log.i(TAG, String.format("Starting download Pointer %d...", pointer.getIndex()));
+
+        // wait for a slot, hedges do not take slots since the primary waits for them
+        if (!concurrency.acquire()) {
+            throw new GenaroRuntimeException(genaroStrError(GENARO_TRANSFER_CANCELED));
+        }
+
+        PointerStatus status = pointer.getStatus();
+        boolean isDownloaded;
+        try {
+            isDownloaded = fetchShard(pointer, shardChannel(pointer.getIndex()), shardPosition(pointer.getIndex()), !pointer.isParity());
+        } finally {
+            concurrency.release();
+        }
+
+        Hedge hedge;
+        synchronized (hedges) {
+            hedge = hedges.get(pointer.getIndex());
+        }
+        if (hedge == null || hedge.primary != pointer) {
+            if (isDownloaded) {
+                completeShard(pointer.getIndex(), pointer.getSize());
+            }
+            return CompletableFuture.completedFuture(finishShard(pointer, isDownloaded));
+        }
+
+        // nothing of the primary is written any more, the hedge may copy its data into the region of the shard
+        hedge.primaryStopped.complete(null);
+        if (isDownloaded) {
+            if (hedge.claim(pointer)) {
+                cancelHedge(hedge);
+                completeShard(pointer.getIndex(), pointer.getSize());
+                return CompletableFuture.completedFuture(finishShard(pointer, true));
+            }
+            // the hedge was verified first, the bytes of the primary are not counted
+            progress.shardFailed(pointer.getSize());
+        }
+
+        if (hedge.abandonIfNotStarted()) {
+            return CompletableFuture.completedFuture(finishShard(pointer, false));
+        }
+        return hedge.result.thenApply(isWon -> {
+            if (isWon) {
+                // the hedge won, the report of its farmer is sent instead
+                pointer.setStatus(status);
+                pointer.setReport(new GenaroExchangeReport());
+            }
+            return finishShard(pointer, isWon);
+        });
+    }
+
+    // the shard of pointer is in place if isDownloaded, keep it
+    private Pointer finishShard(final Pointer pointer, final boolean isDownloaded) {
+        if (isDownloaded && journal != null) {
+            journal.shardVerified(pointer);
+        }
+
+        ShardCache cache = bridge.getShardCache();
+        if (isDownloaded && cache != null) {
+            cache.put(pointer.getHash(), shardChannel(pointer.getIndex()), shardPosition(pointer.getIndex()), pointer.getSize());
+        }
+
+        // decrypt the data shard into the destination while the others are downloading
+        if (isDownloaded && !pointer.isParity()) {
+            assembleShard(pointer.getIndex(), pointer.getSize());
+        }
+
+        return pointer;
+    }
+
+    // take the shard of pointer from the temp file if the journal has it and it is intact, return whether it succeeds
+    private boolean restoreShard(final Pointer pointer) {
+        if (journal == null || !journal.isVerified(pointer)) {
+            return false;
+        }
+
+        int index = pointer.getIndex();
+        long size = pointer.getSize();
+        String hash;
+        try {
+            hash = Hex.toHexString(CryptoUtil.ripemd160(CryptoUtil.sha256OfRange(downFileChannel, shardSize * index, size)));
+        } catch (Exception e) {
+            hash = null;
+        }
+
+        if (!pointer.getHash().equals(hash)) {
+            Log.w(TAG, String.format("Shard %d in the temp file is damaged, download it again", index));
+            journal.forget(index);
+            // the pointer made up from the journal has no farmer, a new one is requested from bridge
+            if (pointer.getFarmer() == null) {
+                pointer.setStatus(POINTER_ERROR_REPORTED);
+            }
+            return false;
         }
 
         pointer.setRequestCount(pointer.getRequestCount() + 1);
+        pointer.setDownloadedSize(size);
+        progress.transferred(size);
+        completeShard(index, size);
+
+        if (!pointer.isParity()) {
+            assembleShard(index, size);
+        }
+
+        Log.i(TAG, String.format("Pointer %d is restored from the temp file", index));
+        return true;
+    }
+
+    // take the shard of pointer from the shard cache of the host, return whether it succeeds
+    private boolean restoreCachedShard(final Pointer pointer) {
+        ShardCache cache = bridge.getShardCache();
+        int index = pointer.getIndex();
+        long size = pointer.getSize();
+        if (cache == null || !cache.get(pointer.getHash(), size, shardChannel(index), shardPosition(index))) {
+            return false;
+        }
+
+        pointer.setDownloadedSize(size);
+        progress.transferred(size);
+        completeShard(index, size);
+        if (journal != null) {
+            journal.shardVerified(pointer);
+        }
+
+        if (!pointer.isParity()) {
+            assembleShard(index, size);
+        }
+
+        Log.i(TAG, String.format("Pointer %d is taken from the shard cache", index));
+        return true;
+    }
 
+    // download and verify the shard of pointer into channel at position, return whether it succeeds; nothing is written
+    // into channel after it returns, the caller completes the shard
+    private boolean fetchShard(final Pointer pointer, final FileChannel channel, final long position, final boolean isWatched) {
         Farmer farmer = pointer.getFarmer();
         String url = String.format("http://%s:%s/shards/%s?token=%s", farmer.getAddress(), farmer.getPort(), pointer.getHash(), pointer.getToken());
         Request request = new Request.Builder()
@@ -366,14 +685,35 @@ public final class Downloader implements Runnable {
                                      .get()
                                      .build();
 
-        if (isCanceled) {
-            throw new GenaroRuntimeException(genaroStrError(GENARO_TRANSFER_CANCELED));
+        // a large shard is fetched by several connections if enabled
+        int connections = (int) Math.min(bridge.getRangeConnections(), (pointer.getSize() + GENARO_RANGE_MIN_SIZE - 1) / GENARO_RANGE_MIN_SIZE);
+        RequestShardCallbackFuture future = null;
+        RangeFetcher fetcher = null;
+        Call call = null;
+        if (connections > 1) {
+            fetcher = new RangeFetcher(downHttpClient, url, "requestShard", channel, position, pointer.getSize(), pointer.getHash(),
+                    connections, delta -> {
+                        limiter.acquire(delta);
+                        // the ranges are written concurrently
+                        synchronized (pointer) {
+                            pointer.setDownloadedSize(pointer.getDownloadedSize() + delta);
+                        }
+                        progress.transferred(delta);
+                        concurrency.transferred(delta);
+                    });
+            shardCancels.put(pointer, fetcher::cancel);
+        } else {
+            future = new RequestShardCallbackFuture(this, pointer, channel, position);
+            call = downHttpClient.newCall(request);
+            shardCancels.put(pointer, call::cancel);
+        }
+        if (isWatched) {
+            activeDataPointers.add(pointer);
+        }
+        CompletableFuture<?> futureFetch = fetcher != null ? fetcher.fetch() : future;
+        if (call != null) {
+            call.enqueue(future);
         }
-
-        Log.i(TAG, String.format("Starting download Pointer %d...", pointer.getIndex()));
-
-        RequestShardCallbackFuture future = new RequestShardCallbackFuture(this, pointer);
-        downHttpClient.newCall(request).enqueue(future);
 
         pointer.getReport().setCode(GENARO_REPORT_FAILURE);
         pointer.getReport().setMessage(GENARO_REPORT_DOWNLOAD_ERROR);
@@ -381,20 +721,185 @@ public final class Downloader implements Runnable {
         // save the starting time of downloading
         pointer.getReport().setStart(System.currentTimeMillis());
 
+        boolean isDownloaded = false;
+        long start = pointer.getReport().getStart();
         try {
-            future.get();
+            futureFetch.get();
+            if (fetcher != null) {
+                pointer.getReport().setCode(GENARO_REPORT_SUCCESS);
+                pointer.getReport().setMessage(GENARO_REPORT_SHARD_DOWNLOADED);
+                Log.i(TAG, String.format("Download Pointer %d finished in %d ranges", pointer.getIndex(), fetcher.getRangeCount()));
+            }
+            isDownloaded = true;
         } catch (Exception e) {
+            if (fetcher != null) {
+                // the ranges still running write nothing after it
+                fetcher.cancel();
+                Log.w(TAG, String.format("Download Pointer %d failed", pointer.getIndex()));
+                progress.shardFailed(pointer.getDownloadedSize());
+                pointer.setDownloadedSize(0);
+            }
             pointer.setStatus(POINTER_ERROR);
             if (e instanceof ExecutionException && e.getCause() instanceof GenaroRuntimeException &&
                     e.getCause().getMessage().equals(genaroStrError(GENARO_FARMER_INTEGRITY_ERROR))) {
                 pointer.getReport().setMessage(GENARO_REPORT_FAILED_INTEGRITY);
             }
+            // the link may be congested
+            if (e instanceof ExecutionException && (e.getCause() instanceof SocketTimeoutException ||
+                    (e.getCause() instanceof GenaroRuntimeException &&
+                    e.getCause().getMessage().equals(genaroStrError(GENARO_FARMER_TIMEOUT_ERROR))))) {
+                concurrency.timedOut();
+            }
         } finally {
             // save the ending time of downloading
             pointer.getReport().setEnd(System.currentTimeMillis());
+            shardCancels.remove(pointer);
+            activeDataPointers.remove(pointer);
         }
 
-        return pointer;
+        // a canceled call(by the user, or because the other source won) says nothing about the farmer
+        String farmerId = farmer.getNodeID();
+        if (isDownloaded) {
+            long responseTime = fetcher != null ? fetcher.getResponseTime() : future.responseTime;
+            farmerRegistry.recordSuccess(farmerId, pointer.getSize(), pointer.getReport().getEnd() - start,
+                    responseTime > 0 ? responseTime - start : -1);
+        } else if (!isCanceled && !(fetcher != null ? fetcher.isCanceled() : call.isCanceled())) {
+            farmerRegistry.recordFailure(farmerId);
+        }
+
+        if (isDownloaded && isWatched) {
+            synchronized (finishedTransfers) {
+                finishedTransfers.add(new long[] {pointer.getSize(), pointer.getReport().getEnd() - pointer.getReport().getStart()});
+            }
+        }
+
+        return isDownloaded;
+    }
+
+    private void startHedge(final Pointer pointer) {
+        Hedge hedge = new Hedge(pointer);
+        // a primary which has finished its fetch is not hedged, it would never stop writing for the hedge
+        synchronized (hedges) {
+            if (!activeDataPointers.contains(pointer) || hedges.putIfAbsent(pointer.getIndex(), hedge) != null) {
+                return;
+            }
+        }
+
+        Log.i(TAG, String.format("Data shard %d is slow, hedge it with another farmer", pointer.getIndex()));
+        CompletableFuture.runAsync(() -> runHedge(hedge), downloaderExecutor);
+    }
+
+    private void runHedge(final Hedge hedge) {
+        if (!hedge.start()) {
+            hedge.result.complete(false);
+            return;
+        }
+
+        int index = hedge.primary.getIndex();
+        long size = hedge.primary.getSize();
+        boolean isClaimed = false;
+        boolean isWon = false;
+        try {
+            Farmer farmer = hedge.primary.getFarmer();
+            List<String> excluded = farmerRegistry.buildExcludeList(excludedFarmerIds);
+            if (farmer != null && farmer.getNodeID() != null && !excluded.contains(farmer.getNodeID())) {
+                excluded.add(farmer.getNodeID());
+            }
+
+            Pointer pointer = requestPreferredReplacement(index, hedge.primary.getHash(), size, excluded);
+            if (pointer != null && !hedge.isCanceled()) {
+                hedge.pointer = pointer;
+                pointer.setReport(new GenaroExchangeReport());
+
+                try (FileChannel scratchChannel = path == null ? new MemoryChannel() : FileChannel.open(Paths.get(tempPath + "." + index),
+                        StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.READ, StandardOpenOption.DELETE_ON_CLOSE)) {
+                    if (fetchShard(pointer, scratchChannel, 0, false)) {
+                        if (hedge.claim(pointer)) {
+                            isClaimed = true;
+                            copyHedgedShard(hedge, scratchChannel, index, size);
+                            completeShard(index, size);
+                            isWon = true;
+                        } else {
+                            // the primary was verified first, the bytes of the hedge are not counted
+                            progress.shardFailed(size);
+                        }
+                    }
+                }
+
+                sendExchangeReport(pointer);
+            }
+        } catch (Exception e) {
+            // the primary goes on
+        } finally {
+            // the region of the shard is overwritten in part, the shard is downloaded again without this hedge
+            if (isClaimed && !isWon) {
+                hedges.remove(index, hedge);
+            }
+            hedge.result.complete(isWon);
+        }
+
+        if (isWon) {
+            Log.i(TAG, String.format("Hedge of data shard %d won", index));
+        }
+    }
+
+    // copy the verified shard of the hedge into the region of the shard, after the primary has stopped writing there
+    private void copyHedgedShard(final Hedge hedge, final FileChannel scratchChannel, final int index, final long size) throws IOException {
+        Runnable cancel = shardCancels.get(hedge.primary);
+        if (cancel != null) {
+            cancel.run();
+        }
+        hedge.primaryStopped.join();
+
+        FileChannel shardChannel = shardChannel(index);
+        long shardPosition = shardPosition(index);
+        ByteBuffer buffer = ByteBuffer.allocate(CryptoUtil.BLOCK_BYTES);
+        long done = 0;
+        while (done < size) {
+            buffer.clear();
+            buffer.limit((int) Math.min(buffer.capacity(), size - done));
+            int readBytes = scratchChannel.read(buffer, done);
+            if (readBytes == -1) {
+                throw new IOException("Unexpected end of the hedged shard");
+            }
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                shardChannel.write(buffer, shardPosition + done + buffer.position());
+            }
+            done += readBytes;
+        }
+    }
+
+    private void cancelHedge(final Hedge hedge) {
+        hedge.cancel();
+        Pointer pointer = hedge.pointer;
+        Runnable cancel = pointer == null ? null : shardCancels.get(pointer);
+        if (cancel != null) {
+            cancel.run();
+        }
+    }
+
+    // the channel the shard of index is downloaded into, and its position there
+    private FileChannel shardChannel(final int index) {
+        return sink != null ? streamShards.computeIfAbsent(index, i -> new MemoryChannel()) : downFileChannel;
+    }
+
+    private long shardPosition(final int index) {
+        return sink != null ? 0 : shardSize * index;
+    }
+
+    private void assembleShard(final int index, final long size) {
+        try {
+            if (streamer != null) {
+                streamer.offer(index, shardChannel(index), shardPosition(index), shardSize * index, size);
+            } else {
+                assembler.assemble(index, shardSize * index, size);
+            }
+        } catch (IOException e) {
+            throw new GenaroRuntimeException(genaroStrError(GENARO_FILE_WRITE_ERROR));
+        } catch (Exception e) {
+            throw new GenaroRuntimeException(genaroStrError(GENARO_FILE_DECRYPTION_ERROR));
+        }
     }
 
     private Pointer sendExchangeReport(final Pointer pointer) {
@@ -481,196 +986,598 @@ public final class Downloader implements Runnable {
             }
 
             if (farmerId != null) {
-                if (excludedFarmerIds == null) {
-                    excludedFarmerIds = farmerId;
-                } else if (!excludedFarmerIds.contains(farmerId)) {
-                    excludedFarmerIds += "," + farmerId;
-                }
+                excludedFarmerIds.add(farmerId);
             }
 
             Log.i(TAG, String.format("Requesting replacement pointer at index: %d", newPointer.getIndex()));
 
             newPointer.setReplaceCount(newPointer.getReplaceCount() + 1);
 
-            String queryArgs = String.format("limit=1&skip=%d&exclude=%s", newPointer.getIndex(), excludedFarmerIds);
-            String url = String.format("/buckets/%s/files/%s", bucketId, fileId);
-            String path = String.format("%s?%s", url, queryArgs);
-            String signature;
-            try {
-                signature = bridge.signRequest("GET", url, queryArgs);
-            } catch (Exception e) {
+            Pointer replacedPointer = requestPreferredReplacement(newPointer.getIndex(), newPointer.getHash(), newPointer.getSize(),
+                    farmerRegistry.buildExcludeList(excludedFarmerIds));
+            if (replacedPointer == null) {
                 return newPointer;
             }
 
-            String pubKey = bridge.getPublicKeyHexString();
-            Request request = new Request.Builder()
-                    .tag("requestReplacePointer")
-                    .url(bridge.getBridgeUrl() + path)
-                    .header("x-signature", signature)
-                    .header("x-pubkey", pubKey)
-                    .get()
-                    .build();
+            adoptReplacement(newPointer, replacedPointer);
+            newPointer.setReplaced(true);
+            newPointer.setStatus(POINTER_REPLACED);
+        }
 
-            try (Response response = downHttpClient.newCall(request).execute()) {
-                int code = response.code();
-                String responseBody = response.body().string();
-                ObjectMapper om = new ObjectMapper();
-                JsonNode bodyNode = om.readTree(responseBody);
+        return newPointer;
+    }
 
-                Log.i(TAG, String.format("Finished request replace pointer %d - JSON Response: %s", newPointer.getIndex(), responseBody));
+    private static void adoptReplacement(final Pointer pointer, final Pointer replacedPointer) {
+        pointer.setIndex(replacedPointer.getIndex());
+        pointer.setHash(replacedPointer.getHash());
+        pointer.setSize(replacedPointer.getSize());
+        pointer.setParity(replacedPointer.isParity());
+        pointer.setToken(replacedPointer.getToken());
+        pointer.setFarmer(replacedPointer.getFarmer());
+        pointer.setOperation(replacedPointer.getOperation());
+        pointer.setReport(new GenaroExchangeReport());
+    }
 
-                if (code != 200) {
-                    if (bodyNode.has("error")) {
-                        Log.w(TAG, bodyNode.get("error").asText());
-                    }
-                    return newPointer;
-                }
+    // replace the farmer of pointer with the fastest mirror if it is much faster, the replace count is not increased
+    private void preferFastMirror(final Pointer pointer) {
+        List<String> excluded = farmerRegistry.buildExcludeList(excludedFarmerIds);
+        List<String> preferred = mirrorSelector.preferredExcludes(pointer.getHash(), pointer.getSize(), pointer.getFarmer(), excluded);
+        if (preferred == null) {
+            return;
+        }
 
-                List<Pointer> pointers = om.readValue(responseBody, new TypeReference<List<Pointer>>(){});
-                Pointer replacedPointer = pointers.get(0);
-                newPointer.setIndex(replacedPointer.getIndex());
-                newPointer.setHash(replacedPointer.getHash());
-                newPointer.setSize(replacedPointer.getSize());
-                newPointer.setParity(replacedPointer.isParity());
-                newPointer.setToken(replacedPointer.getToken());
-                newPointer.setFarmer(replacedPointer.getFarmer());
-                newPointer.setOperation(replacedPointer.getOperation());
-                newPointer.setReport(new GenaroExchangeReport());
-                if (newPointer.getToken() != null && newPointer.getFarmer() != null) {
-                    newPointer.setReplaced(true);
-                    newPointer.setStatus(POINTER_REPLACED);
-                } else {
-                    return newPointer;
-                }
-            } catch (IOException e) {
-                if (isCanceled) {
-                    throw new GenaroRuntimeException(genaroStrError(GENARO_TRANSFER_CANCELED));
+        Pointer replacedPointer = requestReplacement(pointer.getIndex(), String.join(",", preferred));
+        if (replacedPointer != null && replacedPointer.getHash().equals(pointer.getHash())) {
+            Log.i(TAG, String.format("Download Pointer %d from a faster mirror", pointer.getIndex()));
+            adoptReplacement(pointer, replacedPointer);
+        }
+    }
+
+    // request a pointer of index that prefers the fastest mirror not excluded, and falls back to any mirror not excluded
+    private Pointer requestPreferredReplacement(final int index, final String shardHash, final long shardSize, final List<String> excluded) {
+        if (mirrorSelector != null) {
+            List<String> preferred = mirrorSelector.preferredExcludes(shardHash, shardSize, null, excluded);
+            if (preferred != null) {
+                Pointer pointer = requestReplacement(index, String.join(",", preferred));
+                if (pointer != null) {
+                    return pointer;
                 }
             }
-
-            // replace the pointer in pointers
-            pointers.set(pointers.indexOf(pointer), newPointer);
         }
 
-        return newPointer;
+        return requestReplacement(index, String.join(",", excluded));
     }
 
-    // verify if the file can be recovered.
-    private void verifyRecover() {
-        boolean shardMissingError = false;
+    // request a pointer of index from bridge that is not stored on the excluded farmers, null if not found
+    private Pointer requestReplacement(final int index, final String excluded) {
+        String queryArgs = String.format("limit=1&skip=%d&exclude=%s", index, excluded);
+        String url = String.format("/buckets/%s/files/%s", bucketId, fileId);
+        String path = String.format("%s?%s", url, queryArgs);
+        String signature;
+        try {
+            signature = bridge.signRequest("GET", url, queryArgs);
+        } catch (Exception e) {
+            return null;
+        }
 
-        isDataShardsAllPresent = true;
-        for(int i = 0; i < totalDataPointers; i++) {
-            if (!shardsPresent[i]) {
-                isDataShardsAllPresent = false;
+        String pubKey = bridge.getPublicKeyHexString();
+        Request request = new Request.Builder()
+                .tag("requestReplacePointer")
+                .url(bridge.getBridgeUrl() + path)
+                .header("x-signature", signature)
+                .header("x-pubkey", pubKey)
+                .get()
+                .build();
+
+        try (Response response = downHttpClient.newCall(request).execute()) {
+            int code = response.code();
+            String responseBody = response.body().string();
+            ObjectMapper om = new ObjectMapper();
+            JsonNode bodyNode = om.readTree(responseBody);
+
+            Log.i(TAG, String.format("Finished request replace pointer %d - JSON Response: %s", index, responseBody));
+
+            if (code != 200) {
+                if (bodyNode.has("error")) {
+                    Log.w(TAG, bodyNode.get("error").asText());
+                }
+                return null;
             }
-        }
 
-        if (isDataShardsAllPresent) {
-            return;
-        }
+            List<Pointer> pointers = om.readValue(responseBody, new TypeReference<List<Pointer>>(){});
+            Pointer replacedPointer = pointers.get(0);
+            if (replacedPointer.getToken() == null || replacedPointer.getFarmer() == null) {
+                return null;
+            }
 
-        int missingPointers = (int)pointers.stream().filter(pointer -> pointer.getStatus() == POINTER_MISSING).count();
-        int presentPointers = 0;
-        for (boolean shardPresent: shardsPresent) {
-            if (shardPresent) {
-                presentPointers += 1;
+            return replacedPointer;
+        } catch (IOException e) {
+            if (isCanceled) {
+                throw new GenaroRuntimeException(genaroStrError(GENARO_TRANSFER_CANCELED));
             }
+            return null;
         }
+    }
 
-        // todo: when shard size >= 2GB(shardSize >= (1L << 31), means that the file size > 16GB), Reed-Solomon algorithm can not work normally for java version of libgenaro for now
-        // todo: when shard size >= 32MB(means that the file size > 256MB), may cause an OutOfMemoryError if use Reed-Solomon for java version of libgenaro for now
-        if (shardSize >= (1L << 25) && file.isRs()) {
-            shardMissingError = pointers.stream().filter(pointer -> pointer.getIndex() < totalDataPointers)
-                    .anyMatch(pointer -> pointer.getStatus() == POINTER_MISSING);
-            if (shardMissingError || pointers.size() == 0) {
-                throw new GenaroRuntimeException(genaroStrError(GENARO_FILE_SHARD_MISSING_ERROR));
-            } else {
-                return;
-            }
+    private boolean isShardPresent(final int index) {
+        synchronized (shardsPresent) {
+            return shardsPresent.get(index);
         }
+    }
 
-        if(file.isRs()) {
-            // if the downloaded data is sufficient to recover the whole file, just stop downloading
-            if (presentPointers >= totalDataPointers) {
-                stop();
-                return;
-            } else if(missingPointers > totalParityPointers) {
-                shardMissingError = true;
-            }
-        } else {
-            if (missingPointers != 0) {
-                shardMissingError = true;
+    // the shard of index is verified in place, it is counted once whichever source completes it
+    private boolean completeShard(final int index, final long size) {
+        synchronized (shardsPresent) {
+            if (shardsPresent.get(index)) {
+                return false;
             }
+            shardsPresent.set(index);
         }
+        progress.shardCompleted(size);
+        return true;
+    }
 
-        if(shardMissingError || pointers.size() == 0) {
-            throw new GenaroRuntimeException(genaroStrError(GENARO_FILE_SHARD_MISSING_ERROR));
-        }
+    // whether the missing data shards can be recovered from parity shards
+    private boolean isRecoverable() {
+        // the data shards delivered to a stream are not kept for the recovery; any shard size is recovered stripe by
+        // stripe within the memory budget
+        return sink == null && file.isRs();
     }
 
-    void start() {
-        if (!overwrite && Files.exists(Paths.get(path))) {
-            resolveFileCallback.onFail("File already exists");
+    // called when the data shard of index failed after all its replacements or stalled, one more parity shard is
+    // downloaded for it
+    private void wantParityFor(final int index) {
+        if (!isRecoverable()) {
             return;
         }
 
-        resolveFileCallback.onBegin();
-
-        // request info
-        for (int i = 0; i < GENARO_MAX_GET_FILE_INFO; i++) {
-            try {
-                file = bridge.getFileInfo(this, bucketId, fileId);
-            } catch (Exception e) {
-                if (i == GENARO_MAX_GET_FILE_INFO - 1) {
-                    stop();
-                    if (e instanceof CancellationException) {
-                        resolveFileCallback.onCancel();
-                    } else if (e instanceof TimeoutException) {
-                        resolveFileCallback.onFail(genaroStrError(GENARO_BRIDGE_TIMEOUT_ERROR));
-                    } else if (e instanceof ExecutionException && e.getCause() instanceof GenaroRuntimeException) {
-                        resolveFileCallback.onFail(e.getCause().getMessage());
-                    } else {
-                        resolveFileCallback.onFail(genaroStrError(GENARO_BRIDGE_REQUEST_ERROR));
+        synchronized (parityReserve) {
+            if (!compensatedShards.add(index)) {
+                return;
+            }
+            parityWanted++;
+        }
+
+        Log.i(TAG, String.format("Data shard %d is in trouble, start a parity shard", index));
+        startWantedParity();
+    }
+
+    private void startWantedParity() {
+        while (true) {
+            Pointer pointer;
+            synchronized (parityReserve) {
+                if (parityWanted == 0 || parityReserve.isEmpty()) {
+                    return;
+                }
+                pointer = parityReserve.poll();
+                parityWanted--;
+            }
+            downloadPointer(pointer);
+        }
+    }
+
+    private void schedulePointer(final Pointer pointer) {
+        // the parity shards of a download to a stream are useless, see isRecoverable()
+        if (sink != null) {
+            if (!pointer.isParity()) {
+                synchronized (streamQueue) {
+                    streamQueue.add(pointer);
+                }
+                startStreamWindow();
+            }
+            return;
+        }
+
+        // the file can not be recovered from the parity shards, they are not downloaded at all
+        if (pointer.isParity() && !isRecoverable()) {
+            return;
+        }
+
+        // a verified parity shard costs nothing, it is not kept in reserve
+        if (pointer.isParity() && (journal == null || !journal.isVerified(pointer))) {
+            synchronized (parityReserve) {
+                parityReserve.add(pointer);
+            }
+            startWantedParity();
+        } else {
+            downloadPointer(pointer);
+        }
+    }
+
+    // start the data shards within the window after the next shard to deliver, the lowest index first
+    private void startStreamWindow() {
+        int window = (int) Math.max(GENARO_STREAM_MIN_WINDOW, Math.min(Integer.MAX_VALUE, GENARO_STREAM_BUFFER_SIZE / shardSize));
+        MemoryBudget memoryBudget = MemoryBudget.global();
+        List<Pointer> started = new ArrayList<>();
+        synchronized (streamQueue) {
+            int nextIndex = streamer.getNextIndex();
+            long end = (long) nextIndex + window;
+            while (!streamQueue.isEmpty() && streamQueue.peek().getIndex() < end) {
+                Pointer pointer = streamQueue.peek();
+                // the window shrinks while the memory budget is exhausted, the next shard to deliver always goes
+                if (pointer.getIndex() == nextIndex) {
+                    memoryBudget.forceReserve(pointer.getSize());
+                } else if (!memoryBudget.tryReserve(pointer.getSize())) {
+                    break;
+                }
+                streamReserved.merge(pointer.getIndex(), pointer.getSize(), Long::sum);
+                started.add(streamQueue.poll());
+            }
+        }
+        started.forEach(this::downloadPointer);
+    }
+
+    // called by ShardStreamer, the shard is not needed any more and the window moves on
+    private void onShardDelivered(final int index) {
+        streamShards.remove(index);
+        releaseStreamMemory(index);
+        startStreamWindow();
+    }
+
+    private void releaseStreamMemory(final int index) {
+        Long bytes = streamReserved.remove(index);
+        if (bytes != null) {
+            MemoryBudget.global().release(bytes);
+        }
+    }
+
+    // the data shard is slow, download it from another source in parallel
+    private void hedge(final Pointer pointer) {
+        if (isRecoverable()) {
+            // any parity shard can take the place of it
+            wantParityFor(pointer.getIndex());
+        } else {
+            startHedge(pointer);
+        }
+    }
+
+    private static double median(final List<Double> values) {
+        values.sort(null);
+        return values.get(values.size() / 2);
+    }
+
+    // runs on watchdog
+    private void checkSlowShards() {
+        if (isStopping) {
+            return;
+        }
+
+        concurrency.tick();
+
+        long now = System.currentTimeMillis();
+        lastActivities.keySet().retainAll(activeDataPointers);
+
+        List<Double> finishedThroughputs = new ArrayList<>();
+        List<Double> finishedTimes = new ArrayList<>();
+        synchronized (finishedTransfers) {
+            for (long[] transfer : finishedTransfers) {
+                finishedThroughputs.add(transfer[0] * 1.0 / Math.max(1, transfer[1]));
+                finishedTimes.add((double) transfer[1]);
+            }
+        }
+
+        // the throughputs(bytes per millisecond) of the active data shards
+        Map<Pointer, Double> throughputs = new HashMap<>();
+        for (Pointer pointer : activeDataPointers) {
+            long downloadedSize = pointer.getDownloadedSize();
+            long[] activity = lastActivities.get(pointer);
+            if (activity == null) {
+                lastActivities.put(pointer, new long[] {downloadedSize, now, now});
+            } else {
+                if (activity[0] != downloadedSize) {
+                    activity[0] = downloadedSize;
+                    activity[1] = now;
+                }
+                throughputs.put(pointer, downloadedSize * 1.0 / Math.max(1, now - activity[2]));
+            }
+        }
+
+        for (Map.Entry<Pointer, Double> entry : throughputs.entrySet()) {
+            Pointer pointer = entry.getKey();
+            long[] activity = lastActivities.get(pointer);
+            long elapsed = now - activity[2];
+
+            boolean isStalled = now - activity[1] >= GENARO_SHARD_STALL_TIMEOUT * 1000L;
+
+            boolean isSlow = false;
+            if (elapsed >= GENARO_HEDGE_MIN_ELAPSED * 1000L) {
+                List<Double> peers = new ArrayList<>(finishedThroughputs);
+                throughputs.forEach((peer, throughput) -> {
+                    if (peer != pointer) {
+                        peers.add(throughput);
                     }
+                });
+                isSlow = peers.size() >= GENARO_HEDGE_MIN_PEERS && entry.getValue() < GENARO_HEDGE_SLOW_RATIO * median(peers);
+            }
+
+            boolean isLate = !finishedTimes.isEmpty() && elapsed >= GENARO_HEDGE_MIN_ELAPSED * 1000L &&
+                    elapsed > GENARO_HEDGE_DEADLINE_FACTOR * median(finishedTimes);
+
+            if (isStalled || isSlow || isLate) {
+                try {
+                    hedge(pointer);
+                } catch (RejectedExecutionException e) {
+                    // stopping
                     return;
                 }
+            }
+        }
+    }
+
+    // called by PointerSource when a page of pointers arrives
+    private void onPointerPage(final List<Pointer> page) {
+        synchronized (pendingPointers) {
+            for (Pointer pointer : page) {
+                Log.i(TAG, pointer.toBriefString());
+
+                // set shard size to the size of the first shard
+                if (pointer.getIndex() == 0) {
+                    shardSize = pointer.getSize();
+                }
+            }
+
+            // the position of a shard in the temp file depends on the shard size, and the shards are not downloaded
+            // before the file info arrives
+            if (shardSize == 0 || !isSchedulable) {
+                pendingPointers.addAll(page);
+                return;
+            }
+
+            pendingPointers.forEach(this::schedulePointer);
+            pendingPointers.clear();
+            page.forEach(this::schedulePointer);
+        }
+    }
+
+    private void downloadPointer(final Pointer pointer) {
+        if (isStopping) {
+            return;
+        }
+
+        runningShards.incrementAndGet();
+
+        CompletableFuture<Pointer> future = CompletableFuture.completedFuture(pointer)
+                .thenComposeAsync(this::requestShard, downloaderExecutor)
+                .thenApplyAsync(this::sendExchangeReport, downloaderExecutor);
+
+        // try request replace pointer for GENARO_DEFAULT_MIRRORS times
+        for (int i = 0; i < GENARO_DEFAULT_MIRRORS; i++) {
+            future = future.thenApplyAsync(this::requestReplacePointer, downloaderExecutor)
+                    .thenComposeAsync((p) -> {
+                        // download replaced pointer
+                        if (p.isReplaced()) {
+                            return requestShard(p).thenApplyAsync(this::sendExchangeReport, downloaderExecutor);
+                        }
+                        return CompletableFuture.completedFuture(p);
+                    }, downloaderExecutor);
+        }
+
+        future.thenAcceptAsync((p) -> {
+                    // the replacements are used up, a parity shard is needed to recover the data shard
+                    if (!p.isParity() && !isShardPresent(p.getIndex())) {
+                        wantParityFor(p.getIndex());
+                    }
+                    verifyRecover();
+                }, downloaderExecutor)
+                .whenComplete((v, e) -> {
+                    if (e != null) {
+                        futureAllFromRequestShard.completeExceptionally(e);
+                    } else if (runningShards.decrementAndGet() == 0 && isPointersComplete) {
+                        futureAllFromRequestShard.complete(null);
+                    }
+                });
+    }
+
+    // verify if the file can be recovered.
+    private void verifyRecover() {
+        // the totals are unknown until all the pointers have arrived
+        if (!isPointersComplete) {
+            return;
+        }
+
+        boolean shardMissingError = false;
+
+        isDataShardsAllPresent = true;
+        for(int i = 0; i < totalDataPointers; i++) {
+            if (!isShardPresent(i)) {
+                isDataShardsAllPresent = false;
+            }
+        }
+
+        if (isDataShardsAllPresent) {
+            return;
+        }
+
+        int missingPointers = (int)pointers.stream().filter(pointer -> pointer.getStatus() == POINTER_MISSING).count();
+        int presentPointers;
+        synchronized (shardsPresent) {
+            presentPointers = shardsPresent.cardinality();
+        }
+
+        if(file.isRs()) {
+            // if the downloaded data is sufficient to recover the whole file, just stop downloading
+            if (presentPointers >= totalDataPointers) {
+                stop();
+                return;
+            } else if(missingPointers > totalParityPointers) {
+                shardMissingError = true;
+            }
+        } else {
+            if (missingPointers != 0) {
+                shardMissingError = true;
+            }
+        }
+
+        if(shardMissingError || pointers.size() == 0) {
+            throw new GenaroRuntimeException(genaroStrError(GENARO_FILE_SHARD_MISSING_ERROR));
+        }
+    }
+
+    // request the file info while queued, so that the transfer manager can order and count this download by its size
+    void prefetchFileInfo() {
+        GenaroFile file;
+        try {
+            file = bridge.getFileInfo(null, bucketId, fileId);
+        } catch (Exception e) {
+            // requested again when started
+            return;
+        }
+
+        prefetchedFileInfo = file;
+        if (ticket != null && file.getSize() > 0) {
+            // the shards in the temp file and the plain data in the part file, the parity shards are not known yet
+            ticket.estimateSize(file.getSize(), path != null ? 2 * file.getSize() : 0);
+        }
+    }
+
+    private GenaroFile requestFileInfo() {
+        GenaroFile prefetched = prefetchedFileInfo;
+        if (prefetched != null) {
+            return prefetched;
+        }
+
+        for (int i = 0; ; i++) {
+            try {
+                return bridge.getFileInfo(this, bucketId, fileId);
+            } catch (Exception e) {
+                if (i == GENARO_MAX_GET_FILE_INFO - 1 || isStopping) {
+                    throw BasicUtil.bridgeFailure(e);
+                }
                 // try again
-                continue;
             }
-            // success
-            break;
         }
+    }
 
-        // check if cancel() is called
+    /**
+     * @return {key, iv} of AES for the decryption of file, keyStr and ctrStr are used if given
+     */
+    static byte[][] decryptionKey(final Genaro bridge, final String bucketId, final String fileId, final GenaroFile file,
+                                  final String keyStr, final String ctrStr) throws Exception {
+        byte[] bucketIdBytes = Hex.decode(bucketId);
+        byte[] fileIdBytes = Hex.decode(fileId);
+
+        // key for decryption
+        byte[] keyBytes;
+        byte[] ivBytes;
+
+        String indexStr = file.getIndex();
+
+        if (keyStr != null && ctrStr != null) {
+            keyBytes = base16.fromString(keyStr);
+            ivBytes = base16.fromString(ctrStr);
+        } else if (indexStr != null && indexStr.length() == 64) {
+            // calculate decryption key based on index
+            byte[] index = Hex.decode(indexStr);
+
+            keyBytes = CryptoUtil.generateFileKey(bridge.getPrivateKey(), bucketIdBytes, index);
+            ivBytes = Arrays.copyOf(index, 16);
+        } else {
+            // calculate decryption key based on file id
+            keyBytes = CryptoUtil.generateFileKey(bridge.getPrivateKey(), bucketIdBytes, fileIdBytes);
+            keyBytes = Hex.encode(keyBytes);
+            keyBytes = CryptoUtil.sha256(keyBytes);
+            ivBytes = Arrays.copyOf(CryptoUtil.ripemd160(fileId.getBytes()), 16);
+        }
+
+        return new byte[][] {keyBytes, ivBytes};
+    }
+
+    void start() {
+        // canceled before admitted
         if (isCanceled) {
             resolveFileCallback.onCancel();
             return;
         }
 
-        // request pointers
-        for (int i = 0; i < GENARO_MAX_REQUEST_POINTERS; i++) {
+        if (path != null && !overwrite && Files.exists(Paths.get(path))) {
+            resolveFileCallback.onFail("File already exists");
+            return;
+        }
+
+        resolveFileCallback.onBegin();
+
+        boolean isRestored = false;
+        // the shards of the download to a stream are kept in memory on their own until delivered, see shardChannel()
+        if (memory != null) {
+            // the shards are kept in memory, the download can not be resumed
+            downFileChannel = new MemoryChannel();
+        } else if (path != null) {
+            // the temp file is kept with the journal if the download fails, so that it can be resumed
+            String journalPath = tempPath + ".journal";
+            if (isResume) {
+                journal = DownloadJournal.load(journalPath);
+                if (journal != null && !journal.isSameDownload(bucketId, fileId)) {
+                    journal = null;
+                }
+            }
+            isRestored = journal != null && !journal.isEmpty();
+            if (isRestored) {
+                Log.i(TAG, String.format("Resume the download, %d shards are verified before", journal.getShards().size()));
+            } else {
+                journal = new DownloadJournal(journalPath, bucketId, fileId);
+                journal.save();
+            }
+
             try {
-                pointers = bridge.requestPointers(this, bucketId, fileId);
-            } catch (Exception e) {
-                if (i == GENARO_MAX_REQUEST_POINTERS - 1) {
-                    stop();
-                    if (e instanceof CancellationException) {
-                        resolveFileCallback.onCancel();
-                    } else if (e instanceof TimeoutException) {
-                        resolveFileCallback.onFail(genaroStrError(GENARO_BRIDGE_TIMEOUT_ERROR));
-                    } else if (e instanceof ExecutionException && e.getCause() instanceof GenaroRuntimeException) {
-                        resolveFileCallback.onFail(e.getCause().getMessage());
-                    } else {
-                        resolveFileCallback.onFail(genaroStrError(GENARO_BRIDGE_REQUEST_ERROR));
-                    }
-                    return;
+                if (isRestored) {
+                    downFileChannel = FileChannel.open(Paths.get(tempPath), StandardOpenOption.CREATE,
+                            StandardOpenOption.WRITE, StandardOpenOption.READ);
+                } else {
+                    downFileChannel = FileChannel.open(Paths.get(tempPath), StandardOpenOption.CREATE,
+                            StandardOpenOption.WRITE, StandardOpenOption.READ, StandardOpenOption.TRUNCATE_EXISTING);
                 }
-                // try again
-                continue;
+            } catch (IOException e) {
+                stop();
+                resolveFileCallback.onFail("Create temp file error");
+                return;
             }
-            // success
-            break;
+        }
+
+        // preflight: the file info, the pointers and the mirrors are requested at the same time, the pages of
+        // pointers are held until the file info arrives
+        if (bridge.isPreferFastMirrors()) {
+            mirrorSelector = new MirrorSelector(bridge, downHttpClient, bucketId, fileId);
+            mirrorSelector.prefetch();
+        }
+
+        // the pages of the verified shards are made up from the journal
+        Map<Integer, Pointer> verifiedPointers = null;
+        int knownTotal = -1;
+        if (isRestored && journal.getTotalPointers() > 0 && journal.getShardSize() > 0) {
+            verifiedPointers = journal.verifiedPointers();
+            knownTotal = journal.getTotalPointers();
+            shardSize = journal.getShardSize();
+        }
+        CompletableFuture<List<Pointer>> futurePointers;
+        try {
+            futurePointers = bridge.requestPointers(this, bucketId, fileId, this::onPointerPage, verifiedPointers, knownTotal);
+        } catch (GenaroRuntimeException e) {
+            stop();
+            resolveFileCallback.onFail(e.getMessage());
+            return;
+        }
+
+        CompletableFuture<GenaroFile> futureInfo = CompletableFuture.supplyAsync(this::requestFileInfo, downloaderExecutor);
+        // fail fast if the pointers fail before the file info arrives
+        futurePointers.whenComplete((psr, e) -> {
+            if (e != null) {
+                futureInfo.completeExceptionally(BasicUtil.unwrap(e));
+            }
+        });
+
+        try {
+            file = futureInfo.get();
+        } catch (Exception e) {
+            stop();
+            Throwable cause = BasicUtil.unwrap(e);
+            if (cause instanceof CancellationException) {
+                resolveFileCallback.onCancel();
+            } else if (cause instanceof GenaroRuntimeException) {
+                resolveFileCallback.onFail(cause.getMessage());
+            } else {
+                resolveFileCallback.onFail(genaroStrError(GENARO_BRIDGE_REQUEST_ERROR));
+            }
+            return;
         }
 
         // check if cancel() is called
@@ -679,11 +1586,74 @@ public final class Downloader implements Runnable {
             return;
         }
 
-        // set shard size to the size of the first shard
-        shardSize = pointers.get(0).getSize();
+        SecretKeySpec keySpec = null;
+        byte[] ivBytes = null;
+        if (isDecrypt) {
+            byte[][] keyAndIv;
+            try {
+                keyAndIv = decryptionKey(bridge, bucketId, fileId, file, keyStr, ctrStr);
+            } catch (Exception e) {
+                stop();
+                resolveFileCallback.onFail("AES file key error");
+                return;
+            }
+
+            keySpec = new SecretKeySpec(keyAndIv[0], "AES");
+            ivBytes = keyAndIv[1];
+        }
+
+        // the data shards are decrypted into the destination as soon as they are downloaded
+        try {
+            if (sink != null) {
+                streamer = new ShardStreamer(sink, keySpec, ivBytes, this::onShardDelivered);
+            } else if (memory != null) {
+                assembler = new ShardAssembler(downFileChannel, memory, keySpec, ivBytes);
+            } else {
+                assembler = new ShardAssembler(downFileChannel, path, keySpec, ivBytes);
+            }
+        } catch (Exception e) {
+            stop();
+            resolveFileCallback.onFail("Create temp file error");
+            return;
+        }
+
+        // the pages arrived during the preflight are scheduled now
+        synchronized (pendingPointers) {
+            isSchedulable = true;
+            if (shardSize != 0) {
+                pendingPointers.forEach(this::schedulePointer);
+                pendingPointers.clear();
+            }
+        }
+
+        resolveFileCallback.onProgress(0.0f);
+        // after the whole data are downloaded, Reed-Solomon algorithm and decryption may take a long time
+        dispatcher.setProgressSource(() -> Math.min(progress.fraction(), 0.999f));
+
+        watchdog.scheduleAtFixedRate(this::checkSlowShards, 1, 1, TimeUnit.SECONDS);
+
+        // the shards of a page are downloaded as soon as the page arrives
+        try {
+            pointers = futurePointers.get();
+        } catch (Exception e) {
+            stop();
+            if (e instanceof CancellationException) {
+                resolveFileCallback.onCancel();
+            } else if (e instanceof ExecutionException && e.getCause() instanceof GenaroRuntimeException) {
+                resolveFileCallback.onFail(e.getCause().getMessage());
+            } else {
+                resolveFileCallback.onFail(genaroStrError(GENARO_BRIDGE_REQUEST_ERROR));
+            }
+            return;
+        }
+
+        // check if cancel() is called
+        if (isCanceled) {
+            resolveFileCallback.onCancel();
+            return;
+        }
 
         for (Pointer pointer : pointers) {
-            Log.i(TAG, pointer.toBriefString());
             long size = pointer.getSize();
             totalBytes += size;
             totalPointers += 1;
@@ -695,108 +1665,47 @@ public final class Downloader implements Runnable {
             }
         }
 
-        shardsPresent = new boolean[totalPointers];
-        for (int i = 0; i < totalPointers; i++) {
-            shardsPresent[i] = false;
+        // the temp file holds the shards, and the part file the plain data
+        if (ticket != null) {
+            ticket.setSize(fileSize, path != null ? totalBytes + fileSize : 0);
+        }
+
+        synchronized (pendingPointers) {
+            // there is no pointer of index 0, set shard size to the size of the first shard
+            if (shardSize == 0) {
+                shardSize = pointers.get(0).getSize();
+                pendingPointers.forEach(this::schedulePointer);
+                pendingPointers.clear();
+            }
+        }
+
+        if (journal != null) {
+            journal.setShardSize(shardSize);
+            journal.setTotalPointers(totalPointers);
+            journal.save();
         }
 
         try {
-            downFileChannel = FileChannel.open(Paths.get(tempPath), StandardOpenOption.CREATE,
-                    StandardOpenOption.WRITE, StandardOpenOption.READ, StandardOpenOption.DELETE_ON_CLOSE);
+            if (assembler != null) {
+                assembler.setSize(fileSize);
+            }
         } catch (IOException e) {
             stop();
-            resolveFileCallback.onFail("Create temp file error");
+            resolveFileCallback.onFail(genaroStrError(GENARO_FILE_RESIZE_ERROR));
             return;
         }
 
-        resolveFileCallback.onProgress(0.0f);
-
-        // TODO: seems terrible for so many duplicate codes
-        CompletableFuture<Void>[] downFutures = pointers
-                .parallelStream()
-                .map(pointer -> CompletableFuture.supplyAsync(() -> requestShard(pointer), downloaderExecutor))
-                .map(future -> future.thenApplyAsync(this::sendExchangeReport, downloaderExecutor))
-                // 1st requestReplacePointer
-                .map(future -> future.thenApplyAsync(this::requestReplacePointer, downloaderExecutor))
-                .map(future -> future.thenApplyAsync((pointer) -> {
-                    // download replaced pointer
-                    if (pointer.isReplaced()) {
-                        requestShard(pointer);
-                    }
-                    return pointer;
-                }, downloaderExecutor))
-                .map(future -> future.thenApplyAsync((pointer) -> {
-                    if (pointer.isReplaced()) {
-                        sendExchangeReport(pointer);
-                    }
-                    return pointer;
-                }, downloaderExecutor))
-                // 2nd requestReplacePointer
-                .map(future -> future.thenApplyAsync(this::requestReplacePointer, downloaderExecutor))
-                .map(future -> future.thenApplyAsync((pointer) -> {
-                    // download replaced pointer
-                    if (pointer.isReplaced()) {
-                        requestShard(pointer);
-                    }
-                    return pointer;
-                }, downloaderExecutor))
-                .map(future -> future.thenApplyAsync((pointer) -> {
-                    if (pointer.isReplaced()) {
-                        sendExchangeReport(pointer);
-                    }
-                    return pointer;
-                }, downloaderExecutor))
-                // 3rd requestReplacePointer
-                .map(future -> future.thenApplyAsync(this::requestReplacePointer, downloaderExecutor))
-                .map(future -> future.thenApplyAsync((pointer) -> {
-                    // download replaced pointer
-                    if (pointer.isReplaced()) {
-                        requestShard(pointer);
-                    }
-                    return pointer;
-                }, downloaderExecutor))
-                .map(future -> future.thenApplyAsync((pointer) -> {
-                    if (pointer.isReplaced()) {
-                        sendExchangeReport(pointer);
-                    }
-                    return pointer;
-                }, downloaderExecutor))
-                // 4th requestReplacePointer
-                .map(future -> future.thenApplyAsync(this::requestReplacePointer, downloaderExecutor))
-                .map(future -> future.thenApplyAsync((pointer) -> {
-                    // download replaced pointer
-                    if (pointer.isReplaced()) {
-                        requestShard(pointer);
-                    }
-                    return pointer;
-                }, downloaderExecutor))
-                .map(future -> future.thenApplyAsync((pointer) -> {
-                    if (pointer.isReplaced()) {
-                        sendExchangeReport(pointer);
-                    }
-                    return pointer;
-                }, downloaderExecutor))
-                // 5th requestReplacePointer, try request replace pointer for 5 times because GENARO_DEFAULT_MIRRORS = 5
-                .map(future -> future.thenApplyAsync(this::requestReplacePointer, downloaderExecutor))
-                .map(future -> future.thenApplyAsync((pointer) -> {
-                    // download replaced pointer
-                    if (pointer.isReplaced()) {
-                        requestShard(pointer);
-                    }
-                    return pointer;
-                }, downloaderExecutor))
-                .map(future -> future.thenApplyAsync((pointer) -> {
-                    if (pointer.isReplaced()) {
-                        sendExchangeReport(pointer);
-                    }
-                    return pointer;
-                }, downloaderExecutor))
-                .map(future -> future.thenAcceptAsync((pointer) -> verifyRecover(), downloaderExecutor))
-                .toArray(CompletableFuture[]::new);
-
-        futureAllFromRequestShard = CompletableFuture.allOf(downFutures);
+        // if rs, we will not wait for all the shards are downloaded, just download the number of "totalDataPointers"
+        progress.setTarget(fileSize, file.isRs() ? totalDataPointers : totalPointers);
+        isPointersComplete = true;
 
         try {
+            // the shards finished before all the pointers arrived have not been verified
+            verifyRecover();
+            if (runningShards.get() == 0) {
+                futureAllFromRequestShard.complete(null);
+            }
+
             futureAllFromRequestShard.get();
         } catch (Exception e) {
             stop();
@@ -807,6 +1716,9 @@ public final class Downloader implements Runnable {
                 } else {
                     // do nothing(if the downloaded data is sufficient, may reach here)
                 }
+            } else if (e instanceof GenaroRuntimeException) {
+                resolveFileCallback.onFail(e.getMessage());
+                return;
             } else if (e instanceof ExecutionException && e.getCause() instanceof GenaroRuntimeException) {
                 resolveFileCallback.onFail(e.getCause().getMessage());
                 return;
@@ -824,143 +1736,70 @@ public final class Downloader implements Runnable {
             return;
         }
 
+        dispatcher.setProgressSource(null);
+
         // use Reed-Solomon algorithm to recover file
         if (!isDataShardsAllPresent && file.isRs()) {
-            // set the progress directly to 100%
-            if (downloadedBytes.get() != totalBytes) {
-                resolveFileCallback.onProgress(1.0f);
-            }
-
-            byte[][] shards = new byte[totalPointers][];
-            MappedByteBuffer[] dataBuffers = new MappedByteBuffer[totalPointers];
-            for (int i = 0; i < totalPointers; i++) {
-                int size = (int) pointers.get(i).getSize();
-
-                try {
-                    // the 3rd parameter is not "totalBytes", but "totalPointers * shardSize"
-                    dataBuffers[i] = downFileChannel.map(FileChannel.MapMode.READ_WRITE, i * shardSize, shardSize);
-                } catch (IOException e) {
-                    resolveFileCallback.onFail(genaroStrError(GENARO_FILE_RECOVER_ERROR));
-                    return;
-                }
-
-                // todo: when shardSize is too big(maybe 1g) it will casue an OutOfMemoryError exception
-                try {
-                    // here use "shardSize", not "size"
-                    shards[i] = new byte[(int) shardSize];
-                } catch (OutOfMemoryError e) {
-                    resolveFileCallback.onFail(genaroStrError(GENARO_OUTOFMEMORY_ERROR));
-                    return;
-                }
-
-                dataBuffers[i].get(shards[i], 0, size);
+            int presentPointers;
+            synchronized (shardsPresent) {
+                presentPointers = shardsPresent.cardinality();
             }
 
-            ReedSolomon reedSolomon = new ReedSolomon(totalDataPointers,
-                    totalParityPointers, new OutputInputByteTableCodingLoop());
-
-            try {
-                reedSolomon.decodeMissing(shards, shardsPresent, 0, (int) shardSize);
-            } catch (Exception e) {
-                resolveFileCallback.onFail(genaroStrError(GENARO_FILE_RECOVER_ERROR));
+            if (presentPointers < totalDataPointers) {
+                resolveFileCallback.onFail(genaroStrError(GENARO_FILE_SHARD_MISSING_ERROR));
                 return;
             }
 
-            for (int i = 0; i < totalDataPointers; i++) {
-                int size = (int) pointers.get(i).getSize();
-                dataBuffers[i].position(0);
-                dataBuffers[i].put(shards[i], 0, size);
+            // set the progress directly to 100%
+            if (progress.getTransferredBytes() != totalBytes) {
+                resolveFileCallback.onProgress(1.0f);
             }
 
-            // Speed up GC
+            long[] sizes = new long[totalPointers];
+            boolean[] present = new boolean[totalPointers];
             for (int i = 0; i < totalPointers; i++) {
-                shards[i] = null;
-                dataBuffers[i] = null;
+                sizes[i] = pointers.get(i).getSize();
+                present[i] = isShardPresent(i);
             }
-        } else if (downloadedBytes.get() != totalBytes) {
-            Log.w(TAG, "Downloaded bytes is not the same with total bytes, downloaded bytes: " + downloadedBytes + ", totalBytes: " + totalBytes);
-        } else {
-            // do nothing
-        }
-
-        try {
-            downFileChannel.truncate(fileSize);
-        } catch (IOException e) {
-            stop();
-            resolveFileCallback.onFail(genaroStrError(GENARO_FILE_RESIZE_ERROR));
-            return;
-        }
-
-        byte[] sha256;
-        InputStream cypherIns = null;
-        if (isDecrypt) {
-            // decryption:
-            Log.i(TAG, "Decrypt file...");
-            byte[] bucketIdBytes = Hex.decode(bucketId);
-            byte[] fileIdBytes = Hex.decode(fileId);
-
-            // key for decryption
-            byte[] keyBytes;
-            // ctr for decryption
-            byte[] ivBytes;
-
-            String indexStr = file.getIndex();
 
+            // decoded stripe by stripe within the memory budget; the shards may be kept in memory, they are read, not mapped
             try {
-                if (keyStr != null && ctrStr != null) {
-                    keyBytes = base16.fromString(keyStr);
-                    ivBytes = base16.fromString(ctrStr);
-                } else if (indexStr != null && indexStr.length() == 64) {
-                    // calculate decryption key based on index
-                    byte[] index = Hex.decode(indexStr);
-
-                    keyBytes = CryptoUtil.generateFileKey(bridge.getPrivateKey(), bucketIdBytes, index);
-                    ivBytes = Arrays.copyOf(index, 16);
-                } else {
-                    // calculate decryption key based on file id
-                    keyBytes = CryptoUtil.generateFileKey(bridge.getPrivateKey(), bucketIdBytes, fileIdBytes);
-                    keyBytes = Hex.encode(keyBytes);
-                    keyBytes = CryptoUtil.sha256(keyBytes);
-                    ivBytes = Arrays.copyOf(CryptoUtil.ripemd160(fileId.getBytes()), 16);
-                }
-            } catch (Exception e) {
-                stop();
-                resolveFileCallback.onFail("AES file key error");
+                new StripedReedSolomon(totalDataPointers, totalParityPointers, shardSize, MemoryBudget.global())
+                        .decodeMissing(downFileChannel, sizes, present);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                resolveFileCallback.onFail(genaroStrError(GENARO_FILE_RECOVER_ERROR));
+                return;
+            } catch (OutOfMemoryError e) {
+                resolveFileCallback.onFail(genaroStrError(GENARO_OUTOFMEMORY_ERROR));
                 return;
-            }
-
-            SecretKeySpec keySpec = new SecretKeySpec(keyBytes, "AES");
-            IvParameterSpec ivSpec = new IvParameterSpec(ivBytes);
-
-            javax.crypto.Cipher cipher;
-            try {
-                cipher = javax.crypto.Cipher.getInstance("AES/CTR/NoPadding");
-                cipher.init(DECRYPT_MODE, keySpec, ivSpec);
             } catch (Exception e) {
-                stop();
-                resolveFileCallback.onFail("Init decryption context error");
+                Log.e(TAG, "Recover the file failed: " + e.getMessage());
+                resolveFileCallback.onFail(genaroStrError(GENARO_FILE_RECOVER_ERROR));
                 return;
             }
 
-            // decrypt file use key and ctr
+            // decrypt the recovered data shards
             try {
-                cypherIns = new CipherInputStream(Channels.newInputStream(downFileChannel), cipher);
-
-                // transfer InputStream to FileChannel
-                downFileChannel.transferFrom(Channels.newChannel(cypherIns), 0, fileSize);
-            } catch (Exception e) {
-                stop();
-                resolveFileCallback.onFail(genaroStrError(GENARO_FILE_DECRYPTION_ERROR));
+                for (int i = 0; i < totalDataPointers; i++) {
+                    if (!present[i]) {
+                        assembleShard(i, pointers.get(i).getSize());
+                    }
+                }
+            } catch (GenaroRuntimeException e) {
+                resolveFileCallback.onFail(e.getMessage());
                 return;
             }
+        } else if (progress.getTransferredBytes() < fileSize) {
+            Log.w(TAG, "Downloaded bytes is less than file size, downloaded bytes: " + progress.getTransferredBytes() + ", fileSize: " + fileSize);
+        } else {
+            // do nothing
         }
 
-        // calc sha256 of the downloaded data
-        try {
-            sha256 = CryptoUtil.sha256OfFile(downFileChannel);
-        } catch (Exception e) {
+        byte[] sha256 = streamer != null ? streamer.digest(totalDataPointers) : assembler.digest(totalDataPointers);
+        if (sha256 == null) {
             stop();
-            resolveFileCallback.onFail(genaroStrError(GENARO_FILE_READ_ERROR));
+            resolveFileCallback.onFail(genaroStrError(GENARO_FILE_SHARD_MISSING_ERROR));
             return;
         }
 
@@ -970,24 +1809,14 @@ public final class Downloader implements Runnable {
             return;
         }
 
-        FileChannel destFileChannel;
         try {
-            if (overwrite) {
-                destFileChannel = FileChannel.open(Paths.get(path), StandardOpenOption.CREATE,
-                        StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
-            } else {
-                destFileChannel = FileChannel.open(Paths.get(path), StandardOpenOption.CREATE,
-                        StandardOpenOption.WRITE);
+            // the download to a stream is delivered already
+            if (memory != null) {
+                memory.truncate(fileSize);
+            } else if (path != null) {
+                assembler.commit(path, fileSize, overwrite);
             }
-
-            downFileChannel.transferTo(0, downFileChannel.size(), destFileChannel);
-
-            if (cypherIns != null) {
-                cypherIns.close();
-            }
-
-            downFileChannel.close();
-            destFileChannel.close();
+            isFinished = true;
         } catch (IOException e) {
             stop();
             resolveFileCallback.onFail(genaroStrError(GENARO_FILE_WRITE_ERROR));
@@ -1028,34 +1857,83 @@ public final class Downloader implements Runnable {
         }
 
         // cancel requestShard
-        if(futureAllFromRequestShard != null && !futureAllFromRequestShard.isDone()) {
+        if(!futureAllFromRequestShard.isDone()) {
             // cancel the okhttp3 transfer
             BasicUtil.cancelOkHttpCallWithTag(downHttpClient, "requestShard");
             BasicUtil.cancelOkHttpCallWithTag(downHttpClient, "sendExchangeReport");
             BasicUtil.cancelOkHttpCallWithTag(downHttpClient, "requestReplacePointer");
+            BasicUtil.cancelOkHttpCallWithTag(downHttpClient, "requestMirrors");
 
             // will cause a CancellationException, and will be caught on futureAllFromRequestShard.get
             futureAllFromRequestShard.cancel(true);
         }
 
+        // the shards waiting for a slot give up
+        concurrency.shutdown();
         downloaderExecutor.shutdown();
+        watchdog.shutdownNow();
     }
 
     // Non-blocking
     public void cancel() {
         isCanceled = true;
         stop();
+        // started at once if queued
+        if (ticket != null) {
+            ticket.cancel();
+        }
     }
 
     // wait for finish
     public void join() {
         if(futureBelongsTo != null) {
             futureBelongsTo.join();
+            // wait for the callbacks to be delivered
+            dispatcher.awaitTermination();
+        }
+    }
+
+    // the temp file and the journal are kept only if the download failed
+    private void closeTempFile() {
+        if (downFileChannel == null) {
+            return;
+        }
+
+        try {
+            downFileChannel.close();
+        } catch (IOException e) {
+            // do nothing
+        }
+
+        // nothing is kept of the download into memory
+        if (path != null && (isFinished || isCanceled)) {
+            try {
+                Files.deleteIfExists(Paths.get(tempPath));
+            } catch (IOException e) {
+                // do nothing
+            }
+            journal.delete();
         }
     }
 
     @Override
     public void run() {
-        start();
+        try {
+            start();
+        } finally {
+            // delete the part file if the download is not finished
+            if (assembler != null) {
+                assembler.abort();
+            }
+            closeTempFile();
+            // the shards of the stream not delivered
+            streamReserved.keySet().forEach(this::releaseStreamMemory);
+            watchdog.shutdownNow();
+            if (mirrorSelector != null) {
+                mirrorSelector.shutdown();
+            }
+            dispatcher.shutdown();
+            farmerRegistry.save();
+        }
     }
 }
@@ -0,0 +1,308 @@
+package network.genaro.storage;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import android.util.Log;
+
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Process-wide performance statistics of farmers, fed by every shard transfer.
+ *
+ * Throughput, latency and failure rate are exponentially weighted moving averages, so the recent transfers
+ * weigh more. The statistics are persisted to a small json file(per user in the temp dir by default), so a new process
+ * does not need to relearn which farmers are slow or dead.
+ */
+final class FarmerRegistry {
+    private static final String TAG = "FarmerRegistry";
+
+    // the weight of a new sample
+    static final double GENARO_FARMER_EWMA_ALPHA = 0.3;
+    // a farmer is excluded if its failure rate is at least GENARO_FARMER_BAD_FAILURE_RATE after GENARO_FARMER_MIN_SAMPLES
+    // transfers, until it has not been seen for GENARO_FARMER_EXCLUDE_EXPIRY milliseconds
+    static final double GENARO_FARMER_BAD_FAILURE_RATE = 0.5;
+    static final int GENARO_FARMER_MIN_SAMPLES = 2;
+    static final long GENARO_FARMER_EXCLUDE_EXPIRY = 24 * 60 * 60 * 1000L;
+    // the farmers not seen for GENARO_FARMER_EXPIRY milliseconds are forgotten
+    static final long GENARO_FARMER_EXPIRY = 7 * 24 * 60 * 60 * 1000L;
+    // at most GENARO_FARMER_MAX_EXCLUDES farmers are excluded, to keep the queries short
+    static final int GENARO_FARMER_MAX_EXCLUDES = 20;
+    // the statistics are saved after every GENARO_FARMER_SAVE_INTERVAL updates, and when a transfer ends
+    static final int GENARO_FARMER_SAVE_INTERVAL = 32;
+
+    private static final FarmerRegistry INSTANCE = new FarmerRegistry();
+
+    private final Map<String, FarmerStats> stats = new ConcurrentHashMap<>();
+    // per user by default, the users of a machine do not share the temp file
+    private volatile String storePath = System.getProperty("java.io.tmpdir") + File.separator + "genaro-farmers-" +
+            System.getProperty("user.name", "default") + ".json";
+    private boolean isLoaded = false;
+    private int unsavedUpdates = 0;
+
+    // saved as json by its public getters
+    @JsonIgnoreProperties(ignoreUnknown = true)
+    static final class FarmerStats {
+        // bytes per millisecond, 0 if unknown
+        private double throughput;
+        // milliseconds, 0 if unknown
+        private double latency;
+        private double failureRate;
+        private long lastSeen;
+        private int samples;
+
+        public double getThroughput() {
+            return throughput;
+        }
+
+        void setThroughput(double throughput) {
+            this.throughput = throughput;
+        }
+
+        public double getLatency() {
+            return latency;
+        }
+
+        void setLatency(double latency) {
+            this.latency = latency;
+        }
+
+        public double getFailureRate() {
+            return failureRate;
+        }
+
+        void setFailureRate(double failureRate) {
+            this.failureRate = failureRate;
+        }
+
+        public long getLastSeen() {
+            return lastSeen;
+        }
+
+        void setLastSeen(long lastSeen) {
+            this.lastSeen = lastSeen;
+        }
+
+        public int getSamples() {
+            return samples;
+        }
+
+        void setSamples(int samples) {
+            this.samples = samples;
+        }
+
+        private FarmerStats copy() {
+            FarmerStats copy = new FarmerStats();
+            copy.throughput = throughput;
+            copy.latency = latency;
+            copy.failureRate = failureRate;
+            copy.lastSeen = lastSeen;
+            copy.samples = samples;
+            return copy;
+        }
+    }
+
+    private FarmerRegistry() { }
+
+    static FarmerRegistry getInstance() {
+        INSTANCE.loadIfNeeded();
+        return INSTANCE;
+    }
+
+    // use another file, the statistics in memory are kept
+    synchronized void setStorePath(final String storePath) {
+        this.storePath = storePath;
+        isLoaded = false;
+        loadIfNeeded();
+    }
+
+    private static double ewma(final double average, final double sample, final boolean isFirst) {
+        return isFirst ? sample : average + GENARO_FARMER_EWMA_ALPHA * (sample - average);
+    }
+
+    /**
+     * @param latency milliseconds to the first byte, negative if unknown
+     */
+    void recordSuccess(final String nodeId, final long bytes, final long millis, final long latency) {
+        if (nodeId == null) {
+            return;
+        }
+
+        FarmerStats farmer = stats.computeIfAbsent(nodeId, id -> new FarmerStats());
+        synchronized (farmer) {
+            farmer.throughput = ewma(farmer.throughput, bytes * 1.0 / Math.max(1, millis), farmer.throughput <= 0);
+            if (latency >= 0) {
+                farmer.latency = ewma(farmer.latency, latency, farmer.latency <= 0);
+            }
+            farmer.failureRate = ewma(farmer.failureRate, 0, farmer.samples == 0);
+            farmer.lastSeen = System.currentTimeMillis();
+            farmer.samples++;
+        }
+        onUpdate();
+    }
+
+    void recordFailure(final String nodeId) {
+        if (nodeId == null) {
+            return;
+        }
+
+        FarmerStats farmer = stats.computeIfAbsent(nodeId, id -> new FarmerStats());
+        synchronized (farmer) {
+            farmer.failureRate = ewma(farmer.failureRate, 1, farmer.samples == 0);
+            farmer.lastSeen = System.currentTimeMillis();
+            farmer.samples++;
+        }
+        onUpdate();
+    }
+
+    /**
+     * @return a snapshot of the statistics of the farmer, null if unknown
+     */
+    FarmerStats get(final String nodeId) {
+        FarmerStats farmer = nodeId == null ? null : stats.get(nodeId);
+        if (farmer == null) {
+            return null;
+        }
+        synchronized (farmer) {
+            return farmer.copy();
+        }
+    }
+
+    boolean isBad(final String nodeId) {
+        FarmerStats farmer = get(nodeId);
+        return farmer != null && farmer.samples >= GENARO_FARMER_MIN_SAMPLES &&
+                farmer.failureRate >= GENARO_FARMER_BAD_FAILURE_RATE &&
+                System.currentTimeMillis() - farmer.lastSeen < GENARO_FARMER_EXCLUDE_EXPIRY;
+    }
+
+    /**
+     * The estimated milliseconds to transfer bytes with the farmer, the unknown farmers are estimated
+     * as the median known farmer, so they still have a chance to be picked.
+     */
+    double estimate(final String nodeId, final long bytes) {
+        FarmerStats farmer = get(nodeId);
+        if (farmer == null || farmer.throughput <= 0) {
+            List<Double> estimates = new ArrayList<>();
+            for (FarmerStats known : stats.values()) {
+                synchronized (known) {
+                    if (known.throughput > 0) {
+                        estimates.add(known.latency + bytes / known.throughput);
+                    }
+                }
+            }
+            if (estimates.isEmpty()) {
+                return 0;
+            }
+            estimates.sort(null);
+            return estimates.get(estimates.size() / 2);
+        }
+
+        // a failure costs another transfer at least
+        return (farmer.latency + bytes / farmer.throughput) / Math.max(0.1, 1 - farmer.failureRate);
+    }
+
+    /**
+     * @return the farmers failed in this transfer and the bad farmers known, at most GENARO_FARMER_MAX_EXCLUDES
+     * bad farmers are added, the worst first
+     */
+    List<String> buildExcludeList(final Collection<String> failedFarmerIds) {
+        List<String> exclude = new ArrayList<>(failedFarmerIds);
+
+        List<Map.Entry<String, FarmerStats>> bad = new ArrayList<>();
+        for (String nodeId : stats.keySet()) {
+            if (!exclude.contains(nodeId) && isBad(nodeId)) {
+                FarmerStats farmer = get(nodeId);
+                if (farmer != null) {
+                    bad.add(new AbstractMap.SimpleEntry<>(nodeId, farmer));
+                }
+            }
+        }
+        bad.sort(Comparator.comparingDouble((Map.Entry<String, FarmerStats> entry) -> entry.getValue().failureRate).reversed());
+
+        for (int i = 0; i < bad.size() && i < GENARO_FARMER_MAX_EXCLUDES; i++) {
+            exclude.add(bad.get(i).getKey());
+        }
+
+        return exclude;
+    }
+
+    private void onUpdate() {
+        boolean shouldSave;
+        synchronized (this) {
+            shouldSave = ++unsavedUpdates >= GENARO_FARMER_SAVE_INTERVAL;
+        }
+        if (shouldSave) {
+            save();
+        }
+    }
+
+    private synchronized void loadIfNeeded() {
+        if (isLoaded) {
+            return;
+        }
+        isLoaded = true;
+
+        Path path = Paths.get(storePath);
+        if (!Files.exists(path)) {
+            return;
+        }
+
+        try {
+            Map<String, FarmerStats> saved = new ObjectMapper().readValue(path.toFile(),
+                    new TypeReference<Map<String, FarmerStats>>(){});
+            long now = System.currentTimeMillis();
+            saved.forEach((nodeId, farmer) -> {
+                if (now - farmer.lastSeen < GENARO_FARMER_EXPIRY) {
+                    stats.putIfAbsent(nodeId, farmer);
+                }
+            });
+        } catch (IOException e) {
+            Log.w(TAG, "Load farmer statistics failed: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Save the statistics, the farmers not seen for GENARO_FARMER_EXPIRY milliseconds are dropped.
+     */
+    synchronized void save() {
+        unsavedUpdates = 0;
+
+        long now = System.currentTimeMillis();
+        Map<String, FarmerStats> snapshot = new HashMap<>();
+        List<String> expired = new ArrayList<>();
+        stats.forEach((nodeId, farmer) -> {
+            synchronized (farmer) {
+                if (now - farmer.lastSeen < GENARO_FARMER_EXPIRY) {
+                    snapshot.put(nodeId, farmer.copy());
+                } else {
+                    expired.add(nodeId);
+                }
+            }
+        });
+        // a farmer updated meanwhile is kept
+        expired.forEach(nodeId -> stats.computeIfPresent(nodeId, (id, farmer) -> {
+            synchronized (farmer) {
+                return now - farmer.lastSeen < GENARO_FARMER_EXPIRY ? farmer : null;
+            }
+        }));
+
+        try {
+            BasicUtil.writeJsonAtomically(snapshot, storePath);
+        } catch (IOException e) {
+            Log.w(TAG, "Save farmer statistics failed: " + e.getMessage());
+        }
+    }
+}
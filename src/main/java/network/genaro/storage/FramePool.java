@@ -0,0 +1,145 @@
+package network.genaro.storage;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import android.util.Log;
+
+/**
+ * A pool of frames requested from bridge in advance, so that an upload does not wait for requestNewFrame.
+ *
+ * The pool is refilled in background whenever a frame is taken, and checked every GENARO_FRAME_POOL_CHECK_INTERVAL
+ * seconds. A frame kept longer than GENARO_FRAME_POOL_MAX_AGE is discarded, the oldest frame is taken first. A failed
+ * refill is not retried until the next take or check.
+ */
+final class FramePool {
+    private static final String TAG = "FramePool";
+
+    // milliseconds a frame is kept in the pool at most
+    static final long GENARO_FRAME_POOL_MAX_AGE = 10 * 60 * 1000;
+    // seconds between the checks of the pool
+    static final int GENARO_FRAME_POOL_CHECK_INTERVAL = 30;
+
+    private static final class PooledFrame {
+        final Frame frame;
+        final long created = System.currentTimeMillis();
+
+        PooledFrame(final Frame frame) {
+            this.frame = frame;
+        }
+    }
+
+    private final Genaro bridge;
+    private final int size;
+
+    private final Deque<PooledFrame> frames = new ArrayDeque<>();
+    private boolean isRefilling = false;
+    private boolean isShutdown = false;
+
+    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, TAG);
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    FramePool(final Genaro bridge, final int size) {
+        this.bridge = bridge;
+        this.size = size;
+    }
+
+    void start() {
+        executor.scheduleWithFixedDelay(this::check, 0, GENARO_FRAME_POOL_CHECK_INTERVAL, TimeUnit.SECONDS);
+    }
+
+    /**
+     * @return the oldest frame not stale, null if the pool is empty
+     */
+    Frame take() {
+        PooledFrame pooled;
+        synchronized (this) {
+            discardStale();
+            pooled = frames.pollFirst();
+        }
+
+        refill();
+        return pooled == null ? null : pooled.frame;
+    }
+
+    synchronized int available() {
+        return frames.size();
+    }
+
+    void shutdown() {
+        synchronized (this) {
+            isShutdown = true;
+            frames.clear();
+        }
+        executor.shutdownNow();
+    }
+
+    private void check() {
+        synchronized (this) {
+            discardStale();
+        }
+        refill();
+    }
+
+    // must be called with the lock held
+    private void discardStale() {
+        long now = System.currentTimeMillis();
+        while (!frames.isEmpty() && now - frames.peekFirst().created > GENARO_FRAME_POOL_MAX_AGE) {
+            frames.pollFirst();
+        }
+    }
+
+    private void refill() {
+        synchronized (this) {
+            if (isShutdown || isRefilling || frames.size() >= size) {
+                return;
+            }
+            isRefilling = true;
+        }
+
+        try {
+            executor.execute(this::fill);
+        } catch (RejectedExecutionException e) {
+            synchronized (this) {
+                isRefilling = false;
+            }
+        }
+    }
+
+    private void fill() {
+        try {
+            while (true) {
+                synchronized (this) {
+                    if (isShutdown || frames.size() >= size) {
+                        return;
+                    }
+                }
+
+                Frame frame;
+                try {
+                    frame = bridge.requestNewFrame(null);
+                } catch (Exception e) {
+                    Log.w(TAG, "Request frame for the pool failed: " + e.getMessage());
+                    return;
+                }
+
+                synchronized (this) {
+                    if (!isShutdown) {
+                        frames.addLast(new PooledFrame(frame));
+                    }
+                }
+            }
+        } finally {
+            synchronized (this) {
+                isRefilling = false;
+            }
+        }
+    }
+}
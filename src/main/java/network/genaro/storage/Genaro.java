@@ -12,15 +12,23 @@ import java.net.InetSocketAddress;
 import java.net.Proxy;
 import java.net.SocketTimeoutException;
 import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
 import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Paths;
 import java.security.NoSuchAlgorithmException;
 import java.util.Arrays;
 import java.util.List;
 import java.util.ArrayList;
+import java.util.Map;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeoutException;
+import java.util.function.Consumer;
 
 import android.util.Log;
 
@@ -53,8 +61,10 @@ import network.genaro.storage.GenaroCallback.RenameBucketCallback;
 import network.genaro.storage.GenaroCallback.ListFilesCallback;
 import network.genaro.storage.GenaroCallback.ListMirrorsCallback;
 import network.genaro.storage.GenaroCallback.DeleteFileCallback;
+import network.genaro.storage.GenaroCallback.ResolveBytesCallback;
 import network.genaro.storage.GenaroCallback.ResolveFileCallback;
 import network.genaro.storage.GenaroCallback.StoreFileCallback;
+import network.genaro.storage.GenaroCallback.StoreFilesCallback;
 
 final class GenaroRuntimeException extends RuntimeException {
     GenaroRuntimeException(String message){
@@ -323,7 +333,8 @@ final class Pointer {
     private String token;
     private String operation;
     private Farmer farmer;
-    private long downloadedSize;
+    // also read by the watchdog of Downloader
+    private volatile long downloadedSize;
 
     private boolean isReplaced = false;
     private PointerStatus status;
@@ -585,6 +596,8 @@ final class ShardTracker {
 public final class Genaro {
     private static final String TAG = "Genaro";
     private static final int POINT_PAGE_COUNT = 3;
+    // the count of pointer pages requested from bridge at the same time
+    private static final int POINT_PAGE_CONCURRENCY = 4;
 
     private String bridgeUrl;
     private GenaroWallet wallet;
@@ -599,6 +612,24 @@ public final class Genaro {
     private String proxyAddr;
     private int proxyPort;
 
+    // the count of pointers requested in one page
+    private int pointPageCount = POINT_PAGE_COUNT;
+    // whether to download the shards from the fastest mirrors
+    private boolean preferFastMirrors = false;
+    // the count of connections to download a large shard, each one fetches a byte range
+    private int rangeConnections = 1;
+    // limit the bandwidth of all the uploads and all the downloads of this instance
+    private final BandwidthLimiter uploadLimiter = new BandwidthLimiter(null);
+    private final BandwidthLimiter downloadLimiter = new BandwidthLimiter(null);
+    // governs the bridge requests of this instance and all its transfers
+    private final BridgeGovernor bridgeGovernor = new BridgeGovernor(this);
+    // frames requested in advance for the uploads, null if disabled
+    private FramePool framePool;
+    // the verified shards kept on disk for the transfers, null if disabled
+    private ShardCache shardCache;
+    // admits the transfers under the global limits
+    private final TransferManager transferManager = new TransferManager();
+
     public Genaro(final String bridgeUrl) {
         init(bridgeUrl);
     }
@@ -629,6 +660,7 @@ public final class Genaro {
                 .connectTimeout(GENARO_OKHTTP_CONNECT_TIMEOUT, TimeUnit.SECONDS)
                 .writeTimeout(GENARO_OKHTTP_WRITE_TIMEOUT, TimeUnit.SECONDS)
                 .readTimeout(GENARO_OKHTTP_READ_TIMEOUT, TimeUnit.SECONDS)
+                .addInterceptor(bridgeGovernor)
                 .build();
     }
 
@@ -638,7 +670,8 @@ public final class Genaro {
         OkHttpClient.Builder builder = new OkHttpClient.Builder()
                 .connectTimeout(GENARO_OKHTTP_CONNECT_TIMEOUT, TimeUnit.SECONDS)
                 .writeTimeout(GENARO_OKHTTP_WRITE_TIMEOUT, TimeUnit.SECONDS)
-                .readTimeout(GENARO_OKHTTP_READ_TIMEOUT, TimeUnit.SECONDS);
+                .readTimeout(GENARO_OKHTTP_READ_TIMEOUT, TimeUnit.SECONDS)
+                .addInterceptor(bridgeGovernor);
 
         // set proxy server
         if (proxyAddr != null && !proxyAddr.trim().isEmpty() && proxyPort > 0 && proxyPort <= 65535) {
@@ -715,6 +748,172 @@ public final class Genaro {
         return proxyPort;
     }
 
+    public int getPointPageCount() {
+        return pointPageCount;
+    }
+
+    public void setPointPageCount(final int pointPageCount) {
+        if (pointPageCount > 0) {
+            this.pointPageCount = pointPageCount;
+        }
+    }
+
+    public boolean isPreferFastMirrors() {
+        return preferFastMirrors;
+    }
+
+    public void setPreferFastMirrors(final boolean preferFastMirrors) {
+        this.preferFastMirrors = preferFastMirrors;
+    }
+
+    public int getRangeConnections() {
+        return rangeConnections;
+    }
+
+    public void setRangeConnections(final int rangeConnections) {
+        if (rangeConnections > 0) {
+            this.rangeConnections = rangeConnections;
+        }
+    }
+
+    BandwidthLimiter getUploadLimiter() {
+        return uploadLimiter;
+    }
+
+    BandwidthLimiter getDownloadLimiter() {
+        return downloadLimiter;
+    }
+
+    OkHttpClient getHttpClient() {
+        return genaroHttpClient;
+    }
+
+    BridgeGovernor getBridgeGovernor() {
+        return bridgeGovernor;
+    }
+
+    // the bridge requests in flight and per second of this instance and all its transfers, 0 rate means unlimited
+    public void setBridgeRequestLimits(final int maxConcurrency, final int maxRate) {
+        bridgeGovernor.setLimits(maxConcurrency, maxRate);
+    }
+
+    // the count of frames requested in advance for the uploads, 0 disables the pool
+    public synchronized void setFramePoolSize(final int framePoolSize) {
+        if (framePool != null) {
+            framePool.shutdown();
+            framePool = null;
+        }
+
+        if (framePoolSize > 0) {
+            framePool = new FramePool(this, framePoolSize);
+            framePool.start();
+        }
+    }
+
+    // a frame of the pool, null if the pool is disabled or empty
+    Frame takePooledFrame() {
+        FramePool pool;
+        synchronized (this) {
+            pool = framePool;
+        }
+        return pool == null ? null : pool.take();
+    }
+
+    /**
+     * Keep the verified shards of the transfers in dir, shared with the other instances and processes using the
+     * same dir. The least recently used shards are deleted when the cache grows above maxSize bytes.
+     *
+     * @param dir the directory of the cache, null disables the cache
+     */
+    public synchronized void setShardCache(final String dir, final long maxSize) throws GenaroException {
+        if (dir == null || maxSize <= 0) {
+            shardCache = null;
+            return;
+        }
+
+        try {
+            shardCache = new ShardCache(Paths.get(dir), maxSize);
+        } catch (IOException e) {
+            throw new GenaroException("Create shard cache error: " + e.getMessage());
+        }
+    }
+
+    // null if the shard cache is disabled
+    synchronized ShardCache getShardCache() {
+        return shardCache;
+    }
+
+    /**
+     * Limit the transfers running at the same time, the others wait in the queue(by priority, the smaller first).
+     *
+     * @param maxTransfers the max count of running transfers, 0 means unlimited
+     * @param maxInFlightBytes the max total bytes of the running transfers, 0 means unlimited
+     * @param maxTempBytes the max total bytes of the temp files of the running transfers, 0 means unlimited
+     */
+    public void setTransferLimits(final int maxTransfers, final long maxInFlightBytes, final long maxTempBytes) {
+        transferManager.setLimits(maxTransfers, maxInFlightBytes, maxTempBytes);
+    }
+
+    // the queued transfers are not started until resumeTransfers, the running ones go on
+    public void pauseTransfers() {
+        transferManager.pause();
+    }
+
+    public void resumeTransfers() {
+        transferManager.resume();
+    }
+
+    public int getQueuedTransfers() {
+        return transferManager.getQueued();
+    }
+
+    public int getRunningTransfers() {
+        return transferManager.getRunning();
+    }
+
+    /**
+     * Set the memory budget of the transfer buffers of the process, shared by all the Genaro instances.
+     *
+     * @param maxBytes the max bytes, 0 means unlimited
+     */
+    public static void setMemoryBudget(final long maxBytes) {
+        MemoryBudget.global().setLimit(maxBytes);
+    }
+
+    // the bytes of the transfer buffers in use now, and the most in use at the same time
+    public static long getMemoryInUse() {
+        return MemoryBudget.global().getReserved();
+    }
+
+    public static long getPeakMemoryInUse() {
+        return MemoryBudget.global().getPeak();
+    }
+
+    public long getUploadRateLimit() {
+        return uploadLimiter.getRate();
+    }
+
+    // bytes per second of all the uploads, 0 means unlimited, takes effect at once
+    public void setUploadRateLimit(final long bytesPerSecond) {
+        uploadLimiter.setRate(bytesPerSecond);
+    }
+
+    public long getDownloadRateLimit() {
+        return downloadLimiter.getRate();
+    }
+
+    // bytes per second of all the downloads, 0 means unlimited, takes effect at once
+    public void setDownloadRateLimit(final long bytesPerSecond) {
+        downloadLimiter.setRate(bytesPerSecond);
+    }
+
+    // the statistics of farmers are shared by all the Genaro instances of the process
+    public void setFarmerStatsPath(final String farmerStatsPath) {
+        if (farmerStatsPath != null) {
+            FarmerRegistry.getInstance().setStorePath(farmerStatsPath);
+        }
+    }
+
     static String genaroStrError(final int error_code)
     {
         switch(error_code) {
@@ -947,7 +1146,7 @@ public final class Genaro {
 
                 return file;
             } catch (IOException e) {
-                if (downloader.isCanceled()) {
+                if (downloader != null && downloader.isCanceled()) {
                     throw new GenaroRuntimeException(genaroStrError(GENARO_TRANSFER_CANCELED));
                 } else {
                     throw new GenaroRuntimeException(genaroStrError(GENARO_BRIDGE_REQUEST_ERROR));
@@ -962,119 +1161,109 @@ public final class Genaro {
     }
 
     List<Pointer> requestPointers(final Downloader downloader, final String bucketId, final String fileId) throws InterruptedException, ExecutionException, TimeoutException {
-        CompletableFuture<List<Pointer>> fu = CompletableFuture.supplyAsync(() -> {
-            verifyInit(true);
-            List<Pointer> ps= new ArrayList<>();
-
-            int skipCount = 0;
-            while (true) {
-                Log.i(TAG, "Requesting next set of pointers, total pointers: " + skipCount);
-
-                List<Pointer> psr;
-                try {
-                    psr = this.requestPointersRaw(downloader, bucketId, fileId, POINT_PAGE_COUNT, skipCount);
-                } catch (Exception e) {
-                    if(e instanceof ExecutionException && e.getCause() instanceof GenaroRuntimeException) {
-                        throw new GenaroRuntimeException(e.getCause().getMessage());
-                    } else {
-                        throw new GenaroRuntimeException(genaroStrError(GENARO_BRIDGE_REQUEST_ERROR));
-                    }
-                }
+        CompletableFuture<List<Pointer>> fu = requestPointers(downloader, bucketId, fileId, null);
 
-                if(psr.size() == 0) {
-                    Log.i(TAG, "Finished requesting pointers");
-                    break;
-                }
-
-                skipCount += psr.size();
-                ps.addAll(psr);
-            }
+        // wait it double seconds
+        return fu.get(2 * GENARO_HTTP_TIMEOUT, TimeUnit.SECONDS);
+    }
 
-            if (ps.size() == 0) {
-                throw new GenaroRuntimeException(genaroStrError(GENARO_BRIDGE_REQUEST_ERROR));
-            }
+    /**
+     * Request the pointers of a file, several pages are requested at the same time.
+     *
+     * @param pageConsumer called with every page as soon as it arrives(pages may arrive out of order), can be null
+     * @return A CompletableFuture which completes with all the pointers sorted by index.
+     */
+    CompletableFuture<List<Pointer>> requestPointers(final Downloader downloader, final String bucketId, final String fileId,
+                                                     final Consumer<List<Pointer>> pageConsumer) {
+        return requestPointers(downloader, bucketId, fileId, pageConsumer, null, -1);
+    }
 
-            return ps;
-        });
+    /**
+     * Same as above, but the pages whose pointers are all in knownPointers are not requested.
+     *
+     * @param knownPointers index -> pointer, the pointers known already, can be null
+     * @param knownTotal the total count of pointers, -1 if unknown
+     */
+    CompletableFuture<List<Pointer>> requestPointers(final Downloader downloader, final String bucketId, final String fileId,
+                                                     final Consumer<List<Pointer>> pageConsumer,
+                                                     final Map<Integer, Pointer> knownPointers, final int knownTotal) {
+        verifyInit(true);
+        PointerSource source = new PointerSource(this, downloader, bucketId, fileId, pointPageCount, POINT_PAGE_CONCURRENCY, pageConsumer,
+                knownPointers, knownTotal);
+        CompletableFuture<List<Pointer>> fu = source.start();
 
         if(downloader != null) {
             downloader.setFutureGetPointers(fu);
         }
 
-        // wait it double seconds
-        return fu.get(2 * GENARO_HTTP_TIMEOUT, TimeUnit.SECONDS);
+        return fu;
     }
 
-    private List<Pointer> requestPointersRaw(final Downloader downloader, final String bucketId, final String fileId, final int limit, final int skipCount)
-            throws InterruptedException, ExecutionException, TimeoutException {
-        CompletableFuture<List<Pointer>> fu = CompletableFuture.supplyAsync(() -> {
-            verifyInit(true);
-            String queryArgs = String.format("limit=%d&skip=%d", limit, skipCount);
-            String url = String.format("/buckets/%s/files/%s", bucketId, fileId);
-            String path = String.format("%s?%s", url, queryArgs);
-            String signature;
-            try {
-                signature = signRequest("GET", url, queryArgs);
-            } catch (Exception e) {
-                throw new GenaroRuntimeException(genaroStrError(GENARO_ALGORITHM_ERROR));
-            }
-            String pubKey = getPublicKeyHexString();
-            Request request = new Request.Builder()
-                    .tag("requestPointersRaw")
-                    .url(bridgeUrl + path)
-                    .header("x-signature", signature)
-                    .header("x-pubkey", pubKey)
-                    .get()
-                    .build();
+    List<Pointer> requestPointersRaw(final Downloader downloader, final String bucketId, final String fileId, final int limit, final int skipCount) {
+        verifyInit(true);
+        String queryArgs = String.format("limit=%d&skip=%d", limit, skipCount);
+        String url = String.format("/buckets/%s/files/%s", bucketId, fileId);
+        String path = String.format("%s?%s", url, queryArgs);
+        String signature;
+        try {
+            signature = signRequest("GET", url, queryArgs);
+        } catch (Exception e) {
+            throw new GenaroRuntimeException(genaroStrError(GENARO_ALGORITHM_ERROR));
+        }
+        String pubKey = getPublicKeyHexString();
+        Request request = new Request.Builder()
+                .tag("requestPointersRaw")
+                .url(bridgeUrl + path)
+                .header("x-signature", signature)
+                .header("x-pubkey", pubKey)
+                .get()
+                .build();
 
-            OkHttpClient okHttpClient;
-            if(downloader != null) {
-                okHttpClient = downloader.getDownHttpClient();
-            } else {
-                okHttpClient = genaroHttpClient;
-            }
+        OkHttpClient okHttpClient;
+        if(downloader != null) {
+            okHttpClient = downloader.getDownHttpClient();
+        } else {
+            okHttpClient = genaroHttpClient;
+        }
 
-            try (Response response = okHttpClient.newCall(request).execute()) {
-                int code = response.code();
-                String responseBody = response.body().string();
-                ObjectMapper om = new ObjectMapper();
-                JsonNode bodyNode = om.readTree(responseBody);
+        try (Response response = okHttpClient.newCall(request).execute()) {
+            int code = response.code();
+            String responseBody = response.body().string();
+            ObjectMapper om = new ObjectMapper();
+            JsonNode bodyNode = om.readTree(responseBody);
 
-                Log.i(TAG, String.format("Finished request pointers - JSON Response %s", responseBody));
+            Log.i(TAG, String.format("Finished request pointers - JSON Response %s", responseBody));
 
-                if (code == 429 || code == 420) {
-                    if (bodyNode.has("error")) {
-                        Log.e(TAG, bodyNode.get("error").asText());
-                    }
-                    throw new GenaroRuntimeException(genaroStrError(GENARO_BRIDGE_RATE_ERROR));
-                } else if (code != 200) {
-                    if (bodyNode.has("error")) {
-                        Log.e(TAG, bodyNode.get("error").asText());
-                    }
-                    throw new GenaroRuntimeException(genaroStrError(GENARO_BRIDGE_POINTER_ERROR));
+            if (code == 429 || code == 420) {
+                if (bodyNode.has("error")) {
+                    Log.e(TAG, bodyNode.get("error").asText());
                 }
+                throw new GenaroRuntimeException(genaroStrError(GENARO_BRIDGE_RATE_ERROR));
+            } else if (code != 200) {
+                if (bodyNode.has("error")) {
+                    Log.e(TAG, bodyNode.get("error").asText());
+                }
+                throw new GenaroRuntimeException(genaroStrError(GENARO_BRIDGE_POINTER_ERROR));
+            }
 
-                List<Pointer> pointers = om.readValue(responseBody, new TypeReference<List<Pointer>>(){});
-                pointers.stream().forEach(pointer -> {
-                    if (pointer.getToken() == null || pointer.getFarmer() == null) {
-                        // Update status so that it will be retried, do not set to POINTER_MISSING, because it can be replaced
-                        pointer.setStatus(POINTER_ERROR_REPORTED);
-                    }
+            List<Pointer> pointers = om.readValue(responseBody, new TypeReference<List<Pointer>>(){});
+            pointers.stream().forEach(pointer -> {
+                if (pointer.getToken() == null || pointer.getFarmer() == null) {
+                    // Update status so that it will be retried, do not set to POINTER_MISSING, because it can be replaced
+                    pointer.setStatus(POINTER_ERROR_REPORTED);
+                }
 
-                    pointer.setReport(new GenaroExchangeReport());
-                });
+                pointer.setReport(new GenaroExchangeReport());
+            });
 
-                return pointers;
-            } catch (IOException e) {
-                if (downloader.isCanceled()) {
-                    throw new GenaroRuntimeException(genaroStrError(GENARO_TRANSFER_CANCELED));
-                } else {
-                    throw new GenaroRuntimeException(genaroStrError(GENARO_BRIDGE_REQUEST_ERROR));
-                }
+            return pointers;
+        } catch (IOException e) {
+            if (downloader != null && downloader.isCanceled()) {
+                throw new GenaroRuntimeException(genaroStrError(GENARO_TRANSFER_CANCELED));
+            } else {
+                throw new GenaroRuntimeException(genaroStrError(GENARO_BRIDGE_REQUEST_ERROR));
             }
-        });
-
-        return fu.get(GENARO_HTTP_TIMEOUT, TimeUnit.SECONDS);
+        }
     }
 
     boolean isFileExist(final Uploader uploader, final String bucketId, final String encryptedFileName) throws InterruptedException, ExecutionException, TimeoutException {
@@ -1179,7 +1368,7 @@ public final class Genaro {
                     throw new GenaroRuntimeException(genaroStrError(GENARO_BRIDGE_FRAME_ERROR));
                 }
             } catch (IOException e) {
-                if (uploader.isCanceled()) {
+                if (uploader != null && uploader.isCanceled()) {
                     throw new GenaroRuntimeException(genaroStrError(GENARO_TRANSFER_CANCELED));
                 } else {
                     throw new GenaroRuntimeException(genaroStrError(GENARO_BRIDGE_REQUEST_ERROR));
@@ -1631,6 +1820,22 @@ public final class Genaro {
         });
     }
 
+    // the transfer starts when admitted by the transfer manager, its size is unknown until the file info arrives
+    private Downloader submit(final Downloader downloader) {
+        TransferManager.Ticket ticket = transferManager.submit(downloader, -1, 0);
+        downloader.setTicket(ticket);
+        if (ticket.isQueued()) {
+            transferManager.execute(downloader::prefetchFileInfo);
+        }
+        return downloader;
+    }
+
+    Uploader submit(final Uploader uploader) {
+        TransferManager.Ticket ticket = transferManager.submit(uploader, uploader.estimateSize(), uploader.estimateTempSize());
+        uploader.setTicket(ticket);
+        return uploader;
+    }
+
     /**
      * @brief Download a file
      *
@@ -1647,10 +1852,107 @@ public final class Genaro {
     public Downloader resolveFile(final String bucketId, final String fileId, final String filePath, final boolean overwrite,
                                   final boolean isDecrypt, final String keyBase16, final String ctrBase16, final ResolveFileCallback callback) throws GenaroException {
         Downloader downloader = new Downloader(this, bucketId, fileId, filePath, overwrite, isDecrypt, keyBase16, ctrBase16, callback);
-        CompletableFuture<Void> fu = CompletableFuture.runAsync(downloader);
-        downloader.setFutureBelongsTo(fu);
+        return submit(downloader);
+    }
 
-        return downloader;
+    /**
+     * @brief Resume an interrupted download of a file, the shards downloaded and verified before are not downloaded again
+     *
+     * @param[in] bucketId The bucket id
+     * @param[in] fileId The file id
+     * @param[in] filePath The file path, the same as the interrupted download
+     * @param[in] overwrite Whether to overwrite if exists
+     * @param[in] key The key of AES for decryption
+     * @param[in] ctr The ctr of AES for decryption
+     * @param[in] isDecrypt Whether to decrypt the downloaded data
+     * @param[in] callback The callback on progress or when complete
+     * @return A Downloader.
+     */
+    public Downloader resumeDownload(final String bucketId, final String fileId, final String filePath, final boolean overwrite,
+                                     final boolean isDecrypt, final String keyBase16, final String ctrBase16, final ResolveFileCallback callback) throws GenaroException {
+        Downloader downloader = new Downloader(this, bucketId, fileId, filePath, overwrite, isDecrypt, keyBase16, ctrBase16, callback);
+        downloader.setResume(true);
+        return submit(downloader);
+    }
+
+    /**
+     * @brief Download a file into memory, without any temp file
+     *
+     * @param[in] bucketId The bucket id
+     * @param[in] fileId The file id
+     * @param[in] isDecrypt Whether to decrypt the downloaded data
+     * @param[in] keyBase16 The key of AES for decryption, in base16
+     * @param[in] ctrBase16 The ctr of AES for decryption, in base16
+     * @param[in] callback The callback on progress or when complete
+     * @return A Downloader.
+     */
+    public Downloader resolveBytes(final String bucketId, final String fileId, final boolean isDecrypt, final String keyBase16,
+                                   final String ctrBase16, final ResolveBytesCallback callback) throws GenaroException {
+        Downloader downloader = new Downloader(this, bucketId, fileId, isDecrypt, keyBase16, ctrBase16, callback);
+        return submit(downloader);
+    }
+
+    /**
+     * @brief Open a stored file for random access(blocking), only the parts read are downloaded
+     *
+     * @param[in] bucketId The bucket id
+     * @param[in] fileId The file id
+     * @return A read-only channel of the plain data, to be closed by the caller.
+     */
+    public SeekableByteChannel openRemote(final String bucketId, final String fileId) throws GenaroException {
+        return openRemote(bucketId, fileId, true, null, null);
+    }
+
+    /**
+     * @brief Open a stored file for random access(blocking), only the parts read are downloaded
+     *
+     * @param[in] bucketId The bucket id
+     * @param[in] fileId The file id
+     * @param[in] isDecrypt Whether to decrypt the downloaded data
+     * @param[in] key The key of AES for decryption
+     * @param[in] ctr The ctr of AES for decryption
+     * @return A read-only channel of the plain data, to be closed by the caller.
+     */
+    public SeekableByteChannel openRemote(final String bucketId, final String fileId, final boolean isDecrypt, final String keyBase16,
+                                          final String ctrBase16) throws GenaroException {
+        return RemoteFileChannel.open(this, bucketId, fileId, isDecrypt, keyBase16, ctrBase16);
+    }
+
+    /**
+     * @brief Download a file to a stream in file order, each part is delivered as soon as it and all the parts before
+     *        it are downloaded and verified
+     *
+     * @param[in] bucketId The bucket id
+     * @param[in] fileId The file id
+     * @param[in] sink The stream(blocking) the plain data is written to, not closed by the download
+     * @param[in] key The key of AES for decryption
+     * @param[in] ctr The ctr of AES for decryption
+     * @param[in] isDecrypt Whether to decrypt the downloaded data
+     * @param[in] callback The callback on progress or when complete
+     * @return A Downloader.
+     */
+    public Downloader resolveStream(final String bucketId, final String fileId, final WritableByteChannel sink, final boolean isDecrypt,
+                                    final String keyBase16, final String ctrBase16, final ResolveFileCallback callback) throws GenaroException {
+        Downloader downloader = new Downloader(this, bucketId, fileId, sink, isDecrypt, keyBase16, ctrBase16, callback);
+        return submit(downloader);
+    }
+
+    /**
+     * @brief Download a file to a stream in file order, each part is delivered as soon as it and all the parts before
+     *        it are downloaded and verified
+     *
+     * @param[in] bucketId The bucket id
+     * @param[in] fileId The file id
+     * @param[in] sink The stream the plain data is written to, not closed by the download
+     * @param[in] key The key of AES for decryption
+     * @param[in] ctr The ctr of AES for decryption
+     * @param[in] isDecrypt Whether to decrypt the downloaded data
+     * @param[in] callback The callback on progress or when complete
+     * @return A Downloader.
+     */
+    public Downloader resolveStream(final String bucketId, final String fileId, final OutputStream sink, final boolean isDecrypt,
+                                    final String keyBase16, final String ctrBase16, final ResolveFileCallback callback) throws GenaroException {
+        return resolveStream(bucketId, fileId, sink == null ? null : Channels.newChannel(sink), isDecrypt, keyBase16, ctrBase16, callback);
     }
 
     /**
@@ -1668,10 +1970,109 @@ public final class Genaro {
     public Uploader storeFile(final boolean rs, final String fileOrData, final boolean isFilePath, final String fileName, final String bucketId,
                               EncryptionInfo ei, final StoreFileCallback callback) throws GenaroException {
         Uploader uploader = new Uploader(this, rs, fileOrData, isFilePath, fileName, bucketId, ei, callback);
-        CompletableFuture<Void> fu = CompletableFuture.runAsync(uploader);
-        uploader.setFutureBelongsTo(fu);
+        return submit(uploader);
+    }
 
-        return uploader;
+    /**
+     * @brief Upload the data in memory, without any temp file
+     *
+     * @param[in] rs Whether to use Reed-Solomon to generate parity shards
+     * @param[in] data The data, not to be modified until the upload is finished
+     * @param[in] fileName The file name
+     * @param[in] bucketId The bucket id
+     * @param[in] ei The encryption info for file encryption and decryption(can be generated by function generateEncryptionInfo)
+     * @param[in] callback The callback on progress or when complete
+     * @return A Uploader.
+     */
+    public Uploader storeBytes(final boolean rs, final byte[] data, final String fileName, final String bucketId,
+                               EncryptionInfo ei, final StoreFileCallback callback) throws GenaroException {
+        return storeBytes(rs, data == null ? null : ByteBuffer.wrap(data), fileName, bucketId, ei, callback);
+    }
+
+    /**
+     * @brief Upload the remaining bytes of a buffer, without any temp file
+     *
+     * @param[in] rs Whether to use Reed-Solomon to generate parity shards
+     * @param[in] data The data, not to be modified until the upload is finished
+     * @param[in] fileName The file name
+     * @param[in] bucketId The bucket id
+     * @param[in] ei The encryption info for file encryption and decryption(can be generated by function generateEncryptionInfo)
+     * @param[in] callback The callback on progress or when complete
+     * @return A Uploader.
+     */
+    public Uploader storeBytes(final boolean rs, final ByteBuffer data, final String fileName, final String bucketId,
+                               EncryptionInfo ei, final StoreFileCallback callback) throws GenaroException {
+        Uploader uploader = new Uploader(this, rs, data, fileName, bucketId, ei, callback);
+        return submit(uploader);
+    }
+
+    /**
+     * @brief Upload the data read from a stream until its end, encrypted and sharded on the fly without any temp file
+     *
+     * @param[in] source The stream(blocking), not closed by the upload
+     * @param[in] sizeHint The size expected of the data, 0 if unknown
+     * @param[in] fileName The file name
+     * @param[in] bucketId The bucket id
+     * @param[in] ei The encryption info for file encryption and decryption(can be generated by function generateEncryptionInfo)
+     * @param[in] callback The callback on progress or when complete
+     * @return A Uploader.
+     */
+    public Uploader storeStream(final ReadableByteChannel source, final long sizeHint, final String fileName, final String bucketId,
+                                EncryptionInfo ei, final StoreFileCallback callback) throws GenaroException {
+        Uploader uploader = new Uploader(this, source, sizeHint, fileName, bucketId, ei, callback);
+        return submit(uploader);
+    }
+
+    /**
+     * @brief Upload the data read from a stream until its end, encrypted and sharded on the fly without any temp file
+     *
+     * @param[in] source The stream, not closed by the upload
+     * @param[in] sizeHint The size expected of the data, 0 if unknown
+     * @param[in] fileName The file name
+     * @param[in] bucketId The bucket id
+     * @param[in] ei The encryption info for file encryption and decryption(can be generated by function generateEncryptionInfo)
+     * @param[in] callback The callback on progress or when complete
+     * @return A Uploader.
+     */
+    public Uploader storeStream(final InputStream source, final long sizeHint, final String fileName, final String bucketId,
+                                EncryptionInfo ei, final StoreFileCallback callback) throws GenaroException {
+        return storeStream(source == null ? null : Channels.newChannel(source), sizeHint, fileName, bucketId, ei, callback);
+    }
+
+    /**
+     * @brief Upload a file resumably, or resume its interrupted upload, the shards pushed before are not pushed again
+     *
+     * @param[in] rs Whether to use Reed-Solomon to generate parity shards
+     * @param[in] filePath The file path
+     * @param[in] fileName The file name
+     * @param[in] bucketId The bucket id
+     * @param[in] ei The encryption info of the interrupted upload
+     * @param[in] callback The callback on progress or when complete
+     * @return A Uploader.
+     */
+    public Uploader resumeUpload(final boolean rs, final String filePath, final String fileName, final String bucketId,
+                                 EncryptionInfo ei, final StoreFileCallback callback) throws GenaroException {
+        Uploader uploader = new Uploader(this, rs, filePath, true, fileName, bucketId, ei, callback);
+        uploader.setResume(true);
+        return submit(uploader);
+    }
+
+    /**
+     * @brief Upload several files to a bucket, the bucket and the file names are checked once for all the files
+     *
+     * @param[in] rs Whether to use Reed-Solomon to generate parity shards
+     * @param[in] filePaths The file paths
+     * @param[in] fileNames The file names, one for each file path
+     * @param[in] bucketId The bucket id
+     * @param[in] callback The callback on the progress and the result of each file, and when all complete
+     * @return A UploadBatch.
+     */
+    public UploadBatch storeFiles(final boolean rs, final List<String> filePaths, final List<String> fileNames, final String bucketId,
+                                  final StoreFilesCallback callback) throws GenaroException {
+        UploadBatch batch = new UploadBatch(this, rs, filePaths, fileNames, bucketId, callback);
+        // the batch only waits on its uploads, which are admitted by the transfer manager
+        transferManager.execute(batch);
+        return batch;
     }
 
     /**
@@ -54,6 +54,29 @@ public interface GenaroCallback {
         default void onProgress(float progress) { }
     }
 
+    interface ResolveBytesCallback {
+        default void onBegin() { }
+
+        /**
+         * called when download finish
+         *
+         * @param data the downloaded data
+         * @param sha256 sha256 of the downloaded data
+         */
+        default void onFinish(byte[] data, byte[] sha256) { }
+
+        default void onFail(String error) { }
+
+        default void onCancel() { }
+
+        /**
+         * called when progress update
+         *
+         * @param progress range from 0 to 1
+         */
+        default void onProgress(float progress) { }
+    }
+
     interface StoreFileCallback {
         default void onBegin(long fileSize) { }
 
@@ -76,4 +99,26 @@ public interface GenaroCallback {
          */
         default void onProgress(float progress) { }
     }
+
+    interface StoreFilesCallback {
+        /**
+         * called when the file of index is uploaded
+         *
+         * @param index the index of the file in the batch
+         * @param fileId file id
+         * @param sha256OfEncrypted sha256 of the encrypted file(not include the parity shards)
+         */
+        default void onFileFinish(int index, String fileId, byte[] sha256OfEncrypted) { }
+
+        // the upload of the file of index failed or was canceled
+        default void onFileFail(int index, String error) { }
+
+        default void onFileProgress(int index, float progress) { }
+
+        // called when all the files are done
+        default void onFinish(int finishedFiles, int failedFiles) { }
+
+        // the batch failed before any file was started(the bucket can not be listed)
+        default void onFail(String error) { }
+    }
 }
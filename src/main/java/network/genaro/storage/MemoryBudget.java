@@ -0,0 +1,113 @@
+package network.genaro.storage;
+
+/**
+ * The memory budget of the transfer buffers in the process(the Reed-Solomon stripes, the shards of the streams kept
+ * in memory), shared by all the transfers of all the Genaro instances. A stage reserves the bytes before it allocates
+ * them and releases them after, it waits while the budget is exhausted, or degrades: the Reed-Solomon coding takes a
+ * smaller stripe, the streams keep fewer shards.
+ *
+ * A reservation is always granted if nothing else is reserved, however large it is, so that a stage never waits
+ * forever. A limit of 0 means unlimited.
+ */
+final class MemoryBudget {
+    // a quarter of the heap
+    static final long GENARO_MEMORY_BUDGET_DEFAULT = Runtime.getRuntime().maxMemory() / 4;
+
+    private static final MemoryBudget GLOBAL = new MemoryBudget(GENARO_MEMORY_BUDGET_DEFAULT);
+
+    private long limit;
+    private long reserved = 0;
+    // the most bytes reserved at the same time
+    private long peak = 0;
+
+    MemoryBudget(final long limit) {
+        this.limit = limit;
+    }
+
+    static MemoryBudget global() {
+        return GLOBAL;
+    }
+
+    synchronized void setLimit(final long limit) {
+        this.limit = limit;
+        notifyAll();
+    }
+
+    synchronized long getLimit() {
+        return limit;
+    }
+
+    synchronized long getReserved() {
+        return reserved;
+    }
+
+    synchronized long getPeak() {
+        return peak;
+    }
+
+    /**
+     * Reserve bytes, wait at most timeout milliseconds for them.
+     *
+     * @return whether the bytes are reserved
+     */
+    synchronized boolean reserve(final long bytes, final long timeout) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeout;
+        while (!fits(bytes)) {
+            long left = deadline - System.currentTimeMillis();
+            if (left <= 0) {
+                return false;
+            }
+            wait(left);
+        }
+        add(bytes);
+        return true;
+    }
+
+    /**
+     * Reserve bytes if they fit at once.
+     */
+    synchronized boolean tryReserve(final long bytes) {
+        if (!fits(bytes)) {
+            return false;
+        }
+        add(bytes);
+        return true;
+    }
+
+    /**
+     * Reserve bytes even if the budget is exhausted, for what can not wait(it is still counted).
+     */
+    synchronized void forceReserve(final long bytes) {
+        add(bytes);
+    }
+
+    /**
+     * Reserve as many bytes as left in the budget, between min and max, wait until min bytes are left.
+     *
+     * @return the bytes reserved
+     */
+    synchronized long reserveUpTo(final long min, final long max) throws InterruptedException {
+        while (!fits(min)) {
+            wait();
+        }
+        long bytes = limit <= 0 ? max : Math.max(min, Math.min(max, limit - reserved));
+        add(bytes);
+        return bytes;
+    }
+
+    synchronized void release(final long bytes) {
+        reserved -= bytes;
+        notifyAll();
+    }
+
+    // must be called with the lock held
+    private boolean fits(final long bytes) {
+        return limit <= 0 || reserved == 0 || reserved + bytes <= limit;
+    }
+
+    // must be called with the lock held
+    private void add(final long bytes) {
+        reserved += bytes;
+        peak = Math.max(peak, reserved);
+    }
+}
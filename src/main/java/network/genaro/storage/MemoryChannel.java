@@ -0,0 +1,214 @@
+package network.genaro.storage;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
+
+/**
+ * A FileChannel kept in memory, so that the transfers of small objects(Genaro.storeBytes and Genaro.resolveBytes)
+ * run through the same code as the ones of files, without any temp file.
+ *
+ * The data can still be read after the channel is closed. map() and lock() are not supported, and the channel holds
+ * GENARO_MEMORY_CHANNEL_MAX_SIZE bytes at most.
+ */
+final class MemoryChannel extends FileChannel {
+    static final int GENARO_MEMORY_CHANNEL_MAX_SIZE = Integer.MAX_VALUE - 8;
+
+    private byte[] data;
+    private int size;
+    private int position = 0;
+
+    MemoryChannel() {
+        this.data = new byte[0];
+        this.size = 0;
+    }
+
+    // wrap data without copying
+    MemoryChannel(final byte[] data) {
+        this.data = data;
+        this.size = data.length;
+    }
+
+    // the data of the channel, not copied if the backing array has the same size
+    synchronized byte[] toByteArray() {
+        return data.length == size ? data : Arrays.copyOf(data, size);
+    }
+
+    @Override
+    public synchronized int read(final ByteBuffer dst) {
+        int readBytes = read(dst, position);
+        if (readBytes > 0) {
+            position += readBytes;
+        }
+        return readBytes;
+    }
+
+    @Override
+    public synchronized long read(final ByteBuffer[] dsts, final int offset, final int length) {
+        long total = 0;
+        for (int i = offset; i < offset + length; i++) {
+            int readBytes = read(dsts[i]);
+            if (readBytes == -1) {
+                return total == 0 ? -1 : total;
+            }
+            total += readBytes;
+            if (dsts[i].hasRemaining()) {
+                break;
+            }
+        }
+        return total;
+    }
+
+    @Override
+    public synchronized int read(final ByteBuffer dst, final long position) {
+        if (position < 0) {
+            throw new IllegalArgumentException("Negative position");
+        }
+        if (position >= size) {
+            return -1;
+        }
+
+        int readBytes = (int) Math.min(dst.remaining(), size - position);
+        dst.put(data, (int) position, readBytes);
+        return readBytes;
+    }
+
+    @Override
+    public synchronized int write(final ByteBuffer src) throws IOException {
+        int writtenBytes = write(src, position);
+        position += writtenBytes;
+        return writtenBytes;
+    }
+
+    @Override
+    public synchronized long write(final ByteBuffer[] srcs, final int offset, final int length) throws IOException {
+        long total = 0;
+        for (int i = offset; i < offset + length; i++) {
+            total += write(srcs[i]);
+        }
+        return total;
+    }
+
+    @Override
+    public synchronized int write(final ByteBuffer src, final long position) throws IOException {
+        if (position < 0) {
+            throw new IllegalArgumentException("Negative position");
+        }
+
+        int writtenBytes = src.remaining();
+        long end = position + writtenBytes;
+        if (end > GENARO_MEMORY_CHANNEL_MAX_SIZE) {
+            throw new IOException("Too large to be kept in memory");
+        }
+
+        if (end > data.length) {
+            data = Arrays.copyOf(data, (int) Math.max(end, Math.min((long) data.length * 2, GENARO_MEMORY_CHANNEL_MAX_SIZE)));
+        }
+        // the gap after the end is filled with zero, as a file does
+        if (position > size) {
+            Arrays.fill(data, size, (int) position, (byte) 0);
+        }
+
+        src.get(data, (int) position, writtenBytes);
+        size = (int) Math.max(size, end);
+        return writtenBytes;
+    }
+
+    @Override
+    public synchronized long position() {
+        return position;
+    }
+
+    @Override
+    public synchronized FileChannel position(final long newPosition) {
+        if (newPosition < 0 || newPosition > GENARO_MEMORY_CHANNEL_MAX_SIZE) {
+            throw new IllegalArgumentException("Invalid position");
+        }
+        position = (int) newPosition;
+        return this;
+    }
+
+    @Override
+    public synchronized long size() {
+        return size;
+    }
+
+    @Override
+    public synchronized FileChannel truncate(final long newSize) {
+        if (newSize < 0) {
+            throw new IllegalArgumentException("Negative size");
+        }
+        if (newSize < size) {
+            size = (int) newSize;
+        }
+        if (position > newSize) {
+            position = (int) newSize;
+        }
+        return this;
+    }
+
+    @Override
+    public void force(final boolean metaData) {
+        // nothing to flush
+    }
+
+    @Override
+    public synchronized long transferTo(final long position, final long count, final WritableByteChannel target) throws IOException {
+        if (position >= size) {
+            return 0;
+        }
+
+        ByteBuffer buffer = ByteBuffer.wrap(data, (int) position, (int) Math.min(count, size - position));
+        int total = buffer.remaining();
+        while (buffer.hasRemaining() && target.write(buffer) > 0) {
+            // write the rest
+        }
+        return total - buffer.remaining();
+    }
+
+    @Override
+    public synchronized long transferFrom(final ReadableByteChannel src, final long position, final long count) throws IOException {
+        if (position > size) {
+            return 0;
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate(CryptoUtil.BLOCK_BYTES);
+        long done = 0;
+        while (done < count) {
+            buffer.clear();
+            buffer.limit((int) Math.min(buffer.capacity(), count - done));
+            int readBytes = src.read(buffer);
+            if (readBytes == -1) {
+                break;
+            }
+            buffer.flip();
+            done += write(buffer, position + done);
+        }
+        return done;
+    }
+
+    @Override
+    public MappedByteBuffer map(final MapMode mode, final long position, final long size) {
+        throw new UnsupportedOperationException("Memory channel can not be mapped");
+    }
+
+    @Override
+    public FileLock lock(final long position, final long size, final boolean shared) {
+        throw new UnsupportedOperationException("Memory channel can not be locked");
+    }
+
+    @Override
+    public FileLock tryLock(final long position, final long size, final boolean shared) {
+        throw new UnsupportedOperationException("Memory channel can not be locked");
+    }
+
+    @Override
+    protected void implCloseChannel() {
+        // the data is kept for toByteArray
+    }
+}
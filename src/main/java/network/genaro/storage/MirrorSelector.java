@@ -0,0 +1,255 @@
+package network.genaro.storage;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import android.util.Log;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+
+/**
+ * Ranks the mirrors of every shard of a file, so that shards are downloaded from the nearest healthy copy.
+ *
+ * The mirrors(the established contracts of listMirrors) are requested once in advance, and every farmer is
+ * probed by a TCP connect concurrently. A farmer known by FarmerRegistry is ranked by its estimated transfer
+ * time, an unknown one by the median estimate plus its connect time, and an unreachable one is never preferred.
+ * The preferred mirror is got from bridge by excluding the mirrors ranked before it.
+ */
+final class MirrorSelector {
+    private static final String TAG = "MirrorSelector";
+
+    // milliseconds to wait for the connect of a probe
+    static final int GENARO_MIRROR_PROBE_TIMEOUT = 2000;
+    static final int GENARO_MIRROR_PROBE_CONCURRENCY = 8;
+    // milliseconds to wait for the mirrors of a shard to be probed before ranking them
+    static final int GENARO_MIRROR_RANK_TIMEOUT = 3000;
+    // the current farmer of a shard is switched only if the best mirror is GENARO_MIRROR_SWITCH_RATIO times faster
+    static final double GENARO_MIRROR_SWITCH_RATIO = 2.0;
+
+    private static final long UNREACHABLE = -1;
+
+    private final Genaro bridge;
+    private final OkHttpClient httpClient;
+    private final String bucketId;
+    private final String fileId;
+    // connect probes through a proxy measure the proxy, only the statistics are used then
+    private final boolean isProbing;
+    private final FarmerRegistry farmerRegistry = FarmerRegistry.getInstance();
+
+    // shard hash -> mirrors
+    private final Map<String, List<Farmer>> mirrors = new ConcurrentHashMap<>();
+    // node id -> milliseconds to connect, UNREACHABLE if failed
+    private final Map<String, CompletableFuture<Long>> probes = new ConcurrentHashMap<>();
+    private final CompletableFuture<Void> futureMirrors = new CompletableFuture<>();
+
+    private final ExecutorService probeExecutor = Executors.newFixedThreadPool(GENARO_MIRROR_PROBE_CONCURRENCY, runnable -> {
+        Thread thread = new Thread(runnable, TAG);
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    MirrorSelector(final Genaro bridge, final OkHttpClient httpClient, final String bucketId, final String fileId) {
+        this.bridge = bridge;
+        this.httpClient = httpClient;
+        this.bucketId = bucketId;
+        this.fileId = fileId;
+
+        String proxyAddr = bridge.getProxyAddr();
+        this.isProbing = proxyAddr == null || proxyAddr.trim().isEmpty();
+    }
+
+    /**
+     * Request the mirrors and probe them in background.
+     */
+    void prefetch() {
+        CompletableFuture.runAsync(() -> {
+            try {
+                requestMirrors();
+            } finally {
+                futureMirrors.complete(null);
+                // the probes queued are still run
+                probeExecutor.shutdown();
+            }
+        }, probeExecutor);
+    }
+
+    private void requestMirrors() {
+        String path = String.format("/buckets/%s/files/%s/mirrors", bucketId, fileId);
+        String signature;
+        try {
+            signature = bridge.signRequest("GET", path, "");
+        } catch (Exception e) {
+            return;
+        }
+
+        Request request = new Request.Builder()
+                .tag("requestMirrors")
+                .url(bridge.getBridgeUrl() + path)
+                .header("x-signature", signature)
+                .header("x-pubkey", bridge.getPublicKeyHexString())
+                .get()
+                .build();
+
+        try (Response response = httpClient.newCall(request).execute()) {
+            if (response.code() != 200 && response.code() != 304) {
+                Log.w(TAG, String.format("Request mirrors failed, code: %d", response.code()));
+                return;
+            }
+
+            // published at once, so that rank() never sees a partial list
+            Map<String, List<Farmer>> parsed = new HashMap<>();
+            ObjectMapper om = new ObjectMapper();
+            JsonNode bodyNode = om.readTree(response.body().string());
+            for (JsonNode itemNode : bodyNode) {
+                JsonNode establishedNode = itemNode.get("established");
+                if (establishedNode == null) {
+                    continue;
+                }
+
+                for (JsonNode subNode : establishedNode) {
+                    JsonNode hashNode = subNode.get("shardHash");
+                    JsonNode contactNode = subNode.get("contact");
+                    if (hashNode == null || contactNode == null) {
+                        continue;
+                    }
+
+                    Farmer farmer = om.treeToValue(contactNode, Farmer.class);
+                    if (farmer.getNodeID() == null || farmer.getAddress() == null || farmer.getPort() == null) {
+                        continue;
+                    }
+
+                    parsed.computeIfAbsent(hashNode.asText(), hash -> new ArrayList<>()).add(farmer);
+                    if (isProbing) {
+                        probes.computeIfAbsent(farmer.getNodeID(), id -> CompletableFuture.supplyAsync(() -> probe(farmer), probeExecutor));
+                    }
+                }
+            }
+            mirrors.putAll(parsed);
+        } catch (IOException e) {
+            Log.w(TAG, "Request mirrors failed: " + e.getMessage());
+        }
+    }
+
+    private static long probe(final Farmer farmer) {
+        long start = System.currentTimeMillis();
+        try (Socket socket = new Socket()) {
+            socket.connect(new InetSocketAddress(farmer.getAddress(), Integer.parseInt(farmer.getPort())), GENARO_MIRROR_PROBE_TIMEOUT);
+            return System.currentTimeMillis() - start;
+        } catch (IOException | IllegalArgumentException e) {
+            return UNREACHABLE;
+        }
+    }
+
+    /**
+     * @return the mirrors of shard not in excluded, ordered from the fastest, the unreachable ones are left out
+     */
+    List<Farmer> rank(final String shardHash, final long shardSize, final Collection<String> excluded) {
+        long deadline = System.currentTimeMillis() + GENARO_MIRROR_RANK_TIMEOUT;
+        try {
+            futureMirrors.get(GENARO_MIRROR_RANK_TIMEOUT, TimeUnit.MILLISECONDS);
+        } catch (Exception e) {
+            // rank what is known
+        }
+
+        List<Farmer> candidates = new ArrayList<>();
+        Map<Farmer, Double> scores = new HashMap<>();
+        for (Farmer farmer : mirrors.getOrDefault(shardHash, Collections.emptyList())) {
+            if (excluded.contains(farmer.getNodeID()) || farmerRegistry.isBad(farmer.getNodeID())) {
+                continue;
+            }
+
+            double score = score(farmer, shardSize, deadline);
+            if (score >= 0) {
+                candidates.add(farmer);
+                scores.put(farmer, score);
+            }
+        }
+
+        candidates.sort(Comparator.comparingDouble(scores::get));
+        return candidates;
+    }
+
+    /**
+     * @return the estimated milliseconds to download shardSize bytes from farmer, negative if unreachable
+     */
+    double score(final Farmer farmer, final long shardSize, final long deadline) {
+        String nodeId = farmer.getNodeID();
+        long connectTime = 0;
+        CompletableFuture<Long> probe = probes.get(nodeId);
+        if (probe != null) {
+            try {
+                connectTime = probe.get(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+            } catch (Exception e) {
+                // not probed yet
+                connectTime = 0;
+            }
+            if (connectTime == UNREACHABLE) {
+                return -1;
+            }
+        }
+
+        double estimate = farmerRegistry.estimate(nodeId, shardSize);
+        // the latency of a known farmer includes the connect time already
+        FarmerRegistry.FarmerStats stats = farmerRegistry.get(nodeId);
+        return stats != null && stats.getThroughput() > 0 ? estimate : estimate + connectTime;
+    }
+
+    /**
+     * @return the farmer ids to exclude so that bridge returns the best mirror of shard not in excluded,
+     * null if there is no such mirror, or the current farmer is good enough
+     */
+    List<String> preferredExcludes(final String shardHash, final long shardSize, final Farmer current, final List<String> excluded) {
+        List<Farmer> ranked = rank(shardHash, shardSize, excluded);
+        if (ranked.isEmpty()) {
+            return null;
+        }
+
+        Farmer best = ranked.get(0);
+        if (current != null) {
+            if (best.getNodeID().equals(current.getNodeID())) {
+                return null;
+            }
+
+            long deadline = System.currentTimeMillis() + GENARO_MIRROR_RANK_TIMEOUT;
+            double currentScore = excluded.contains(current.getNodeID()) ? -1 : score(current, shardSize, deadline);
+            double bestScore = score(best, shardSize, deadline);
+            if (currentScore >= 0 && currentScore <= bestScore * GENARO_MIRROR_SWITCH_RATIO) {
+                return null;
+            }
+        }
+
+        List<String> exclude = new ArrayList<>(excluded);
+        for (Farmer farmer : mirrors.getOrDefault(shardHash, Collections.emptyList())) {
+            if (farmer != best && !exclude.contains(farmer.getNodeID())) {
+                exclude.add(farmer.getNodeID());
+            }
+        }
+        if (current != null && !exclude.contains(current.getNodeID())) {
+            exclude.add(current.getNodeID());
+        }
+
+        return exclude;
+    }
+
+    void shutdown() {
+        probeExecutor.shutdownNow();
+    }
+}
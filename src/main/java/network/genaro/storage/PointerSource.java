@@ -0,0 +1,175 @@
+package network.genaro.storage;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.Consumer;
+
+import android.util.Log;
+
+import static network.genaro.storage.Parameters.*;
+import static network.genaro.storage.Genaro.genaroStrError;
+
+/**
+ * A streaming source of the pointers of a file.
+ *
+ * The pointers are requested from bridge page by page, at most "concurrency" pages are in flight at the same
+ * time. Every page is handed to the page consumer as soon as it arrives(pages may arrive out of order, the
+ * consumer is never called concurrently), and the future returned by start() completes with all the pointers
+ * sorted by index once the last page has arrived.
+ *
+ * If the pointers of some indexes are known already(a resumed download), a page whose pointers are all known is
+ * made up from them instead of requested.
+ */
+final class PointerSource {
+    private static final String TAG = "PointerSource";
+
+    private final Genaro bridge;
+    private final Downloader downloader;
+    private final String bucketId;
+    private final String fileId;
+    private final int pageSize;
+    private final int concurrency;
+    private final Consumer<List<Pointer>> pageConsumer;
+    // index -> pointer, the pointers known already
+    private final Map<Integer, Pointer> knownPointers;
+    // the total count of pointers if known, -1 if not
+    private final int knownTotal;
+
+    private final CompletableFuture<List<Pointer>> future = new CompletableFuture<>();
+    private final List<Pointer> pointers = new ArrayList<>();
+
+    // the next page to request
+    private int nextPage = 0;
+    // the count of the pages being requested
+    private int inFlightPages = 0;
+    // the index of the first page that is not full, all pages after it are empty
+    private int lastPage = Integer.MAX_VALUE;
+
+    PointerSource(final Genaro bridge, final Downloader downloader, final String bucketId, final String fileId,
+                  final int pageSize, final int concurrency, final Consumer<List<Pointer>> pageConsumer) {
+        this(bridge, downloader, bucketId, fileId, pageSize, concurrency, pageConsumer, null, -1);
+    }
+
+    PointerSource(final Genaro bridge, final Downloader downloader, final String bucketId, final String fileId,
+                  final int pageSize, final int concurrency, final Consumer<List<Pointer>> pageConsumer,
+                  final Map<Integer, Pointer> knownPointers, final int knownTotal) {
+        this.bridge = bridge;
+        this.downloader = downloader;
+        this.bucketId = bucketId;
+        this.fileId = fileId;
+        this.pageSize = pageSize;
+        this.concurrency = concurrency;
+        this.pageConsumer = pageConsumer;
+        this.knownPointers = knownPointers;
+        this.knownTotal = knownTotal;
+    }
+
+    CompletableFuture<List<Pointer>> start() {
+        synchronized (this) {
+            for (int i = 0; i < concurrency; i++) {
+                requestNextPage();
+            }
+        }
+
+        return future;
+    }
+
+    // must be called with the lock held
+    private void requestNextPage() {
+        if (future.isDone() || nextPage > lastPage) {
+            return;
+        }
+
+        final int page = nextPage++;
+        inFlightPages++;
+
+        final List<Pointer> known = knownPage(page);
+
+        // a known page is handed over asynchronously too, so that onPage never recurses
+        CompletableFuture.supplyAsync(() -> known != null ? known : requestPage(page))
+                .whenComplete((psr, e) -> onPage(page, psr, e));
+    }
+
+    // the pointers of page if all of them are known, null if not
+    private List<Pointer> knownPage(final int page) {
+        if (knownPointers == null || knownTotal <= 0) {
+            return null;
+        }
+
+        List<Pointer> psr = new ArrayList<>();
+        int end = Math.min(knownTotal, (page + 1) * pageSize);
+        for (int index = page * pageSize; index < end; index++) {
+            Pointer pointer = knownPointers.get(index);
+            if (pointer == null) {
+                return null;
+            }
+            psr.add(pointer);
+        }
+
+        return psr;
+    }
+
+    private List<Pointer> requestPage(final int page) {
+        int skipCount = page * pageSize;
+        Log.i(TAG, "Requesting next set of pointers, skip: " + skipCount);
+
+        for (int i = 0; ; i++) {
+            try {
+                return bridge.requestPointersRaw(downloader, bucketId, fileId, pageSize, skipCount);
+            } catch (GenaroRuntimeException e) {
+                if (future.isDone() || i == Downloader.GENARO_MAX_REQUEST_POINTERS - 1 ||
+                        e.getMessage().equals(genaroStrError(GENARO_TRANSFER_CANCELED))) {
+                    throw e;
+                }
+                // try again
+            }
+        }
+    }
+
+    private synchronized void onPage(final int page, final List<Pointer> psr, final Throwable e) {
+        inFlightPages--;
+
+        if (future.isDone()) {
+            return;
+        }
+
+        if (e != null) {
+            Throwable cause = (e instanceof CompletionException && e.getCause() != null) ? e.getCause() : e;
+            if (cause instanceof GenaroRuntimeException) {
+                future.completeExceptionally(cause);
+            } else {
+                future.completeExceptionally(new GenaroRuntimeException(genaroStrError(GENARO_BRIDGE_REQUEST_ERROR)));
+            }
+            return;
+        }
+
+        if (psr.size() < pageSize && page < lastPage) {
+            lastPage = page;
+        }
+
+        if (psr.size() > 0) {
+            pointers.addAll(psr);
+            if (pageConsumer != null) {
+                pageConsumer.accept(psr);
+            }
+        }
+
+        requestNextPage();
+
+        if (inFlightPages == 0 && nextPage > lastPage) {
+            Log.i(TAG, "Finished requesting pointers, total pointers: " + pointers.size());
+
+            if (pointers.size() == 0) {
+                future.completeExceptionally(new GenaroRuntimeException(genaroStrError(GENARO_BRIDGE_REQUEST_ERROR)));
+                return;
+            }
+
+            pointers.sort(Comparator.comparingInt(Pointer::getIndex));
+            future.complete(pointers);
+        }
+    }
+}
@@ -0,0 +1,277 @@
+package network.genaro.storage;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.util.Log;
+
+import org.xbill.DNS.utils.base16;
+
+import okhttp3.Call;
+import okhttp3.Callback;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+
+import static network.genaro.storage.Parameters.*;
+import static network.genaro.storage.Genaro.genaroStrError;
+
+/**
+ * Downloads a shard over several connections, each one fetches a byte range of it with a "Range" header and
+ * writes it into the channel at its own position.
+ *
+ * The first range is requested alone, the others are requested only if the farmer answers it with 206, if the
+ * farmer ignores "Range"(answers with 200), the whole shard is read from the first connection. Once all the
+ * ranges are written, the shard is read back from the channel and its RIPEMD-160(SHA-256) is verified.
+ */
+final class RangeFetcher {
+    private static final String TAG = "RangeFetcher";
+
+    // a range is read, written and reported a segment at a time
+    private static final int SEGMENT_SIZE = BandwidthLimiter.GENARO_LIMITER_SEGMENT;
+
+    public interface ProgressListener {
+        void transferred(long delta);
+    }
+
+    private final OkHttpClient httpClient;
+    private final String url;
+    private final Object tag;
+    private final FileChannel channel;
+    private final long position;
+    private final long size;
+    private final String hash;
+    // {start, end} of each range, relative to position, end exclusive
+    private final List<long[]> ranges = new ArrayList<>();
+    private final ProgressListener listener;
+
+    private final CompletableFuture<Void> result = new CompletableFuture<>();
+    // the ranges not written yet
+    private final AtomicInteger remaining = new AtomicInteger();
+    private final List<Call> calls = new ArrayList<>();
+    private boolean isCanceled = false;
+    // when the first response arrives, 0 if not yet
+    private volatile long responseTime;
+
+    /**
+     * @param hash the expected RIPEMD-160(SHA-256) of the shard, in lowercase hex
+     */
+    RangeFetcher(final OkHttpClient httpClient, final String url, final Object tag, final FileChannel channel, final long position,
+                 final long size, final String hash, final int connections, final ProgressListener listener) {
+        this.httpClient = httpClient;
+        this.url = url;
+        this.tag = tag;
+        this.channel = channel;
+        this.position = position;
+        this.size = size;
+        this.hash = hash;
+        this.listener = listener;
+
+        int count = (int) Math.max(1, Math.min(connections, size));
+        long rangeSize = (size + count - 1) / count;
+        for (long start = 0; start < size; start += rangeSize) {
+            ranges.add(new long[] {start, Math.min(size, start + rangeSize)});
+        }
+    }
+
+    int getRangeCount() {
+        return ranges.size();
+    }
+
+    long getResponseTime() {
+        return responseTime;
+    }
+
+    /**
+     * @return completes when the shard is written and verified, or exceptionally with a GenaroRuntimeException
+     */
+    CompletableFuture<Void> fetch() {
+        if (ranges.isEmpty()) {
+            result.completeExceptionally(new GenaroRuntimeException(genaroStrError(GENARO_FARMER_REQUEST_ERROR)));
+            return result;
+        }
+
+        remaining.set(ranges.size());
+        request(0);
+        return result;
+    }
+
+    private void request(final int rangeIndex) {
+        long[] range = ranges.get(rangeIndex);
+        Request request = new Request.Builder()
+                .tag(tag)
+                .url(url)
+                .header("Range", String.format("bytes=%d-%d", range[0], range[1] - 1))
+                .get()
+                .build();
+
+        Call call = httpClient.newCall(request);
+        synchronized (this) {
+            if (isCanceled || result.isDone()) {
+                return;
+            }
+            calls.add(call);
+        }
+
+        call.enqueue(new Callback() {
+            @Override
+            public void onFailure(Call call, IOException e) {
+                fail(e instanceof SocketTimeoutException ? GENARO_FARMER_TIMEOUT_ERROR : GENARO_FARMER_REQUEST_ERROR);
+            }
+
+            @Override
+            public void onResponse(Call call, Response response) {
+                try (Response res = response) {
+                    onRangeResponse(rangeIndex, res);
+                }
+            }
+        });
+    }
+
+    private void onRangeResponse(final int rangeIndex, final Response response) {
+        if (responseTime == 0) {
+            responseTime = System.currentTimeMillis();
+        }
+
+        int code = response.code();
+        long start;
+        long end;
+        if (code == 206) {
+            start = ranges.get(rangeIndex)[0];
+            end = ranges.get(rangeIndex)[1];
+            String contentRange = response.header("Content-Range");
+            if (contentRange == null || !contentRange.startsWith(String.format("bytes %d-%d/", start, end - 1))) {
+                fail(GENARO_FARMER_REQUEST_ERROR);
+                return;
+            }
+
+            // the farmer supports "Range", request the others
+            if (rangeIndex == 0) {
+                for (int i = 1; i < ranges.size(); i++) {
+                    request(i);
+                }
+            }
+        } else if (code == 200 && rangeIndex == 0) {
+            // the farmer ignores "Range", the whole shard comes from this connection
+            Log.i(TAG, "Range is not supported by the farmer, download the whole shard");
+            start = 0;
+            end = size;
+            remaining.set(1);
+        } else {
+            if (code == 401 || code == 403) {
+                fail(GENARO_FARMER_AUTH_ERROR);
+            } else if (code == 504) {
+                fail(GENARO_FARMER_TIMEOUT_ERROR);
+            } else {
+                fail(GENARO_FARMER_REQUEST_ERROR);
+            }
+            return;
+        }
+
+        byte[] buff = new byte[SEGMENT_SIZE];
+        long written = start;
+        try (InputStream is = response.body().byteStream()) {
+            int delta;
+            while (written < end && (delta = BasicUtil.readFully(is, buff, (int) Math.min(buff.length, end - written))) != -1) {
+                if (!write(ByteBuffer.wrap(buff, 0, delta), position + written)) {
+                    return;
+                }
+                written += delta;
+                listener.transferred(delta);
+            }
+        } catch (IOException e) {
+            fail(e instanceof SocketTimeoutException ? GENARO_FARMER_TIMEOUT_ERROR : GENARO_FARMER_REQUEST_ERROR);
+            return;
+        }
+
+        if (written != end) {
+            fail(GENARO_FARMER_INTEGRITY_ERROR);
+            return;
+        }
+
+        if (remaining.decrementAndGet() == 0) {
+            verify();
+        }
+    }
+
+    // nothing is written after the fetch is canceled or failed, so that the caller may reuse the region once cancel() returns
+    private synchronized boolean write(final ByteBuffer buffer, final long at) throws IOException {
+        if (isCanceled || result.isDone()) {
+            return false;
+        }
+        while (buffer.hasRemaining()) {
+            channel.write(buffer, at + buffer.position());
+        }
+        return true;
+    }
+
+    // the last range written, verify the whole shard
+    private void verify() {
+        try {
+            MessageDigest sha256Md = MessageDigest.getInstance("SHA-256");
+            ByteBuffer buffer = ByteBuffer.allocate(SEGMENT_SIZE);
+            long done = 0;
+            while (done < size) {
+                buffer.clear();
+                buffer.limit((int) Math.min(SEGMENT_SIZE, size - done));
+                int readBytes = channel.read(buffer, position + done);
+                if (readBytes == -1) {
+                    fail(GENARO_FARMER_INTEGRITY_ERROR);
+                    return;
+                }
+                sha256Md.update(buffer.array(), 0, readBytes);
+                done += readBytes;
+            }
+
+            String downloadedHash = base16.toString(CryptoUtil.ripemd160(sha256Md.digest())).toLowerCase();
+            if (!downloadedHash.equals(hash)) {
+                fail(GENARO_FARMER_INTEGRITY_ERROR);
+                return;
+            }
+        } catch (NoSuchAlgorithmException e) {
+            fail(GENARO_ALGORITHM_ERROR);
+            return;
+        } catch (IOException e) {
+            fail(GENARO_FILE_WRITE_ERROR);
+            return;
+        }
+
+        result.complete(null);
+    }
+
+    // the first failure wins, the other ranges are canceled
+    private void fail(final int errorStatus) {
+        if (result.completeExceptionally(new GenaroRuntimeException(genaroStrError(errorStatus)))) {
+            cancelCalls();
+        }
+    }
+
+    void cancel() {
+        synchronized (this) {
+            isCanceled = true;
+        }
+        cancelCalls();
+        result.completeExceptionally(new GenaroRuntimeException(genaroStrError(GENARO_TRANSFER_CANCELED)));
+    }
+
+    synchronized boolean isCanceled() {
+        return isCanceled;
+    }
+
+    private void cancelCalls() {
+        List<Call> inFlight;
+        synchronized (this) {
+            inFlight = new ArrayList<>(calls);
+        }
+        inFlight.forEach(Call::cancel);
+    }
+}
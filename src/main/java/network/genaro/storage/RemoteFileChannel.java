@@ -0,0 +1,376 @@
+package network.genaro.storage;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousCloseException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.channels.SeekableByteChannel;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import android.util.Log;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import okhttp3.OkHttpClient;
+
+import static javax.crypto.Cipher.DECRYPT_MODE;
+import static network.genaro.storage.Parameters.*;
+import static network.genaro.storage.Genaro.genaroStrError;
+
+/**
+ * A read-only channel over a stored file, only the data shards a read touches are downloaded.
+ *
+ * The pointers are requested from bridge a page at a time, the page of a shard when a read first needs it, so opening
+ * a large file does not wait for all its pointers. A read is mapped to the data shard at position / shardSize, the
+ * shard is downloaded whole(its hash covers the whole
+ * shard, a range of it can not be verified), verified and decrypted at its CTR offset. The plain shards are kept in a
+ * LRU cache of GENARO_REMOTE_CACHE_SHARDS shards, and a read following the last one starts the download of the next
+ * GENARO_REMOTE_READ_AHEAD shards in background. A failed shard is retried with a fresh pointer from bridge(the
+ * token of the first one may have expired).
+ *
+ * A read returns the bytes of one shard at most. The reads are one at a time, but the channel is not locked while a
+ * shard is downloaded, position() and close() do not wait for it.
+ */
+final class RemoteFileChannel implements SeekableByteChannel {
+    private static final String TAG = "RemoteFileChannel";
+
+    static final int GENARO_REMOTE_CACHE_SHARDS = 8;
+    static final int GENARO_REMOTE_READ_AHEAD = 2;
+    static final int GENARO_REMOTE_MAX_TRIES = 3;
+
+    private final Genaro bridge;
+    private final String bucketId;
+    private final String fileId;
+    private final OkHttpClient httpClient;
+    // index -> the data pointer, a pointer is replaced when it fails
+    private final Map<Integer, Pointer> pointers = new HashMap<>();
+    // page -> the request of the page of pointers, guarded by pointers
+    private final Map<Integer, CompletableFuture<Void>> pageRequests = new HashMap<>();
+    private final int pageCount;
+    private final int dataShards;
+    private final long shardSize;
+    private final long fileSize;
+    // null if the data should not be decrypted
+    private final SecretKeySpec keySpec;
+    private final byte[] iv;
+
+    // index -> the plain data shard, the least recently used is evicted first
+    private final Map<Integer, CompletableFuture<byte[]>> cache = new LinkedHashMap<Integer, CompletableFuture<byte[]>>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(final Map.Entry<Integer, CompletableFuture<byte[]>> eldest) {
+            return size() > GENARO_REMOTE_CACHE_SHARDS;
+        }
+    };
+
+    private final ExecutorService executor = Executors.newFixedThreadPool(GENARO_REMOTE_READ_AHEAD + 1, runnable -> {
+        Thread thread = new Thread(runnable, TAG);
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    // the reads are one at a time, the lock of the channel is not held while they wait for a shard
+    private final Object readLock = new Object();
+    private long position = 0;
+    // where the last read ended, a read from there is sequential
+    private long lastEnd = 0;
+    private boolean isOpen = true;
+
+    private RemoteFileChannel(final Genaro bridge, final String bucketId, final String fileId, final long fileSize,
+                              final int pageCount, final List<Pointer> firstPage, final SecretKeySpec keySpec, final byte[] iv) {
+        this.bridge = bridge;
+        this.bucketId = bucketId;
+        this.fileId = fileId;
+        this.httpClient = bridge.getHttpClient();
+        this.pageCount = pageCount;
+        this.keySpec = keySpec;
+        this.iv = iv;
+        this.fileSize = fileSize;
+        this.shardSize = firstPage.isEmpty() ? 0 : firstPage.get(0).getSize();
+        this.dataShards = shardSize <= 0 ? 0 : (int) ((fileSize + shardSize - 1) / shardSize);
+        addPage(firstPage);
+    }
+
+    /**
+     * Request the file info and the first page of pointers of the file(blocking).
+     */
+    static RemoteFileChannel open(final Genaro bridge, final String bucketId, final String fileId, final boolean isDecrypt,
+                                  final String keyStr, final String ctrStr) throws GenaroException {
+        int pageCount = bridge.getPointPageCount();
+        GenaroFile file;
+        List<Pointer> firstPage;
+        try {
+            file = bridge.getFileInfo(null, bucketId, fileId);
+            firstPage = bridge.requestPointersRaw(null, bucketId, fileId, pageCount, 0);
+        } catch (Exception e) {
+            throw new GenaroException(BasicUtil.bridgeFailure(e).getMessage());
+        }
+
+        SecretKeySpec keySpec = null;
+        byte[] iv = null;
+        if (isDecrypt) {
+            try {
+                byte[][] keyAndIv = Downloader.decryptionKey(bridge, bucketId, fileId, file, keyStr, ctrStr);
+                keySpec = new SecretKeySpec(keyAndIv[0], "AES");
+                iv = keyAndIv[1];
+            } catch (Exception e) {
+                throw new GenaroException("AES file key error");
+            }
+        }
+
+        // the size of the file is the size of its data shards
+        return new RemoteFileChannel(bridge, bucketId, fileId, file.getSize(), pageCount, firstPage, keySpec, iv);
+    }
+
+    @Override
+    public int read(final ByteBuffer dst) throws IOException {
+        synchronized (readLock) {
+            long readPosition;
+            int index;
+            int offset;
+            CompletableFuture<byte[]> future;
+            synchronized (this) {
+                ensureOpen();
+                if (position >= fileSize) {
+                    return -1;
+                }
+                if (!dst.hasRemaining()) {
+                    return 0;
+                }
+
+                readPosition = position;
+                index = (int) (position / shardSize);
+                offset = (int) (position % shardSize);
+
+                boolean isSequential = position == lastEnd;
+                future = shard(index);
+                if (isSequential) {
+                    for (int i = index + 1; i <= index + GENARO_REMOTE_READ_AHEAD && i < dataShards; i++) {
+                        shard(i);
+                    }
+                }
+            }
+
+            byte[] data;
+            try {
+                data = future.join();
+            } catch (Exception e) {
+                synchronized (this) {
+                    if (!isOpen) {
+                        throw new AsynchronousCloseException();
+                    }
+                    // a later read tries again
+                    cache.remove(index, future);
+                }
+                throw new IOException(BasicUtil.unwrap(e).getMessage());
+            }
+
+            int readBytes = Math.min(dst.remaining(), data.length - offset);
+            dst.put(data, offset, readBytes);
+            synchronized (this) {
+                position = readPosition + readBytes;
+                lastEnd = position;
+            }
+            return readBytes;
+        }
+    }
+
+    @Override
+    public int write(final ByteBuffer src) {
+        throw new NonWritableChannelException();
+    }
+
+    @Override
+    public synchronized long position() throws IOException {
+        ensureOpen();
+        return position;
+    }
+
+    @Override
+    public synchronized SeekableByteChannel position(final long newPosition) throws IOException {
+        ensureOpen();
+        if (newPosition < 0) {
+            throw new IllegalArgumentException("Negative position");
+        }
+        position = newPosition;
+        return this;
+    }
+
+    @Override
+    public long size() throws IOException {
+        ensureOpen();
+        return fileSize;
+    }
+
+    @Override
+    public SeekableByteChannel truncate(final long size) {
+        throw new NonWritableChannelException();
+    }
+
+    @Override
+    public synchronized boolean isOpen() {
+        return isOpen;
+    }
+
+    @Override
+    public synchronized void close() {
+        if (!isOpen) {
+            return;
+        }
+
+        isOpen = false;
+        // the reads waiting for a shard return
+        cache.values().forEach(future -> future.completeExceptionally(new AsynchronousCloseException()));
+        cache.clear();
+        executor.shutdownNow();
+    }
+
+    private void ensureOpen() throws ClosedChannelException {
+        if (!isOpen) {
+            throw new ClosedChannelException();
+        }
+    }
+
+    // must be called with the lock held
+    private CompletableFuture<byte[]> shard(final int index) {
+        return cache.computeIfAbsent(index, i -> CompletableFuture.supplyAsync(() -> fetch(i), executor));
+    }
+
+    // download, verify and decrypt the data shard of index
+    private byte[] fetch(final int index) {
+        GenaroRuntimeException error = null;
+        for (int i = 0; i < GENARO_REMOTE_MAX_TRIES; i++) {
+            Pointer pointer = pointer(index);
+            if (pointer != null && pointer.getToken() != null && pointer.getFarmer() != null) {
+                try {
+                    return decrypt(index, download(pointer));
+                } catch (GenaroRuntimeException e) {
+                    error = e;
+                    Log.w(TAG, String.format("Download data shard %d failed: %s", index, e.getMessage()));
+                }
+            }
+
+            if (i < GENARO_REMOTE_MAX_TRIES - 1) {
+                refreshPointer(index);
+            }
+        }
+
+        throw error != null ? error : new GenaroRuntimeException(genaroStrError(GENARO_FILE_SHARD_MISSING_ERROR));
+    }
+
+    // the pointer of the data shard of index, its page is requested if not yet(by the first thread needing it)
+    private Pointer pointer(final int index) {
+        int page = index / pageCount;
+        CompletableFuture<Void> request;
+        boolean isRequester = false;
+        synchronized (pointers) {
+            Pointer pointer = pointers.get(index);
+            if (pointer != null) {
+                return pointer;
+            }
+            request = pageRequests.get(page);
+            if (request == null) {
+                request = new CompletableFuture<>();
+                pageRequests.put(page, request);
+                isRequester = true;
+            }
+        }
+
+        if (isRequester) {
+            try {
+                addPage(bridge.requestPointersRaw(null, bucketId, fileId, pageCount, page * pageCount));
+                request.complete(null);
+            } catch (GenaroRuntimeException e) {
+                // a later read requests it again
+                synchronized (pointers) {
+                    pageRequests.remove(page, request);
+                }
+                request.completeExceptionally(e);
+                throw e;
+            }
+        } else {
+            try {
+                request.join();
+            } catch (CompletionException e) {
+                throw new GenaroRuntimeException(BasicUtil.unwrap(e).getMessage());
+            }
+        }
+
+        synchronized (pointers) {
+            return pointers.get(index);
+        }
+    }
+
+    private void addPage(final List<Pointer> page) {
+        synchronized (pointers) {
+            for (Pointer pointer : page) {
+                if (!pointer.isParity() && pointer.getIndex() < dataShards) {
+                    pointers.putIfAbsent(pointer.getIndex(), pointer);
+                }
+            }
+        }
+    }
+
+    private byte[] download(final Pointer pointer) {
+        Farmer farmer = pointer.getFarmer();
+        String url = String.format("http://%s:%s/shards/%s?token=%s", farmer.getAddress(), farmer.getPort(), pointer.getHash(), pointer.getToken());
+
+        MemoryChannel channel = new MemoryChannel();
+        ShardCache shardCache = bridge.getShardCache();
+        if (shardCache != null && shardCache.get(pointer.getHash(), pointer.getSize(), channel, 0)) {
+            return channel.toByteArray();
+        }
+
+        RangeFetcher fetcher = new RangeFetcher(httpClient, url, "requestShard", channel, 0, pointer.getSize(), pointer.getHash(), 1,
+                delta -> bridge.getDownloadLimiter().acquire(delta));
+        try {
+            fetcher.fetch().join();
+        } catch (Exception e) {
+            Throwable cause = BasicUtil.unwrap(e);
+            throw cause instanceof GenaroRuntimeException ? (GenaroRuntimeException) cause :
+                    new GenaroRuntimeException(genaroStrError(GENARO_FARMER_REQUEST_ERROR));
+        }
+
+        if (shardCache != null) {
+            shardCache.put(pointer.getHash(), channel, 0, pointer.getSize());
+        }
+        return channel.toByteArray();
+    }
+
+    private byte[] decrypt(final int index, final byte[] data) {
+        if (keySpec == null) {
+            return data;
+        }
+
+        try {
+            Cipher cipher = Cipher.getInstance("AES/CTR/NoPadding");
+            cipher.init(DECRYPT_MODE, keySpec, new IvParameterSpec(CryptoUtil.incrementCtrAesIv(iv, shardSize * index)));
+            return cipher.doFinal(data);
+        } catch (Exception e) {
+            throw new GenaroRuntimeException(genaroStrError(GENARO_FILE_DECRYPTION_ERROR));
+        }
+    }
+
+    // take a fresh pointer(with a new token, maybe of another farmer) of the data shard from bridge
+    private void refreshPointer(final int index) {
+        try {
+            List<Pointer> fresh = bridge.requestPointersRaw(null, bucketId, fileId, 1, index);
+            if (!fresh.isEmpty() && fresh.get(0).getIndex() == index) {
+                synchronized (pointers) {
+                    pointers.put(index, fresh.get(0));
+                }
+            }
+        } catch (GenaroRuntimeException e) {
+            Log.w(TAG, String.format("Refresh pointer %d failed: %s", index, e.getMessage()));
+        }
+    }
+}
@@ -0,0 +1,142 @@
+package network.genaro.storage;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Assembles the downloaded file from the verified data shards.
+ *
+ * Every data shard is decrypted at its CTR offset as soon as it is verified, and written straight into a part
+ * file next to the destination at the same offset. The SHA-256 of the plain data is fed in shard order by a
+ * ShardSequencer, the shards are read back from the part file(which is still in the page cache) to be hashed.
+ * commit() moves the part file to the destination atomically. The shards may be assembled into a channel given by
+ * the caller instead of a part file, commit() is not used then.
+ */
+final class ShardAssembler {
+    private final FileChannel source;
+    // null if the shards are assembled into a channel given by the caller
+    private final Path partPath;
+    private final FileChannel partChannel;
+    // null if the data should not be decrypted
+    private final SecretKeySpec keySpec;
+    private final byte[] iv;
+
+    // hashes the decrypted data shards in order, a shard is {position, size}
+    private final ShardSequencer<long[]> sequencer;
+
+    ShardAssembler(final FileChannel source, final String destPath, final SecretKeySpec keySpec, final byte[] iv)
+            throws IOException, NoSuchAlgorithmException {
+        this(source, Paths.get(destPath + ".genaropart"), null, keySpec, iv);
+    }
+
+    ShardAssembler(final FileChannel source, final FileChannel target, final SecretKeySpec keySpec, final byte[] iv)
+            throws IOException, NoSuchAlgorithmException {
+        this(source, null, target, keySpec, iv);
+    }
+
+    private ShardAssembler(final FileChannel source, final Path partPath, final FileChannel target, final SecretKeySpec keySpec,
+                           final byte[] iv) throws IOException, NoSuchAlgorithmException {
+        this.source = source;
+        this.partPath = partPath;
+        this.keySpec = keySpec;
+        this.iv = iv;
+        this.sequencer = new ShardSequencer<>(this::hash, null);
+        this.partChannel = target != null ? target : FileChannel.open(partPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.READ, StandardOpenOption.TRUNCATE_EXISTING);
+    }
+
+    // pre-size the part file once the file size is known
+    void setSize(final long fileSize) throws IOException {
+        if (fileSize > 0 && partChannel.size() < fileSize) {
+            partChannel.write(ByteBuffer.allocate(1), fileSize - 1);
+        }
+    }
+
+    /**
+     * Decrypt the data shard of index at position of the source into the part file.
+     */
+    void assemble(final int index, final long position, final long size) throws IOException, GeneralSecurityException {
+        ShardSequencer.decrypt(source, position, size, keySpec, iv, position, (plain, offset) -> {
+            long writePosition = position + offset;
+            while (plain.hasRemaining()) {
+                writePosition += partChannel.write(plain, writePosition);
+            }
+        });
+
+        sequencer.offer(index, new long[] {position, size});
+    }
+
+    // the shards are hashed in order from the part file
+    private void hash(final int index, final long[] shard, final MessageDigest sha256Md) throws IOException {
+        long position = shard[0];
+        long size = shard[1];
+        ByteBuffer buffer = ByteBuffer.allocate(ShardSequencer.SEGMENT_SIZE);
+        long done = 0;
+        while (done < size) {
+            buffer.clear();
+            buffer.limit((int) Math.min(ShardSequencer.SEGMENT_SIZE, size - done));
+            int readBytes = partChannel.read(buffer, position + done);
+            if (readBytes == -1) {
+                throw new IOException("Unexpected end of the part file");
+            }
+            sha256Md.update(buffer.array(), 0, readBytes);
+            done += readBytes;
+        }
+    }
+
+    /**
+     * @return the SHA-256 of the first "dataShards" shards, null if some of them are not assembled
+     */
+    byte[] digest(final int dataShards) {
+        return sequencer.digest(dataShards);
+    }
+
+    /**
+     * Truncate the part file to fileSize and move it to destPath.
+     */
+    void commit(final String destPath, final long fileSize, final boolean overwrite) throws IOException {
+        partChannel.truncate(fileSize);
+        partChannel.close();
+
+        Path dest = Paths.get(destPath);
+        try {
+            if (overwrite) {
+                Files.move(partPath, dest, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } else {
+                Files.move(partPath, dest, StandardCopyOption.ATOMIC_MOVE);
+            }
+        } catch (AtomicMoveNotSupportedException e) {
+            if (overwrite) {
+                Files.move(partPath, dest, StandardCopyOption.REPLACE_EXISTING);
+            } else {
+                Files.move(partPath, dest);
+            }
+        }
+    }
+
+    // delete the part file if not committed, the channel given by the caller is left as it is
+    void abort() {
+        if (partPath == null) {
+            return;
+        }
+
+        try {
+            partChannel.close();
+            Files.deleteIfExists(partPath);
+        } catch (IOException e) {
+            // do nothing
+        }
+    }
+}
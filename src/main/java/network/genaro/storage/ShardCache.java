@@ -0,0 +1,246 @@
+package network.genaro.storage;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+import android.util.Log;
+
+import org.spongycastle.util.encoders.Hex;
+
+/**
+ * A cache of verified encrypted shards on disk, shared by the transfers of the host. A shard is kept in a file
+ * named by its hash(RIPEMD-160(SHA-256) of the shard).
+ *
+ * A shard is written into a temp file and moved into place atomically, so that the other transfers(and processes)
+ * never see a partial one, and a shard taken from the cache is verified against its hash before use. The last use
+ * of a shard is the modification time of its file: a hit touches it, and when the cache grows above maxSize the
+ * least recently used shards are deleted until GENARO_SHARD_CACHE_LOW_WATERMARK of maxSize is left. The size is
+ * tracked in memory and counted again from the directory before an eviction, since the other processes change it.
+ */
+final class ShardCache {
+    private static final String TAG = "ShardCache";
+
+    static final double GENARO_SHARD_CACHE_LOW_WATERMARK = 0.9;
+    // milliseconds, a temp file older than that is left by a crashed transfer
+    static final long GENARO_SHARD_CACHE_TEMP_MAX_AGE = 60 * 60 * 1000;
+
+    private static final String TEMP_SUFFIX = ".tmp";
+    // a hash from bridge is never used as a path as it is
+    private static final Pattern HASH_PATTERN = Pattern.compile("[0-9a-f]{40}");
+
+    private static final class CachedShard {
+        final Path path;
+        final long size;
+        final long lastUsed;
+
+        CachedShard(final Path path, final long size, final long lastUsed) {
+            this.path = path;
+            this.size = size;
+            this.lastUsed = lastUsed;
+        }
+    }
+
+    private final Path dir;
+    private final long maxSize;
+    // the bytes in the cache, as far as this process knows
+    private long size;
+
+    ShardCache(final Path dir, final long maxSize) throws IOException {
+        this.dir = dir;
+        this.maxSize = maxSize;
+        Files.createDirectories(dir);
+        evict();
+    }
+
+    /**
+     * Copy the shard of hash into channel at position if it is cached and intact.
+     *
+     * @return whether the shard is copied, what is in the channel does not matter if not
+     */
+    boolean get(final String hash, final long shardSize, final FileChannel channel, final long position) {
+        if (hash == null || !HASH_PATTERN.matcher(hash).matches()) {
+            return false;
+        }
+
+        Path path = dir.resolve(hash);
+        try (FileChannel cached = FileChannel.open(path, StandardOpenOption.READ)) {
+            if (cached.size() != shardSize) {
+                return false;
+            }
+
+            MessageDigest sha256Md = MessageDigest.getInstance("SHA-256");
+            ByteBuffer buffer = ByteBuffer.allocate(CryptoUtil.BLOCK_BYTES);
+            long done = 0;
+            while (done < shardSize) {
+                buffer.clear();
+                buffer.limit((int) Math.min(buffer.capacity(), shardSize - done));
+                int readBytes = cached.read(buffer, done);
+                if (readBytes == -1) {
+                    return false;
+                }
+                buffer.flip();
+                sha256Md.update(buffer.array(), 0, readBytes);
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer, position + done + buffer.position());
+                }
+                done += readBytes;
+            }
+
+            if (!hash.equals(Hex.toHexString(CryptoUtil.ripemd160(sha256Md.digest())))) {
+                Log.w(TAG, String.format("Cached shard %s is damaged, delete it", hash));
+                deleteQuietly(path);
+                return false;
+            }
+        } catch (NoSuchFileException e) {
+            return false;
+        } catch (IOException | NoSuchAlgorithmException e) {
+            Log.w(TAG, String.format("Read cached shard %s failed: %s", hash, e.getMessage()));
+            return false;
+        }
+
+        touch(path);
+        return true;
+    }
+
+    /**
+     * Keep the verified shard of hash at position of channel.
+     */
+    void put(final String hash, final FileChannel channel, final long position, final long shardSize) {
+        if (hash == null || !HASH_PATTERN.matcher(hash).matches() || shardSize <= 0 || shardSize > maxSize) {
+            return;
+        }
+
+        Path path = dir.resolve(hash);
+        if (Files.exists(path)) {
+            touch(path);
+            return;
+        }
+
+        Path temp = null;
+        try {
+            temp = Files.createTempFile(dir, hash + ".", TEMP_SUFFIX);
+            try (FileChannel out = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+                ByteBuffer buffer = ByteBuffer.allocate(CryptoUtil.BLOCK_BYTES);
+                long done = 0;
+                while (done < shardSize) {
+                    buffer.clear();
+                    buffer.limit((int) Math.min(buffer.capacity(), shardSize - done));
+                    int readBytes = channel.read(buffer, position + done);
+                    if (readBytes == -1) {
+                        throw new IOException("Unexpected end of the shard");
+                    }
+                    buffer.flip();
+                    while (buffer.hasRemaining()) {
+                        out.write(buffer, done + buffer.position());
+                    }
+                    done += readBytes;
+                }
+            }
+
+            // the same shard put by another transfer at the same time is the same content
+            try {
+                Files.move(temp, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } catch (IOException e) {
+            Log.w(TAG, String.format("Cache shard %s failed: %s", hash, e.getMessage()));
+            if (temp != null) {
+                deleteQuietly(temp);
+            }
+            return;
+        }
+
+        boolean isFull;
+        synchronized (this) {
+            size += shardSize;
+            isFull = size > maxSize;
+        }
+        if (isFull) {
+            evict();
+        }
+    }
+
+    // count the cache again and delete the least recently used shards if it is full
+    private synchronized void evict() {
+        long now = System.currentTimeMillis();
+        List<CachedShard> shards = new ArrayList<>();
+        long total = 0;
+
+        try (Stream<Path> files = Files.list(dir)) {
+            for (Path path : (Iterable<Path>) files::iterator) {
+                BasicFileAttributes attrs;
+                try {
+                    attrs = Files.readAttributes(path, BasicFileAttributes.class);
+                } catch (IOException e) {
+                    // deleted by another process
+                    continue;
+                }
+                if (!attrs.isRegularFile()) {
+                    continue;
+                }
+
+                long modified = attrs.lastModifiedTime().toMillis();
+                if (path.getFileName().toString().endsWith(TEMP_SUFFIX)) {
+                    if (now - modified > GENARO_SHARD_CACHE_TEMP_MAX_AGE) {
+                        deleteQuietly(path);
+                    }
+                    continue;
+                }
+
+                shards.add(new CachedShard(path, attrs.size(), modified));
+                total += attrs.size();
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "List the shard cache failed: " + e.getMessage());
+            return;
+        }
+
+        if (total > maxSize) {
+            long target = (long) (maxSize * GENARO_SHARD_CACHE_LOW_WATERMARK);
+            shards.sort(Comparator.comparingLong(shard -> shard.lastUsed));
+            for (CachedShard shard : shards) {
+                if (total <= target) {
+                    break;
+                }
+                deleteQuietly(shard.path);
+                total -= shard.size;
+            }
+            Log.i(TAG, String.format("Shard cache is full, %d bytes are left", total));
+        }
+
+        size = total;
+    }
+
+    private static void touch(final Path path) {
+        try {
+            Files.setLastModifiedTime(path, FileTime.fromMillis(System.currentTimeMillis()));
+        } catch (IOException e) {
+            // evicted by another transfer
+        }
+    }
+
+    private static void deleteQuietly(final Path path) {
+        try {
+            Files.deleteIfExists(path);
+        } catch (IOException e) {
+            // in use on some platforms, deleted next time
+        }
+    }
+}
@@ -0,0 +1,156 @@
+package network.genaro.storage;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import static javax.crypto.Cipher.DECRYPT_MODE;
+
+/**
+ * What ShardAssembler and ShardStreamer share: the data shards are decrypted segment by segment at their CTR offset,
+ * and taken in file order. The shards offered before their predecessors wait in "ready", and are taken by whichever
+ * thread completes the gap. The SHA-256 of the plain data is fed in the same order.
+ */
+final class ShardSequencer<T> {
+    static final int SEGMENT_SIZE = 64 * 1024;
+
+    // takes the next shard in order, the plain data of it is fed to sha256Md
+    interface Step<T> {
+        void take(int index, T shard, MessageDigest sha256Md) throws IOException, GeneralSecurityException;
+    }
+
+    // told of every shard taken, after the next index has moved on
+    interface Listener {
+        void onTaken(int index);
+    }
+
+    // a decrypted segment of a shard, offset is from the start of the shard
+    interface SegmentSink {
+        void write(ByteBuffer plain, long offset) throws IOException;
+    }
+
+    private final Step<T> step;
+    // null if not needed
+    private final Listener listener;
+
+    private final MessageDigest sha256Md;
+    // the shards offered but not taken yet
+    private final Map<Integer, T> ready = new HashMap<>();
+    // the index of the next shard to take
+    private int nextIndex = 0;
+    // whether a thread is taking the ready shards
+    private boolean isTaking = false;
+
+    ShardSequencer(final Step<T> step, final Listener listener) throws NoSuchAlgorithmException {
+        this.step = step;
+        this.listener = listener;
+        this.sha256Md = MessageDigest.getInstance("SHA-256");
+    }
+
+    synchronized int getNextIndex() {
+        return nextIndex;
+    }
+
+    /**
+     * Offer the shard of index, the ready shards from nextIndex on are taken by this thread unless another one is
+     * taking them already.
+     */
+    void offer(final int index, final T shard) throws IOException, GeneralSecurityException {
+        synchronized (this) {
+            // taken already
+            if (index < nextIndex) {
+                return;
+            }
+            ready.put(index, shard);
+            // the running thread will take it
+            if (isTaking) {
+                return;
+            }
+            isTaking = true;
+        }
+
+        try {
+            while (true) {
+                T next;
+                int taken;
+                synchronized (this) {
+                    next = ready.remove(nextIndex);
+                    if (next == null) {
+                        isTaking = false;
+                        return;
+                    }
+                    taken = nextIndex;
+                }
+
+                step.take(taken, next, sha256Md);
+
+                synchronized (this) {
+                    nextIndex++;
+                }
+                if (listener != null) {
+                    listener.onTaken(taken);
+                }
+            }
+        } catch (IOException | GeneralSecurityException e) {
+            synchronized (this) {
+                isTaking = false;
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * @return the SHA-256 of the first "dataShards" shards, null if some of them are not taken
+     */
+    synchronized byte[] digest(final int dataShards) {
+        if (isTaking || nextIndex != dataShards) {
+            return null;
+        }
+        return sha256Md.digest();
+    }
+
+    /**
+     * Read size bytes at position of source, decrypt them at filePosition of the file(unless keySpec is null), and pass
+     * them to sink segment by segment.
+     */
+    static void decrypt(final FileChannel source, final long position, final long size, final SecretKeySpec keySpec,
+                        final byte[] iv, final long filePosition, final SegmentSink sink) throws IOException, GeneralSecurityException {
+        Cipher cipher = null;
+        if (keySpec != null) {
+            cipher = Cipher.getInstance("AES/CTR/NoPadding");
+            cipher.init(DECRYPT_MODE, keySpec, new IvParameterSpec(CryptoUtil.incrementCtrAesIv(iv, filePosition)));
+        }
+
+        ByteBuffer in = ByteBuffer.allocate(SEGMENT_SIZE);
+        ByteBuffer out = ByteBuffer.allocate(SEGMENT_SIZE);
+        long done = 0;
+        while (done < size) {
+            in.clear();
+            in.limit((int) Math.min(SEGMENT_SIZE, size - done));
+            int readBytes = source.read(in, position + done);
+            if (readBytes == -1) {
+                throw new IOException("Unexpected end of the downloaded data");
+            }
+            in.flip();
+
+            ByteBuffer plain = in;
+            if (cipher != null) {
+                out.clear();
+                cipher.update(in, out);
+                out.flip();
+                plain = out;
+            }
+
+            sink.write(plain, done);
+            done += readBytes;
+        }
+    }
+}
@@ -0,0 +1,84 @@
+package network.genaro.storage;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Delivers the plain data of a download to a channel in file order, as soon as each contiguous prefix of the data
+ * shards is verified.
+ *
+ * A verified data shard is offered with the channel it was downloaded into. The shards offered before their
+ * predecessors wait in the ShardSequencer(the reorder buffer, bounded by the window of the downloader), and are
+ * decrypted and written to the sink by whichever thread completes the gap. The listener is told of every delivered
+ * shard, so that its channel can be dropped and the window moved on.
+ */
+final class ShardStreamer {
+    interface DeliveryListener {
+        void onDelivered(int index);
+    }
+
+    private static final class Shard {
+        final FileChannel channel;
+        final long channelPosition;
+        final long filePosition;
+        final long size;
+
+        Shard(final FileChannel channel, final long channelPosition, final long filePosition, final long size) {
+            this.channel = channel;
+            this.channelPosition = channelPosition;
+            this.filePosition = filePosition;
+            this.size = size;
+        }
+    }
+
+    private final WritableByteChannel sink;
+    // null if the data should not be decrypted
+    private final SecretKeySpec keySpec;
+    private final byte[] iv;
+
+    private final ShardSequencer<Shard> sequencer;
+
+    ShardStreamer(final WritableByteChannel sink, final SecretKeySpec keySpec, final byte[] iv, final DeliveryListener listener)
+            throws NoSuchAlgorithmException {
+        this.sink = sink;
+        this.keySpec = keySpec;
+        this.iv = iv;
+        this.sequencer = new ShardSequencer<>(this::deliver, listener::onDelivered);
+    }
+
+    int getNextIndex() {
+        return sequencer.getNextIndex();
+    }
+
+    /**
+     * The data shard of index is verified at channelPosition of channel, its offset in the file is filePosition.
+     */
+    void offer(final int index, final FileChannel channel, final long channelPosition, final long filePosition, final long size)
+            throws IOException, GeneralSecurityException {
+        sequencer.offer(index, new Shard(channel, channelPosition, filePosition, size));
+    }
+
+    private void deliver(final int index, final Shard shard, final MessageDigest sha256Md)
+            throws IOException, GeneralSecurityException {
+        ShardSequencer.decrypt(shard.channel, shard.channelPosition, shard.size, keySpec, iv, shard.filePosition,
+                (plain, offset) -> {
+                    sha256Md.update(plain.array(), plain.position(), plain.remaining());
+                    while (plain.hasRemaining()) {
+                        sink.write(plain);
+                    }
+                });
+    }
+
+    /**
+     * @return the SHA-256 of the first "dataShards" shards, null if some of them are not delivered
+     */
+    byte[] digest(final int dataShards) {
+        return sequencer.digest(dataShards);
+    }
+}
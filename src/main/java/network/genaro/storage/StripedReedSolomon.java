@@ -0,0 +1,152 @@
+package network.genaro.storage;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.concurrent.CancellationException;
+import java.util.function.BooleanSupplier;
+
+import com.backblaze.erasure.OutputInputByteTableCodingLoop;
+import com.backblaze.erasure.ReedSolomon;
+
+/**
+ * Reed-Solomon coding of the shards in channels, stripe by stripe: the same byte range of every shard is coded at a
+ * time, so that the memory used is totalShards * stripe instead of totalShards * shardSize. The stripe is as large as
+ * the memory budget allows(the whole shard at most), GENARO_RS_MIN_STRIPE at least.
+ *
+ * Shard i is at i * shardSize of its channel, a shard shorter than shardSize(the last data shard) is padded with 0.
+ */
+final class StripedReedSolomon {
+    static final int GENARO_RS_MIN_STRIPE = 64 * 1024;
+
+    private final int dataShards;
+    private final int parityShards;
+    private final long shardSize;
+    private final MemoryBudget budget;
+    private final int minStripe;
+
+    StripedReedSolomon(final int dataShards, final int parityShards, final long shardSize, final MemoryBudget budget) {
+        this(dataShards, parityShards, shardSize, budget, GENARO_RS_MIN_STRIPE);
+    }
+
+    StripedReedSolomon(final int dataShards, final int parityShards, final long shardSize, final MemoryBudget budget,
+                       final int minStripe) {
+        this.dataShards = dataShards;
+        this.parityShards = parityShards;
+        this.shardSize = shardSize;
+        this.budget = budget;
+        this.minStripe = minStripe;
+    }
+
+    /**
+     * Compute the parity shards of the data in dataChannel(dataSize bytes) into parityChannel.
+     */
+    void encode(final FileChannel dataChannel, final long dataSize, final FileChannel parityChannel)
+            throws IOException, InterruptedException {
+        encode(dataChannel, dataSize, parityChannel, () -> false);
+    }
+
+    /**
+     * Compute the parity shards as above, isStopped is checked before every stripe.
+     *
+     * @throws CancellationException if isStopped becomes true
+     */
+    void encode(final FileChannel dataChannel, final long dataSize, final FileChannel parityChannel,
+                final BooleanSupplier isStopped) throws IOException, InterruptedException {
+        ReedSolomon reedSolomon = new ReedSolomon(dataShards, parityShards, new OutputInputByteTableCodingLoop());
+        int totalShards = dataShards + parityShards;
+
+        long reserved = reserveStripe(totalShards);
+        try {
+            int stripe = (int) (reserved / totalShards);
+            byte[][] shards = new byte[totalShards][stripe];
+            for (long offset = 0; offset < shardSize; offset += stripe) {
+                if (isStopped.getAsBoolean()) {
+                    throw new CancellationException();
+                }
+
+                int length = (int) Math.min(stripe, shardSize - offset);
+                for (int i = 0; i < dataShards; i++) {
+                    long size = Math.max(0, Math.min(shardSize, dataSize - shardSize * i));
+                    read(dataChannel, shardSize * i, size, offset, shards[i], length);
+                }
+
+                reedSolomon.encodeParity(shards, 0, length);
+
+                for (int i = 0; i < parityShards; i++) {
+                    write(parityChannel, shardSize * i + offset, shards[dataShards + i], length);
+                }
+            }
+        } finally {
+            budget.release(reserved);
+        }
+    }
+
+    /**
+     * Recover the missing data shards in channel from the present ones, the recovered shards are written back.
+     *
+     * @param sizes the sizes of all the shards
+     * @param present which shards are present, dataShards of them at least
+     */
+    void decodeMissing(final FileChannel channel, final long[] sizes, final boolean[] present)
+            throws IOException, InterruptedException {
+        ReedSolomon reedSolomon = new ReedSolomon(dataShards, parityShards, new OutputInputByteTableCodingLoop());
+        int totalShards = dataShards + parityShards;
+
+        long reserved = reserveStripe(totalShards);
+        try {
+            int stripe = (int) (reserved / totalShards);
+            byte[][] shards = new byte[totalShards][stripe];
+            for (long offset = 0; offset < shardSize; offset += stripe) {
+                int length = (int) Math.min(stripe, shardSize - offset);
+                // what is read for a missing shard does not matter
+                for (int i = 0; i < totalShards; i++) {
+                    read(channel, shardSize * i, present[i] ? sizes[i] : 0, offset, shards[i], length);
+                }
+
+                // decodeMissing changes the flags
+                reedSolomon.decodeMissing(shards, present.clone(), 0, length);
+
+                for (int i = 0; i < dataShards; i++) {
+                    if (!present[i] && offset < sizes[i]) {
+                        write(channel, shardSize * i + offset, shards[i], (int) Math.min(length, sizes[i] - offset));
+                    }
+                }
+            }
+        } finally {
+            budget.release(reserved);
+        }
+    }
+
+    private long reserveStripe(final int totalShards) throws InterruptedException {
+        long max = (long) totalShards * shardSize;
+        long min = Math.min(max, (long) totalShards * minStripe);
+        long reserved = budget.reserveUpTo(min, max);
+        long stripe = Math.min(reserved / totalShards, Integer.MAX_VALUE);
+        // give back what a stripe does not use
+        budget.release(reserved - stripe * totalShards);
+        return stripe * totalShards;
+    }
+
+    // read [offset, offset + length) of the shard at position(size bytes) into buffer, 0 past the shard
+    private static void read(final FileChannel channel, final long position, final long size, final long offset,
+                             final byte[] buffer, final int length) throws IOException {
+        int available = (int) Math.max(0, Math.min(length, size - offset));
+        ByteBuffer dst = ByteBuffer.wrap(buffer, 0, available);
+        while (dst.hasRemaining()) {
+            if (channel.read(dst, position + offset + dst.position()) == -1) {
+                throw new IOException("Unexpected end of the shards");
+            }
+        }
+        Arrays.fill(buffer, available, length, (byte) 0);
+    }
+
+    private static void write(final FileChannel channel, final long position, final byte[] buffer, final int length)
+            throws IOException {
+        ByteBuffer src = ByteBuffer.wrap(buffer, 0, length);
+        while (src.hasRemaining()) {
+            channel.write(src, position + src.position());
+        }
+    }
+}
@@ -0,0 +1,279 @@
+package network.genaro.storage;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import android.util.Log;
+
+/**
+ * Queues the transfers of a Genaro instance and admits them under global limits: the count of running transfers,
+ * their bytes and the bytes of their temp files(0 means unlimited).
+ *
+ * The size of a transfer may be unknown(-1) when it is submitted, a download learns it from the file info(an
+ * estimate, while it is queued) and then from its pointers(exact). Until then the transfer is ordered as the largest,
+ * but counted as 0 bytes by the byte limits, it is admitted when it is first in the order and its size is counted
+ * once reported.
+ *
+ * The next transfer admitted is the one of the highest priority, the smallest first among the same priority, then
+ * the earliest. A transfer gains one priority level every
+ * GENARO_TRANSFER_AGING_INTERVAL milliseconds it waits, so that the large ones are not starved by a stream of small
+ * ones. If the first transfer does not fit the byte limits, the smaller ones which fit go ahead of it until it has
+ * waited GENARO_TRANSFER_MAX_BYPASS milliseconds, after that nothing is admitted before it. A transfer is always
+ * admitted if nothing is running, however large it is.
+ *
+ * pause() stops admitting, the running transfers go on.
+ *
+ * The admitted transfers run on daemon threads of the manager, as many at once as are admitted(a canceled transfer
+ * is started beyond the limits), the idle threads are kept for the next ones.
+ */
+final class TransferManager {
+    private static final String TAG = "TransferManager";
+
+    static final int GENARO_MAX_TRANSFERS = 8;
+    static final long GENARO_TRANSFER_AGING_INTERVAL = 30 * 1000;
+    static final long GENARO_TRANSFER_MAX_BYPASS = 2 * 60 * 1000;
+
+    final class Ticket {
+        private final Runnable transfer;
+        private final long sequence;
+        private final long queuedAt = System.currentTimeMillis();
+        private final CompletableFuture<Void> future = new CompletableFuture<>();
+
+        private int priority = 0;
+        // -1 if unknown
+        private long size;
+        private long tempSize;
+        private boolean isAdmitted = false;
+
+        private Ticket(final Runnable transfer, final long sequence, final long size, final long tempSize) {
+            this.transfer = transfer;
+            this.sequence = sequence;
+            this.size = size;
+            this.tempSize = tempSize;
+        }
+
+        // completes when the transfer is finished
+        CompletableFuture<Void> getFuture() {
+            return future;
+        }
+
+        // takes effect only while the transfer is queued
+        void setPriority(final int priority) {
+            synchronized (TransferManager.this) {
+                this.priority = priority;
+            }
+            admit();
+        }
+
+        // the size of the transfer known after it starts, and the bytes of its temp files
+        void setSize(final long size, final long tempSize) {
+            synchronized (TransferManager.this) {
+                if (isAdmitted) {
+                    inFlightBytes += Math.max(size, 0) - Math.max(this.size, 0);
+                    tempBytes += tempSize - this.tempSize;
+                }
+                this.size = size;
+                this.tempSize = tempSize;
+            }
+            admit();
+        }
+
+        // the estimated size of a queued transfer of unknown size, a size reported already is kept
+        void estimateSize(final long size, final long tempSize) {
+            synchronized (TransferManager.this) {
+                if (isAdmitted || this.size >= 0) {
+                    return;
+                }
+                this.size = size;
+                this.tempSize = tempSize;
+            }
+            admit();
+        }
+
+        boolean isQueued() {
+            synchronized (TransferManager.this) {
+                return !isAdmitted;
+            }
+        }
+
+        // a canceled transfer is started at once if queued, it ends at once and delivers its onCancel
+        void cancel() {
+            synchronized (TransferManager.this) {
+                if (isAdmitted || !queue.remove(this)) {
+                    return;
+                }
+                onAdmitted(this);
+            }
+            start(this);
+        }
+
+        private long effectivePriority(final long now) {
+            return priority + (now - queuedAt) / GENARO_TRANSFER_AGING_INTERVAL;
+        }
+    }
+
+    // runs the admitted transfers and the work done for them outside the limits, never the common pool which is
+    // sized to the cpus and shared with the app
+    private final ExecutorService executor = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "Transfer");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final List<Ticket> queue = new ArrayList<>();
+    private long nextSequence = 0;
+
+    private int maxTransfers = GENARO_MAX_TRANSFERS;
+    private long maxInFlightBytes = 0;
+    private long maxTempBytes = 0;
+    private boolean isPaused = false;
+
+    private int running = 0;
+    private long inFlightBytes = 0;
+    private long tempBytes = 0;
+
+    /**
+     * Queue the transfer, it is run when admitted.
+     *
+     * @param size the bytes of the transfer, -1 if unknown
+     * @param tempSize the bytes of the temp files of the transfer
+     */
+    Ticket submit(final Runnable transfer, final long size, final long tempSize) {
+        Ticket ticket;
+        synchronized (this) {
+            ticket = new Ticket(transfer, nextSequence++, size, tempSize);
+            queue.add(ticket);
+        }
+        admit();
+        return ticket;
+    }
+
+    void setLimits(final int maxTransfers, final long maxInFlightBytes, final long maxTempBytes) {
+        synchronized (this) {
+            this.maxTransfers = maxTransfers;
+            this.maxInFlightBytes = maxInFlightBytes;
+            this.maxTempBytes = maxTempBytes;
+        }
+        admit();
+    }
+
+    void pause() {
+        synchronized (this) {
+            isPaused = true;
+        }
+    }
+
+    void resume() {
+        synchronized (this) {
+            isPaused = false;
+        }
+        admit();
+    }
+
+    // run the task on the threads of the transfers without admitting it, for the work done on behalf of them
+    CompletableFuture<Void> execute(final Runnable task) {
+        return CompletableFuture.runAsync(task, executor);
+    }
+
+    synchronized int getQueued() {
+        return queue.size();
+    }
+
+    synchronized int getRunning() {
+        return running;
+    }
+
+    // admit the queued transfers while the limits allow
+    void admit() {
+        List<Ticket> admitted = new ArrayList<>();
+        synchronized (this) {
+            long now = System.currentTimeMillis();
+            while (!isPaused && (maxTransfers <= 0 || running < maxTransfers)) {
+                Ticket next = pick(now);
+                if (next == null) {
+                    break;
+                }
+                queue.remove(next);
+                onAdmitted(next);
+                admitted.add(next);
+            }
+        }
+        admitted.forEach(this::start);
+    }
+
+    // must be called with the lock held
+    private Ticket pick(final long now) {
+        Ticket first = null;
+        Ticket firstFit = null;
+        for (Ticket ticket : queue) {
+            if (first == null || isBefore(ticket, first, now)) {
+                first = ticket;
+            }
+            if (fits(ticket) && (firstFit == null || isBefore(ticket, firstFit, now))) {
+                firstFit = ticket;
+            }
+        }
+
+        if (first == null || firstFit == first) {
+            return first;
+        }
+        // the first one has waited too long, the room is kept for it
+        if (now - first.queuedAt >= GENARO_TRANSFER_MAX_BYPASS) {
+            return null;
+        }
+        return firstFit;
+    }
+
+    private static boolean isBefore(final Ticket a, final Ticket b, final long now) {
+        long priorityA = a.effectivePriority(now);
+        long priorityB = b.effectivePriority(now);
+        if (priorityA != priorityB) {
+            return priorityA > priorityB;
+        }
+
+        long sizeA = a.size < 0 ? Long.MAX_VALUE : a.size;
+        long sizeB = b.size < 0 ? Long.MAX_VALUE : b.size;
+        if (sizeA != sizeB) {
+            return sizeA < sizeB;
+        }
+        return a.sequence < b.sequence;
+    }
+
+    // must be called with the lock held
+    private boolean fits(final Ticket ticket) {
+        if (running == 0) {
+            return true;
+        }
+        long size = Math.max(ticket.size, 0);
+        return (maxInFlightBytes <= 0 || inFlightBytes + size <= maxInFlightBytes) &&
+                (maxTempBytes <= 0 || tempBytes + ticket.tempSize <= maxTempBytes);
+    }
+
+    // must be called with the lock held
+    private void onAdmitted(final Ticket ticket) {
+        ticket.isAdmitted = true;
+        running++;
+        inFlightBytes += Math.max(ticket.size, 0);
+        tempBytes += ticket.tempSize;
+    }
+
+    private void start(final Ticket ticket) {
+        CompletableFuture.runAsync(ticket.transfer, executor).whenComplete((v, e) -> {
+            synchronized (this) {
+                running--;
+                inFlightBytes -= Math.max(ticket.size, 0);
+                tempBytes -= ticket.tempSize;
+            }
+            if (e != null) {
+                Log.w(TAG, "Transfer failed: " + BasicUtil.unwrap(e).getMessage());
+                ticket.future.completeExceptionally(BasicUtil.unwrap(e));
+            } else {
+                ticket.future.complete(null);
+            }
+            admit();
+        });
+    }
+}
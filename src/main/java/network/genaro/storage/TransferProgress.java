@@ -0,0 +1,68 @@
+package network.genaro.storage;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Progress accounting of a transfer, the I/O threads only do O(1) work per chunk.
+ *
+ * Bytes of the shards in flight are kept in striped counters, when a shard completes its bytes are moved to the
+ * completed counter, but only for the first "neededShards" completed shards(the best k shards of Reed-Solomon,
+ * the others are not necessary to recover the file). The in flight bytes are counted up to the bytes still needed,
+ * so the progress is an upper bound of the "best k shards" progress, and it is exact once k shards are completed.
+ */
+final class TransferProgress {
+    // bytes transferred of all the shards, including the unnecessary ones
+    private final LongAdder transferredBytes = new LongAdder();
+    // bytes transferred of the shards in flight
+    private final LongAdder partialBytes = new LongAdder();
+    // bytes of the first "neededShards" completed shards
+    private final AtomicLong completedBytes = new AtomicLong();
+    private final AtomicInteger completedShards = new AtomicInteger();
+
+    // unknown until set
+    private volatile long targetBytes = -1;
+    private volatile int neededShards = Integer.MAX_VALUE;
+
+    void setTarget(final long targetBytes, final int neededShards) {
+        this.neededShards = neededShards;
+        this.targetBytes = targetBytes;
+    }
+
+    void transferred(final long delta) {
+        transferredBytes.add(delta);
+        partialBytes.add(delta);
+    }
+
+    // the shard failed, the bytes transferred of it are dropped
+    void shardFailed(final long shardTransferred) {
+        transferredBytes.add(-shardTransferred);
+        partialBytes.add(-shardTransferred);
+    }
+
+    void shardCompleted(final long shardBytes) {
+        partialBytes.add(-shardBytes);
+        if (completedShards.incrementAndGet() <= neededShards) {
+            completedBytes.addAndGet(shardBytes);
+        }
+    }
+
+    long getTransferredBytes() {
+        return transferredBytes.sum();
+    }
+
+    /**
+     * @return range from 0 to 1, 0 if the target is unknown
+     */
+    float fraction() {
+        long target = targetBytes;
+        if (target <= 0) {
+            return 0.0f;
+        }
+
+        long completed = completedBytes.get();
+        long partial = Math.max(0, Math.min(partialBytes.sum(), target - completed));
+        return Math.min(1.0f, (completed + partial) * 1.0f / target);
+    }
+}
@@ -0,0 +1,316 @@
+package network.genaro.storage;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.util.Log;
+
+import okhttp3.ConnectionPool;
+
+import network.genaro.storage.GenaroCallback.ListFilesCallback;
+import network.genaro.storage.GenaroCallback.StoreFileCallback;
+import network.genaro.storage.GenaroCallback.StoreFilesCallback;
+import static network.genaro.storage.Parameters.*;
+import static network.genaro.storage.Genaro.genaroStrError;
+
+/**
+ * The upload of several files to the same bucket.
+ *
+ * The bucket is listed once for the batch, which verifies it and tells the names used already, instead of a bucket
+ * check and an existence check per file; a file whose name is used(or used by an earlier file of the batch) fails
+ * without being started. The files are then submitted as transfers of the Genaro instance in order, several run at
+ * the same time under the transfer limits, so that the encryption of the next files overlaps the pushes of the
+ * current ones. At most GENARO_BATCH_MAX_UPLOADERS files are started and not finished at a time(an Uploader holds
+ * threads and a http client), the next file is started when one finishes. The uploads share a connection pool, the
+ * connections to bridge and the farmers are reused from one file to the next.
+ *
+ * The callbacks of the batch are delivered on a serial thread of their own.
+ */
+public final class UploadBatch implements Runnable {
+    private static final String TAG = "UploadBatch";
+
+    public static final int GENARO_BATCH_MAX_UPLOADERS = 4;
+
+    private final Genaro bridge;
+    private final boolean rs;
+    private final List<String> filePaths;
+    private final List<String> fileNames;
+    private final String bucketId;
+    private final StoreFilesCallback callback;
+
+    private final ConnectionPool connectionPool = new ConnectionPool();
+    // the uploads started and not finished, index -> uploader, to cancel them
+    private final Map<Integer, Uploader> uploaders = new HashMap<>();
+    // the names used in the bucket and by the files started, guarded by uploaders
+    private Set<String> usedNames;
+    // the index of the next file to start, guarded by uploaders
+    private int nextFile = 0;
+    private final AtomicInteger remaining;
+    private final AtomicInteger failed = new AtomicInteger();
+    private final CompletableFuture<Void> future = new CompletableFuture<>();
+    private volatile boolean isCanceled = false;
+
+    private final ExecutorService dispatcher = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, TAG);
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    UploadBatch(final Genaro bridge, final boolean rs, final List<String> filePaths, final List<String> fileNames,
+                final String bucketId, final StoreFilesCallback callback) throws GenaroException {
+        if (bridge == null || filePaths == null || fileNames == null || filePaths.size() != fileNames.size() ||
+                bucketId == null || callback == null) {
+            throw new GenaroException("Illegal arguments");
+        }
+
+        this.bridge = bridge;
+        this.rs = rs;
+        this.filePaths = new ArrayList<>(filePaths);
+        this.fileNames = new ArrayList<>(fileNames);
+        this.bucketId = bucketId;
+        this.callback = callback;
+        this.remaining = new AtomicInteger(filePaths.size());
+    }
+
+    public int getFileCount() {
+        return filePaths.size();
+    }
+
+    // Non-blocking, the files not finished yet fail as canceled
+    public void cancel() {
+        List<Uploader> started;
+        synchronized (uploaders) {
+            isCanceled = true;
+            started = new ArrayList<>(uploaders.values());
+        }
+        started.forEach(Uploader::cancel);
+    }
+
+    // wait for all the files
+    public void join() {
+        future.join();
+        // wait for the callbacks to be delivered
+        dispatcher.shutdown();
+        try {
+            dispatcher.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public void run() {
+        Set<String> names;
+        try {
+            names = listFileNames();
+        } catch (GenaroRuntimeException e) {
+            Log.e(TAG, "List the bucket failed: " + e.getMessage());
+            dispatcher.execute(() -> callback.onFail(e.getMessage()));
+            dispatcher.shutdown();
+            future.complete(null);
+            return;
+        }
+
+        if (filePaths.isEmpty()) {
+            done();
+            return;
+        }
+
+        synchronized (uploaders) {
+            usedNames = names;
+        }
+
+        try {
+            for (int i = 0; i < GENARO_BATCH_MAX_UPLOADERS; i++) {
+                startNext();
+            }
+        } catch (RuntimeException e) {
+            // never leave the batch unfinished
+            Log.e(TAG, "Start the upload batch failed: " + e.getMessage());
+            failRemaining(genaroStrError(GENARO_UNKNOWN_ERROR));
+        }
+    }
+
+    // start the next file not started yet, the files failing before being started are passed over
+    private void startNext() {
+        while (true) {
+            int index;
+            synchronized (uploaders) {
+                if (nextFile >= filePaths.size()) {
+                    return;
+                }
+                index = nextFile++;
+            }
+
+            try {
+                if (startFile(index)) {
+                    return;
+                }
+            } catch (RuntimeException e) {
+                Log.e(TAG, String.format("Start file %d failed: %s", index, e.getMessage()));
+                onFileDone(() -> callback.onFileFail(index, genaroStrError(GENARO_UNKNOWN_ERROR)), false);
+            }
+        }
+    }
+
+    // return whether the file is submitted, it is reported as failed if not
+    private boolean startFile(final int index) {
+        String fileName = fileNames.get(index);
+
+        // the names of the earlier files of the batch are taken too
+        boolean isStopped;
+        boolean isUsed = false;
+        synchronized (uploaders) {
+            isStopped = isCanceled;
+            if (!isStopped) {
+                isUsed = fileName != null && !usedNames.add(fileName);
+            }
+        }
+        if (isStopped) {
+            onFileDone(() -> callback.onFileFail(index, genaroStrError(GENARO_TRANSFER_CANCELED)), false);
+            return false;
+        } else if (isUsed) {
+            onFileDone(() -> callback.onFileFail(index, genaroStrError(GENARO_BRIDGE_BUCKET_FILE_EXISTS)), false);
+            return false;
+        }
+
+        EncryptionInfo ei = bridge.generateEncryptionInfo(null, bucketId);
+        if (ei == null) {
+            onFileDone(() -> callback.onFileFail(index, genaroStrError(GENARO_ALGORITHM_ERROR)), false);
+            return false;
+        }
+
+        Uploader uploader;
+        try {
+            uploader = new Uploader(bridge, rs, filePaths.get(index), true, fileName, bucketId, ei, fileCallback(index));
+        } catch (GenaroException e) {
+            onFileDone(() -> callback.onFileFail(index, e.getMessage()), false);
+            return false;
+        }
+        uploader.setPreflightChecked();
+        uploader.shareConnections(connectionPool);
+
+        synchronized (uploaders) {
+            if (isCanceled) {
+                uploader = null;
+            } else {
+                uploaders.put(index, uploader);
+            }
+        }
+        if (uploader == null) {
+            onFileDone(() -> callback.onFileFail(index, genaroStrError(GENARO_TRANSFER_CANCELED)), false);
+            return false;
+        }
+
+        bridge.submit(uploader);
+        return true;
+    }
+
+    // the files not started yet fail with error
+    private void failRemaining(final String error) {
+        int from;
+        synchronized (uploaders) {
+            from = nextFile;
+            nextFile = filePaths.size();
+        }
+        for (int i = from; i < filePaths.size(); i++) {
+            final int index = i;
+            onFileDone(() -> callback.onFileFail(index, error), false);
+        }
+    }
+
+    // the names of the files in the bucket, it fails if the bucket does not exist
+    private Set<String> listFileNames() {
+        Set<String> names = new HashSet<>();
+        String[] error = new String[1];
+        try {
+            bridge.listFiles(bucketId, new ListFilesCallback() {
+                @Override
+                public void onFinish(final GenaroFile[] files) {
+                    for (GenaroFile file : files) {
+                        names.add(file.getFilename());
+                    }
+                }
+
+                @Override
+                public void onFail(final String err) {
+                    error[0] = err;
+                }
+            }).join();
+        } catch (Exception e) {
+            throw new GenaroRuntimeException(BasicUtil.unwrap(e).getMessage());
+        }
+
+        if (error[0] != null) {
+            throw new GenaroRuntimeException(error[0]);
+        }
+        return names;
+    }
+
+    private StoreFileCallback fileCallback(final int index) {
+        return new StoreFileCallback() {
+            @Override
+            public void onFinish(final String fileId, final byte[] sha256OfEncrypted) {
+                onUploadDone(index, () -> callback.onFileFinish(index, fileId, sha256OfEncrypted), true);
+            }
+
+            @Override
+            public void onFail(final String error) {
+                onUploadDone(index, () -> callback.onFileFail(index, error), false);
+            }
+
+            @Override
+            public void onCancel() {
+                onUploadDone(index, () -> callback.onFileFail(index, genaroStrError(GENARO_TRANSFER_CANCELED)), false);
+            }
+
+            @Override
+            public void onProgress(final float progress) {
+                dispatcher.execute(() -> callback.onFileProgress(index, progress));
+            }
+        };
+    }
+
+    // a started upload is done, the next file takes its place
+    private void onUploadDone(final int index, final Runnable event, final boolean isFinished) {
+        synchronized (uploaders) {
+            uploaders.remove(index);
+        }
+        onFileDone(event, isFinished);
+
+        try {
+            startNext();
+        } catch (RuntimeException e) {
+            Log.e(TAG, "Start the next file failed: " + e.getMessage());
+            failRemaining(genaroStrError(GENARO_UNKNOWN_ERROR));
+        }
+    }
+
+    private void onFileDone(final Runnable event, final boolean isFinished) {
+        if (!isFinished) {
+            failed.incrementAndGet();
+        }
+        dispatcher.execute(event);
+        if (remaining.decrementAndGet() == 0) {
+            done();
+        }
+    }
+
+    private void done() {
+        int failedFiles = failed.get();
+        int finishedFiles = filePaths.size() - failedFiles;
+        Log.i(TAG, String.format("Upload batch done, %d files finished, %d files failed", finishedFiles, failedFiles));
+        dispatcher.execute(() -> callback.onFinish(finishedFiles, failedFiles));
+        dispatcher.shutdown();
+        future.complete(null);
+    }
+}
@@ -0,0 +1,295 @@
+package network.genaro.storage;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Map;
+import java.util.TreeMap;
+
+import android.util.Log;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import org.xbill.DNS.utils.base16;
+
+/**
+ * The journal of an upload, saved in a sidecar file next to the .crypt file, so that an interrupted upload can be
+ * resumed by Genaro.resumeUpload.
+ *
+ * It records what is needed to go on without encrypting and hashing again: the origin file(to detect changes),
+ * a fingerprint of the encryption info(the key is never saved), the frame id, the meta of every prepared shard and
+ * whether it has been pushed. The file is rewritten atomically on every change.
+ */
+// the getters are public for Jackson
+@JsonIgnoreProperties(ignoreUnknown = true)
+final class UploadJournal {
+    private static final String TAG = "UploadJournal";
+
+    private String originPath;
+    private long originSize;
+    private long originModified;
+    private String bucketId;
+    private String keyFingerprint;
+    private boolean rs;
+    private long shardSize;
+    private int totalShards;
+
+    private String sha256OfEncrypted;
+    private String frameId;
+    // set once the bucket entry is created
+    private String fileId;
+    // shard index -> entry
+    private Map<Integer, ShardEntry> shards = new TreeMap<>();
+
+    @JsonIgnore
+    private String journalPath;
+
+    @JsonIgnoreProperties(ignoreUnknown = true)
+    static final class ShardEntry {
+        private String hash;
+        private long size;
+        private String[] challenges;
+        private String[] tree;
+        private boolean pushed;
+
+        public String getHash() {
+            return hash;
+        }
+
+        void setHash(String hash) {
+            this.hash = hash;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        void setSize(long size) {
+            this.size = size;
+        }
+
+        public String[] getChallenges() {
+            return challenges;
+        }
+
+        void setChallenges(String[] challenges) {
+            this.challenges = challenges;
+        }
+
+        public String[] getTree() {
+            return tree;
+        }
+
+        void setTree(String[] tree) {
+            this.tree = tree;
+        }
+
+        public boolean isPushed() {
+            return pushed;
+        }
+
+        void setPushed(boolean pushed) {
+            this.pushed = pushed;
+        }
+    }
+
+    UploadJournal() { }
+
+    UploadJournal(final String journalPath, final String originPath, final long originSize, final long originModified, final String bucketId,
+                  final String keyFingerprint, final boolean rs, final long shardSize, final int totalShards) {
+        this.journalPath = journalPath;
+        this.originPath = originPath;
+        this.originSize = originSize;
+        this.originModified = originModified;
+        this.bucketId = bucketId;
+        this.keyFingerprint = keyFingerprint;
+        this.rs = rs;
+        this.shardSize = shardSize;
+        this.totalShards = totalShards;
+    }
+
+    /**
+     * @return the journal saved in journalPath, null if not exists or unreadable
+     */
+    static UploadJournal load(final String journalPath) {
+        Path path = Paths.get(journalPath);
+        if (!Files.exists(path)) {
+            return null;
+        }
+
+        try {
+            UploadJournal journal = new ObjectMapper().readValue(path.toFile(), UploadJournal.class);
+            journal.journalPath = journalPath;
+            return journal;
+        } catch (IOException e) {
+            Log.w(TAG, "Load upload journal failed: " + e.getMessage());
+            return null;
+        }
+    }
+
+    // whether the journal is of the same upload, i.e. the same file, encryption and sharding
+    boolean isSameUpload(final UploadJournal other) {
+        return other.originPath.equals(originPath) && other.originSize == originSize && other.originModified == originModified &&
+                other.bucketId.equals(bucketId) && other.keyFingerprint.equals(keyFingerprint) && other.rs == rs &&
+                other.shardSize == shardSize && other.totalShards == totalShards && shards.size() <= totalShards;
+    }
+
+    public String getOriginPath() {
+        return originPath;
+    }
+
+    void setOriginPath(String originPath) {
+        this.originPath = originPath;
+    }
+
+    public long getOriginSize() {
+        return originSize;
+    }
+
+    void setOriginSize(long originSize) {
+        this.originSize = originSize;
+    }
+
+    public long getOriginModified() {
+        return originModified;
+    }
+
+    void setOriginModified(long originModified) {
+        this.originModified = originModified;
+    }
+
+    public String getBucketId() {
+        return bucketId;
+    }
+
+    void setBucketId(String bucketId) {
+        this.bucketId = bucketId;
+    }
+
+    public String getKeyFingerprint() {
+        return keyFingerprint;
+    }
+
+    void setKeyFingerprint(String keyFingerprint) {
+        this.keyFingerprint = keyFingerprint;
+    }
+
+    public boolean isRs() {
+        return rs;
+    }
+
+    void setRs(boolean rs) {
+        this.rs = rs;
+    }
+
+    public long getShardSize() {
+        return shardSize;
+    }
+
+    void setShardSize(long shardSize) {
+        this.shardSize = shardSize;
+    }
+
+    public int getTotalShards() {
+        return totalShards;
+    }
+
+    void setTotalShards(int totalShards) {
+        this.totalShards = totalShards;
+    }
+
+    public synchronized String getSha256OfEncrypted() {
+        return sha256OfEncrypted;
+    }
+
+    synchronized void setSha256OfEncrypted(String sha256OfEncrypted) {
+        this.sha256OfEncrypted = sha256OfEncrypted;
+    }
+
+    public synchronized String getFrameId() {
+        return frameId;
+    }
+
+    synchronized void setFrameId(String frameId) {
+        this.frameId = frameId;
+    }
+
+    public synchronized String getFileId() {
+        return fileId;
+    }
+
+    synchronized void setFileId(String fileId) {
+        this.fileId = fileId;
+    }
+
+    public synchronized Map<Integer, ShardEntry> getShards() {
+        return new TreeMap<>(shards);
+    }
+
+    synchronized void setShards(Map<Integer, ShardEntry> shards) {
+        this.shards = new TreeMap<>(shards);
+    }
+
+    synchronized ShardEntry getShard(final int index) {
+        return shards.get(index);
+    }
+
+    /**
+     * Restore the meta of the shard prepared before, return false if the shard is not in the journal.
+     */
+    synchronized boolean restore(final ShardMeta meta, final int index) {
+        ShardEntry entry = shards.get(index);
+        if (entry == null || entry.hash == null || entry.challenges == null || entry.tree == null) {
+            return false;
+        }
+
+        byte[][] challenges = new byte[entry.challenges.length][];
+        for (int i = 0; i < challenges.length; i++) {
+            challenges[i] = base16.fromString(entry.challenges[i]);
+        }
+
+        meta.setHash(entry.hash);
+        meta.setSize(entry.size);
+        meta.setChallenges(challenges);
+        meta.setChallengesAsStr(entry.challenges.clone());
+        meta.setTree(entry.tree.clone());
+        return true;
+    }
+
+    synchronized void shardPrepared(final int index, final ShardMeta meta) {
+        ShardEntry entry = new ShardEntry();
+        entry.hash = meta.getHash();
+        entry.size = meta.getSize();
+        entry.challenges = meta.getChallengesAsStr().clone();
+        entry.tree = meta.getTree().clone();
+        shards.put(index, entry);
+        save();
+    }
+
+    synchronized void shardPushed(final int index) {
+        ShardEntry entry = shards.get(index);
+        if (entry != null) {
+            entry.pushed = true;
+            save();
+        }
+    }
+
+    synchronized void save() {
+        try {
+            BasicUtil.writeJsonAtomically(this, journalPath);
+        } catch (IOException e) {
+            Log.w(TAG, "Save upload journal failed: " + e.getMessage());
+        }
+    }
+
+    void delete() {
+        try {
+            Files.deleteIfExists(Paths.get(journalPath));
+        } catch (IOException e) {
+            // do nothing
+        }
+    }
+}
@@ -13,7 +13,8 @@ final class UploadRequestBody extends RequestBody {
         void transferred(long delta);
     }
 
-    private static final int SEGMENT_SIZE = 2 * 1024;
+    // the shard is read, paced and written a segment at a time
+    private static final int SEGMENT_SIZE = BandwidthLimiter.GENARO_LIMITER_SEGMENT;
 
     private FileChannel inputChannel;
     private long position;
@@ -21,13 +22,21 @@ final class UploadRequestBody extends RequestBody {
 
     private ProgressListener listener;
     private String contentType;
+    // paces the writes, can be null
+    private BandwidthLimiter limiter;
 
     public UploadRequestBody(FileChannel inputChannel, long position, long size, String contentType, ProgressListener listener) {
+        this(inputChannel, position, size, contentType, listener, null);
+    }
+
+    public UploadRequestBody(FileChannel inputChannel, long position, long size, String contentType, ProgressListener listener,
+                             BandwidthLimiter limiter) {
         this.inputChannel = inputChannel;
         this.position = position;
         this.size = size;
         this.contentType = contentType;
         this.listener = listener;
+        this.limiter = limiter;
     }
 
     @Override
@@ -47,10 +56,19 @@ final class UploadRequestBody extends RequestBody {
         int delta;
         long readBytes = 0;
 
-        while ((delta = inputChannel.read(dataBuffer, position)) != -1 && readBytes < size) {
+        while (readBytes < size) {
+            // never read past the end of the shard
+            dataBuffer.clear();
+            dataBuffer.limit((int) Math.min(SEGMENT_SIZE, size - readBytes));
+            if ((delta = inputChannel.read(dataBuffer, position)) == -1) {
+                break;
+            }
             dataBuffer.flip();
             dataBuffer.get(mBlock, 0, delta);
-            dataBuffer.flip();
+
+            if (limiter != null) {
+                limiter.acquire(delta);
+            }
 
             sink.write(mBlock, 0, delta);
             position += delta;
@@ -1,18 +1,16 @@
 package network.genaro.storage;
 
-import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
 import java.net.InetSocketAddress;
 import java.net.Proxy;
 import java.net.SocketTimeoutException;
 import java.nio.ByteBuffer;
 import java.nio.channels.Channels;
 import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
 import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.nio.file.StandardOpenOption;
@@ -20,12 +18,18 @@ import java.security.InvalidKeyException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.CancellationException;
 import java.util.concurrent.TimeoutException;
@@ -38,13 +42,12 @@ import javax.crypto.spec.SecretKeySpec;
 import javax.crypto.Mac;
 import static javax.crypto.Cipher.ENCRYPT_MODE;
 
-import com.backblaze.erasure.OutputInputByteTableCodingLoop;
-import com.backblaze.erasure.ReedSolomon;
-
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
 
+import okhttp3.Call;
+import okhttp3.ConnectionPool;
 import okhttp3.OkHttpClient;
 import okhttp3.Response;
 import okhttp3.Request;
@@ -72,12 +75,35 @@ public final class Uploader implements Runnable {
     public static final int GENARO_MAX_VERIFY_BUCKET_ID = 3;
     public static final int GENARO_MAX_VERIFY_FILE_NAME = 3;
 
+    // a push is regarded as stalled if no data is sent for GENARO_PUSH_STALL_TIMEOUT seconds
+    public static final int GENARO_PUSH_STALL_TIMEOUT = 15;
+    // a shard is pushed to a backup farmer(requested from bridge then) in parallel if the push has lasted GENARO_SPECULATIVE_MIN_ELAPSED seconds at least,
+    // and its throughput is below GENARO_SPECULATIVE_SLOW_RATIO of the median throughput of GENARO_SPECULATIVE_MIN_PEERS peers at least
+    public static final int GENARO_SPECULATIVE_MIN_ELAPSED = 5;
+    public static final int GENARO_SPECULATIVE_MIN_PEERS = 3;
+    public static final double GENARO_SPECULATIVE_SLOW_RATIO = 0.5;
+
+    // the shards of a stream read but not pushed yet, each one is kept in memory(fewer if the memory budget is exhausted)
+    public static final int GENARO_STREAM_BUFFERED_SHARDS = 4;
+
     private static long MAX_SHARD_SIZE = 4294967296L; // 4Gb
     private static long MIN_SHARD_SIZE = 2097152L; // 2Mb
     private static int SHARD_MULTIPLES_BACK = 4;
     private static int GENARO_SHARD_CHALLENGES = 4;
+    // the shards of a stream are kept in memory, so they are not larger than STREAM_MAX_SHARD_SIZE
+    private static long STREAM_MAX_SHARD_SIZE = 33554432L; // 32Mb
+    // the file is encrypted chunk by chunk, so that the encryption stops soon after the upload stops
+    private static long ENCRYPT_CHUNK_SIZE = 1048576L; // 1Mb
 
     private String originPath;
+    // the data to upload if it is not from a file(storeBytes), kept in memory without any temp file
+    private ByteBuffer originData;
+    // the stream to upload(storeStream), encrypted and sharded on the fly, null if not from a stream
+    private ReadableByteChannel originStream;
+    // the size expected of originStream, 0 if unknown
+    private long sizeHint;
+    // the first bytes of originStream, read during the preflight to pick the shard size if there is no size hint
+    private MemoryChannel streamHead;
     private String fileName;
     private String encryptedFileName;
     private long originFileSize;
@@ -100,10 +126,8 @@ public final class Uploader implements Runnable {
     private int totalShards;
     private long shardSize;
 
-    // the total uploaded bytes
-    private AtomicLong uploadedBytes = new AtomicLong();
-    // increased uploaded bytes since last onProgress Call
-    private AtomicLong deltaUploaded = new AtomicLong();
+    // the uploaded bytes, updated by the I/O threads and polled by dispatcher
+    private final TransferProgress progress = new TransferProgress();
     private long totalBytes;
 
     private String frameId;
@@ -112,14 +136,74 @@ public final class Uploader implements Runnable {
 
     // Initialize context for sha256 of encrypted data(not include the parity shards)
     MessageDigest sha256OfEncryptedMd;
+    // the sha256 of encrypted data, known after encryption or restored from the journal
+    private byte[] sha256OfEncrypted;
 
     private byte[] index;
     private byte[] fileKey;
 
     private EncryptionInfo ei;
 
-    // not try to upload to these farmers
-    private List<String> excludedFarmerIds = new ArrayList<>();
+    // whether to resume the upload from its journal
+    private boolean isResume = false;
+    // whether the bucket and the file name are checked already(by the batch of the upload)
+    private boolean isPreflightChecked = false;
+    // the journal of this upload, null if the data is not from a file
+    private UploadJournal journal;
+    // whether the bucket entry is created
+    private boolean isUploaded = false;
+
+    // the farmers failed in this upload, not try to upload to them
+    private final Set<String> excludedFarmerIds = ConcurrentHashMap.newKeySet();
+    // the statistics of farmers shared by all the transfers
+    private final FarmerRegistry farmerRegistry = FarmerRegistry.getInstance();
+    // limits the bandwidth of this upload, and of all the uploads by its parent
+    private final BandwidthLimiter limiter;
+    // adapts the count of the primary pushes at the same time to the link
+    private final ConcurrencyController concurrency = new ConcurrencyController();
+
+    // the primary pushes in flight
+    private final Map<ShardTracker, ShardPush> activePushes = new ConcurrentHashMap<>();
+    // the pushes to the backup farmers, index -> push, guarded by itself together with the removal from activePushes
+    private final Map<Integer, SpeculativePush> speculativePushes = new ConcurrentHashMap<>();
+    // the throughputs(bytes per millisecond) of the finished pushes
+    private final List<Double> finishedThroughputs = new ArrayList<>();
+
+    // a push of a shard to a farmer
+    private static final class ShardPush {
+        final FarmerPointer pointer;
+        volatile long uploadedSize;
+        volatile long start;
+        volatile long lastActivity;
+        volatile Call call;
+
+        ShardPush(final FarmerPointer pointer) {
+            this.pointer = pointer;
+        }
+    }
+
+    // a push to a backup farmer of a slow shard. The backup farmer is requested from bridge when the push starts, the
+    // bridge points the shard at it from then on, so once started only the push to the backup farmer counts
+    private static final class SpeculativePush {
+        volatile ShardPush push;
+        final CompletableFuture<Boolean> result = new CompletableFuture<>();
+
+        private boolean isStarted = false;
+        private boolean isCanceled = false;
+
+        synchronized boolean start() {
+            isStarted = !isCanceled;
+            return isStarted;
+        }
+
+        // the primary is done, no need to wait for a push that has not started
+        synchronized boolean abandonIfNotStarted() {
+            if (!isStarted) {
+                isCanceled = true;
+            }
+            return isCanceled;
+        }
+    }
 
     private CompletableFuture<Bucket> futureGetBucket;
     private CompletableFuture<Boolean> futureIsFileExists;
@@ -128,11 +212,15 @@ public final class Uploader implements Runnable {
 
     // the CompletableFuture that runs this Uploader
     private CompletableFuture<Void> futureBelongsTo;
+    // the place of the upload in the transfer manager, null if run directly
+    private TransferManager.Ticket ticket;
 
     // whether cancel() is called
     private boolean isCanceled = false;
-    // ensure not stop again
-    private boolean isStopping = false;
+    // ensure not stop again, also stops the preparation of the encrypted files
+    private volatile boolean isStopping = false;
+    // the preparation of the preflight, the temp files are cleaned up after it stops
+    private CompletableFuture<Void> futurePrepare;
 
     private StoreFileCallback storeFileCallback;
 
@@ -140,53 +228,79 @@ public final class Uploader implements Runnable {
     // private static final ExecutorService uploaderExecutor = Executors.newCachedThreadPool();
 
     // for CPU bound application，set the thread pool size to N+1 is suggested; for I/O bound application, set the thread pool size to 2N+1 is suggested
-    private final ExecutorService uploaderExecutor = Executors.newFixedThreadPool(2 * Runtime.getRuntime().availableProcessors() + 1);
+    // the pushes in flight are limited by concurrency, the pool is large enough for its maximum
+    private final ExecutorService uploaderExecutor = Executors.newFixedThreadPool(Math.max(2 * Runtime.getRuntime().availableProcessors() + 1,
+            ConcurrencyController.GENARO_CONCURRENCY_MAX));
+
+    // the pushes to the backup farmers run on threads of their own, so that a primary push waiting for one(in
+    // pushShard) never holds a thread of uploaderExecutor the backup push is queued for
+    private final ExecutorService speculativeExecutor = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "UploaderBackupPush");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    // delivers the callbacks, so that the I/O threads never call app code
+    private final CallbackDispatcher dispatcher = new CallbackDispatcher();
+
+    // finds the slow pushes
+    private final ScheduledExecutorService watchdog = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "UploaderWatchdog");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private OkHttpClient upHttpClient;
 
-    private final OkHttpClient upHttpClient;
+    public Uploader(final Genaro bridge, final boolean rs, final String fileOrData, final boolean isFilePath, final String fileName,
+                    final String bucketId, final EncryptionInfo ei, final StoreFileCallback storeFileCallback) throws GenaroException {
+        // the text is uploaded from memory
+        this(bridge, rs, isFilePath ? fileOrData : null, isFilePath || fileOrData == null ? null : ByteBuffer.wrap(fileOrData.getBytes()),
+                null, 0, fileName, bucketId, ei, storeFileCallback);
+    }
 
-    // when para isFilePath of the constructor is false, will create a temp file to store fileOrData
-    File tmpFile;
+    // the remaining bytes of data are uploaded, data must not be modified until the upload is finished
+    public Uploader(final Genaro bridge, final boolean rs, final ByteBuffer data, final String fileName,
+                    final String bucketId, final EncryptionInfo ei, final StoreFileCallback storeFileCallback) throws GenaroException {
+        this(bridge, rs, null, data, null, 0, fileName, bucketId, ei, storeFileCallback);
+    }
 
-    public Uploader(final Genaro bridge, final boolean rs, final String fileOrData, final boolean isFilePath, final String fileName,
+    // the data is read from source until its end(source must be blocking), sizeHint is the size expected(0 if unknown),
+    // Reed-Solomon is not supported since the shards are not kept
+    public Uploader(final Genaro bridge, final ReadableByteChannel source, final long sizeHint, final String fileName,
                     final String bucketId, final EncryptionInfo ei, final StoreFileCallback storeFileCallback) throws GenaroException {
-        if (bridge == null || fileOrData == null || fileName == null || bucketId == null || ei == null || storeFileCallback == null) {
+        this(bridge, false, null, null, source, sizeHint, fileName, bucketId, ei, storeFileCallback);
+    }
+
+    private Uploader(final Genaro bridge, final boolean rs, final String filePath, final ByteBuffer data, final ReadableByteChannel source,
+                     final long sizeHint, final String fileName, final String bucketId, final EncryptionInfo ei,
+                     final StoreFileCallback storeFileCallback) throws GenaroException {
+        if (bridge == null || (filePath == null && data == null && source == null) || fileName == null || bucketId == null || ei == null ||
+                storeFileCallback == null) {
             throw new GenaroException("Illegal arguments");
         }
 
         this.bridge = bridge;
         this.rs = rs;
+        this.limiter = new BandwidthLimiter(bridge.getUploadLimiter());
 
-        if (isFilePath) {
-            this.originPath = fileOrData;
-        } else {
-            try {
-                this.tmpFile = File.createTempFile("tmp-", "");
-            } catch (Exception e) {
-                throw new GenaroException("Create temp file failed");
-            }
-
-            try {
-                OutputStream bos = new BufferedOutputStream(new FileOutputStream(tmpFile));
-                bos.write(fileOrData.getBytes());
-                bos.close();
-            } catch (IOException e) {
-                throw new GenaroException(e.getMessage());
-            }
-
-            this.originPath = tmpFile.getPath();
-        }
+        this.originPath = filePath;
+        this.originData = data == null ? null : data.slice();
+        this.originFile = filePath == null ? null : new File(filePath);
+        this.originStream = source;
+        this.sizeHint = Math.max(0, sizeHint);
 
         this.fileName = fileName;
-        this.originFile = new File(this.originPath);
         this.bucketId = bucketId;
-        this.storeFileCallback = storeFileCallback;
+        this.storeFileCallback = dispatcher.wrap(storeFileCallback);
 
         this.ei = ei;
 
         OkHttpClient.Builder builder = new OkHttpClient.Builder()
                 .connectTimeout(GENARO_OKHTTP_CONNECT_TIMEOUT, TimeUnit.SECONDS)
                 .writeTimeout(GENARO_OKHTTP_WRITE_TIMEOUT, TimeUnit.SECONDS)
-                .readTimeout(GENARO_OKHTTP_READ_TIMEOUT, TimeUnit.SECONDS);
+                .readTimeout(GENARO_OKHTTP_READ_TIMEOUT, TimeUnit.SECONDS)
+                .addInterceptor(bridge.getBridgeGovernor());
 
         // set proxy server
         String proxyAddr = bridge.getProxyAddr();
@@ -222,10 +336,65 @@ public final class Uploader implements Runnable {
         this.futureBelongsTo = futureBelongsTo;
     }
 
+    void setTicket(final TransferManager.Ticket ticket) {
+        this.ticket = ticket;
+        this.futureBelongsTo = ticket.getFuture();
+    }
+
+    // the upload of higher priority is started first(default 0), takes effect only while it is queued
+    public void setPriority(final int priority) {
+        if (ticket != null) {
+            ticket.setPriority(priority);
+        }
+    }
+
+    // the bytes to upload, -1 if unknown
+    long estimateSize() {
+        if (originData != null) {
+            return originData.remaining();
+        } else if (originStream != null) {
+            return sizeHint > 0 ? sizeHint : -1;
+        } else {
+            return originFile.length();
+        }
+    }
+
+    // the bytes of the temp files, the encrypted file and the parity shards
+    long estimateTempSize() {
+        if (originPath == null) {
+            return 0;
+        }
+        long size = originFile.length();
+        return rs ? size + (size * 2 + 2) / 3 : size;
+    }
+
     OkHttpClient getUpHttpClient() {
         return upHttpClient;
     }
 
+    void setResume(final boolean isResume) {
+        this.isResume = isResume;
+    }
+
+    // the bucket is verified and the file name is not used, the preflight does not check them again
+    void setPreflightChecked() {
+        this.isPreflightChecked = true;
+    }
+
+    // reuse the connections of the pool(the other uploads of the batch), must be called before the upload starts
+    void shareConnections(final ConnectionPool connectionPool) {
+        upHttpClient = upHttpClient.newBuilder().connectionPool(connectionPool).build();
+    }
+
+    public long getRateLimit() {
+        return limiter.getRate();
+    }
+
+    // bytes per second of this upload, 0 means unlimited, takes effect at once
+    public void setRateLimit(final long bytesPerSecond) {
+        limiter.setRate(bytesPerSecond);
+    }
+
     private static long shardSize(final int hops) {
         return (long)(MIN_SHARD_SIZE * Math.pow(2, hops));
     }
@@ -286,6 +455,10 @@ public final class Uploader implements Runnable {
     }
 
     private boolean createEncryptedFile() {
+        if (originData != null) {
+            return createEncryptedData();
+        }
+
         index = ei.getIndex();
         fileKey = ei.getKey();
         byte[] ivBytes = ei.getCtr();
@@ -310,28 +483,39 @@ public final class Uploader implements Runnable {
             if(cryptFilePath == null) {
                 isSuccess = false;
             } else {
-                cryptChannel = FileChannel.open(Paths.get(cryptFilePath), StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
-                        StandardOpenOption.WRITE, StandardOpenOption.READ, StandardOpenOption.DELETE_ON_CLOSE);
+                cryptChannel = openTempFile(cryptFilePath);
 
                 // transfer InputStream to FileChannel
-                cryptChannel.transferFrom(Channels.newChannel(cypherIn), 0, originFileSize);
+                ReadableByteChannel cypherChannel = Channels.newChannel(cypherIn);
+                long position = 0;
+                while (position < originFileSize && !isStopping) {
+                    long transferred = cryptChannel.transferFrom(cypherChannel, position, Math.min(ENCRYPT_CHUNK_SIZE, originFileSize - position));
+                    if (transferred <= 0) {
+                        break;
+                    }
+                    position += transferred;
+                }
 
                 // calculate sha256 of the encrypted file
                 int readBytes;
                 ByteBuffer readBuffer = ByteBuffer.allocate(BLOCK_BYTES);
-                while ((readBytes = cryptChannel.read(readBuffer)) != -1) {
+                while (!isStopping && (readBytes = cryptChannel.read(readBuffer)) != -1) {
                     readBuffer.flip();
                     byte[] readData = new byte[readBytes];
                     readBuffer.get(readData, 0, readBytes);
                     sha256OfEncryptedMd.update(readData, 0, readBytes);
                     readBuffer.flip();
                 }
+                sha256OfEncrypted = sha256OfEncryptedMd.digest();
             }
         } catch (Exception e) {
             isSuccess = false;
         }
 
-        if (isSuccess) {
+        if (isStopping) {
+            Log.i(TAG, "Encrypt file stopped");
+            return false;
+        } else if (isSuccess) {
             Log.i(TAG, "Encrypt file success");
         } else {
             Log.e(TAG, "Encrypt file failed");
@@ -340,56 +524,196 @@ public final class Uploader implements Runnable {
         return isSuccess;
     }
 
-    private boolean createParityFile() {
-        parityFilePath = createTmpName(encryptedFileName, ".parity");
-        if(parityFilePath == null) {
+    // encrypt originData into memory
+    private boolean createEncryptedData() {
+        index = ei.getIndex();
+        fileKey = ei.getKey();
+
+        Log.i(TAG, "Encrypting data...");
+        try {
+            javax.crypto.Cipher cipher = javax.crypto.Cipher.getInstance("AES/CTR/NoPadding");
+            cipher.init(ENCRYPT_MODE, new SecretKeySpec(fileKey, "AES"), new IvParameterSpec(ei.getCtr()));
+
+            byte[] encrypted = new byte[(int) originFileSize];
+            cipher.doFinal(originData.duplicate(), ByteBuffer.wrap(encrypted));
+            sha256OfEncryptedMd.update(encrypted);
+            sha256OfEncrypted = sha256OfEncryptedMd.digest();
+            cryptChannel = new MemoryChannel(encrypted);
+        } catch (Exception | OutOfMemoryError e) {
+            Log.e(TAG, "Encrypt data failed");
             return false;
         }
 
+        Log.i(TAG, "Encrypt data success");
+        return true;
+    }
+
+    private boolean createParityFile() {
+        // the parity shards of the data in memory are kept in memory too
+        if (originData == null) {
+            parityFilePath = createTmpName(encryptedFileName, ".parity");
+            if (parityFilePath == null) {
+                return false;
+            }
+        }
+
         Log.i(TAG, "Creating parity file...");
 
         try {
-            parityChannel = FileChannel.open(Paths.get(parityFilePath), StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
-                    StandardOpenOption.WRITE, StandardOpenOption.READ, StandardOpenOption.DELETE_ON_CLOSE);
+            if (originData != null) {
+                parityChannel = new MemoryChannel();
+            } else {
+                parityChannel = openTempFile(parityFilePath);
+            }
+
+            // coded stripe by stripe within the memory budget, a large shard does not need totalShards * shardSize of memory
+            new StripedReedSolomon(totalDataShards, totalParityShards, shardSize, MemoryBudget.global())
+                    .encode(cryptChannel, originFileSize, parityChannel, () -> isStopping);
+        } catch (CancellationException e) {
+            Log.i(TAG, "Create parity file stopped");
+            return false;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            Log.e(TAG, "Create parity file interrupted");
+            return false;
+        } catch (OutOfMemoryError e) {
+            Log.e(TAG, "Create parity file failed: out of memory, the memory budget is " + MemoryBudget.global().getLimit() + " bytes");
+            return false;
+        } catch (Exception e) {
+            Log.e(TAG, "Create parity file failed: " + e.getMessage());
+            return false;
+        }
 
-            ReedSolomon reedSolomon = new ReedSolomon(totalDataShards,
-                    totalParityShards, new OutputInputByteTableCodingLoop());
+        Log.i(TAG, String.format("Create parity file success", cryptFilePath));
 
-            byte[][] shards = new byte [totalShards][];
+        return true;
+    }
 
-            ByteBuffer readBuffer = ByteBuffer.allocate((int)shardSize);
-            for (int i = 0; i < totalDataShards; i++) {
-                int readBytes = cryptChannel.read(readBuffer, shardSize * i);
-                readBuffer.flip();
+    // the encrypted files of a journaled upload are kept for resumeUpload until it is finished, the others are deleted
+    // when closed, even if the process dies
+    private FileChannel openTempFile(final String path) throws IOException {
+        if (journal != null) {
+            return FileChannel.open(Paths.get(path), StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                    StandardOpenOption.WRITE, StandardOpenOption.READ);
+        }
+        return FileChannel.open(Paths.get(path), StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.WRITE, StandardOpenOption.READ, StandardOpenOption.DELETE_ON_CLOSE);
+    }
 
-                // todo: when shardSize is too big(maybe 1g) it will casue an OutOfMemoryError exception
-                shards[i] = new byte[(int)shardSize];
-                readBuffer.get(shards[i], 0, readBytes);
-                readBuffer.flip();
+    // open the journal of a resumable upload, the saved one is used if resuming the same upload
+    private void openJournal() {
+        // only resumeUpload journals, the data not from a file can not be resumed
+        if (!isResume || originData != null) {
+            return;
+        }
+
+        String journalPath = createTmpName(encryptedFileName, ".journal");
+        if (journalPath == null) {
+            return;
+        }
+
+        // the key is never saved, only its fingerprint
+        String keyFingerprint;
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-256");
+            md.update(ei.getKey());
+            md.update(ei.getCtr());
+            keyFingerprint = base16.toString(md.digest()).toLowerCase();
+        } catch (NoSuchAlgorithmException e) {
+            return;
+        }
+
+        UploadJournal fresh = new UploadJournal(journalPath, originFile.getAbsolutePath(), originFileSize, originFile.lastModified(),
+                bucketId, keyFingerprint, rs, shardSize, totalShards);
+        UploadJournal saved = UploadJournal.load(journalPath);
+        if (saved != null && saved.isSameUpload(fresh)) {
+            Log.i(TAG, "Resume the upload from its journal");
+            journal = saved;
+            return;
+        }
+        Log.i(TAG, "No journal of the upload, upload from the beginning");
+
+        journal = fresh;
+        journal.save();
+    }
+
+    // reopen the encrypted files of the journal instead of encrypting again, return false if they are not usable
+    private boolean reuseEncryptedFiles() {
+        if (journal == null || journal.getSha256OfEncrypted() == null) {
+            return false;
+        }
+
+        cryptFilePath = createTmpName(encryptedFileName, ".crypt");
+        parityFilePath = rs ? createTmpName(encryptedFileName, ".parity") : null;
+        try {
+            if (cryptFilePath == null || Files.size(Paths.get(cryptFilePath)) != originFileSize ||
+                    (rs && (parityFilePath == null || Files.size(Paths.get(parityFilePath)) != totalParityShards * shardSize))) {
+                return false;
             }
 
-            for (int i = totalDataShards; i < totalShards; i++) {
-                // todo: when shardSize is too big(maybe 1g) it will casue an OutOfMemoryError exception
-                shards[i] = new byte[(int)shardSize];
+            cryptChannel = FileChannel.open(Paths.get(cryptFilePath), StandardOpenOption.WRITE, StandardOpenOption.READ);
+            if (rs) {
+                parityChannel = FileChannel.open(Paths.get(parityFilePath), StandardOpenOption.WRITE, StandardOpenOption.READ);
             }
+        } catch (IOException e) {
+            return false;
+        }
 
-            reedSolomon.encodeParity(shards, 0, (int)shardSize);
+        sha256OfEncrypted = base16.fromString(journal.getSha256OfEncrypted());
+        Log.i(TAG, "Reuse the encrypted file of the journal");
+        return true;
+    }
 
-            for (int i = totalDataShards; i < totalShards; i++) {
-                parityChannel.write(ByteBuffer.wrap(shards[i], 0, (int)shardSize));
+    // delete the journal and the encrypted files
+    private void discardTempFiles() {
+        try {
+            if (cryptChannel != null) {
+                cryptChannel.close();
             }
-        } catch (Exception | OutOfMemoryError e) {
-            Log.e(TAG, "Create parity file failed");
-            return false;
+            if (parityChannel != null) {
+                parityChannel.close();
+            }
+            if (cryptFilePath != null) {
+                Files.deleteIfExists(Paths.get(cryptFilePath));
+            }
+            if (parityFilePath != null) {
+                Files.deleteIfExists(Paths.get(parityFilePath));
+            }
+        } catch (IOException e) {
+            // do nothing
         }
 
-        Log.i(TAG, String.format("Create parity file success", cryptFilePath));
+        if (journal != null) {
+            journal.delete();
+        }
+    }
 
-        return true;
+    // the position of the shard in its channel
+    private long shardPosition(final ShardTracker shard) {
+        return originStream != null ? 0 : shard.getMeta().getIndex() * shardSize;
     }
 
     private ShardTracker prepareFrame(final ShardTracker shard) {
         ShardMeta shardMeta = shard.getMeta();
+
+        // a shard of a stream has a channel of its own
+        if (originStream == null) {
+            if (shard.getIndex() < totalDataShards) {
+                shard.setShardChannel(cryptChannel);
+            } else {
+                shard.setShardChannel(parityChannel);
+            }
+        }
+
+        // Reset shard index when using parity shards
+        int shardIndex = shard.getIndex();
+        shardMeta.setIndex((shardIndex >= totalDataShards) ? shardIndex - totalDataShards : shardIndex);
+
+        // restored from the journal
+        if (shardMeta.getHash() != null) {
+            return shard;
+        }
+
         shardMeta.setChallenges(new byte[GENARO_SHARD_CHALLENGES][]);
         shardMeta.setChallengesAsStr(new String[GENARO_SHARD_CHALLENGES]);
         for (int i = 0; i < GENARO_SHARD_CHALLENGES; i++) {
@@ -419,20 +743,10 @@ public final class Uploader implements Runnable {
             firstSha256ForLeaf[i].update(shardMeta.getChallenges()[i]);
         }
 
-        if (shard.getIndex() < totalDataShards) {
-            shard.setShardChannel(cryptChannel);
-        } else {
-            shard.setShardChannel(parityChannel);
-        }
-
-        // Reset shard index when using parity shards
-        int shardIndex = shard.getIndex();
-        shardMeta.setIndex((shardIndex >= totalDataShards) ? shardIndex - totalDataShards : shardIndex);
-
         try {
             int readBytes;
             long totalRead = 0;
-            long position = shardMeta.getIndex() * shardSize;
+            long position = shardPosition(shard);
 
             ByteBuffer readBuffer = ByteBuffer.allocate(BLOCK_BYTES);
             FileChannel shardChannel = shard.getShardChannel();
@@ -495,6 +809,10 @@ public final class Uploader implements Runnable {
             }
         }
 
+        if (journal != null) {
+            journal.shardPrepared(shard.getIndex(), shardMeta);
+        }
+
         Log.i(TAG, String.format("Create frame finished for shard index %d", shard.getIndex()));
 
         return shard;
@@ -505,6 +823,15 @@ public final class Uploader implements Runnable {
             return shard;
         }
 
+        FarmerPointer fp = requestFarmerPointer(shard, farmerRegistry.buildExcludeList(excludedFarmerIds));
+        shard.setPointer(fp);
+
+        return shard;
+    }
+
+    // request a farmer to store the shard from bridge, excluding the farmers of exclude
+    private FarmerPointer requestFarmerPointer(final ShardTracker shard, final List<String> exclude) {
+
         ShardMeta shardMeta = shard.getMeta();
 
         boolean parityShard;
@@ -521,7 +848,7 @@ public final class Uploader implements Runnable {
         try {
             challengesJsonStr = om.writeValueAsString(challengesAsStr);
             treeJsonStr = om.writeValueAsString(tree);
-            excludeStr = om.writeValueAsString(excludedFarmerIds);
+            excludeStr = om.writeValueAsString(exclude);
         } catch (JsonProcessingException e) {
             throw new GenaroRuntimeException(genaroStrError(GENARO_ALGORITHM_ERROR));
         }
@@ -568,8 +895,7 @@ public final class Uploader implements Runnable {
                         throw new GenaroRuntimeException(genaroStrError(GENARO_BRIDGE_OFFER_ERROR));
                     }
 
-                    FarmerPointer fp = om.readValue(responseBody, FarmerPointer.class);
-                    shard.setPointer(fp);
+                    return om.readValue(responseBody, FarmerPointer.class);
                 } catch (IOException e) {
                     if (isCanceled) {
                         // if it's canceled, do not try again
@@ -586,13 +912,11 @@ public final class Uploader implements Runnable {
                     throw e;
                 }
                 // fail
-                continue;
             }
-            // success
-            break;
         }
 
-        return shard;
+        // would not get here
+        throw new GenaroRuntimeException(genaroStrError(GENARO_BRIDGE_OFFER_ERROR));
     }
 
     private ShardTracker pushShard(final ShardTracker shard) {
@@ -604,49 +928,15 @@ public final class Uploader implements Runnable {
         shard.setHasTriedToPush(true);
         shard.setPushCount(shard.getPushCount() + 1);
 
-        ShardMeta shardMeta = shard.getMeta();
-
-        Farmer farmer = shard.getPointer().getFarmer();
-        String farmerAddress = farmer.getAddress();
-        String farmerPort = farmer.getPort();
-        String metaHash = shard.getMeta().getHash();
-        long metaSize = shard.getMeta().getSize();
-        FileChannel shardChannel = shard.getShardChannel();
-
-        long filePosition = shardMeta.getIndex() * shardSize;
-        String token = shard.getPointer().getToken();
-
-        UploadRequestBody uploadRequestBody = new UploadRequestBody(shardChannel, filePosition, metaSize,
-                "application/octet-stream; charset=utf-8", new UploadRequestBody.ProgressListener() {
-            @Override
-            public void transferred(long delta) {
-                shard.setUploadedSize(shard.getUploadedSize() + delta);
-                uploadedBytes.addAndGet(delta);
-                deltaUploaded.addAndGet(delta);
-
-                if (deltaUploaded.floatValue() / totalBytes >= 0.001f) {  // call onProgress every 0.1%
-                    storeFileCallback.onProgress(uploadedBytes.floatValue() / totalBytes);
-                    deltaUploaded.set(0);
-                } else if (uploadedBytes.get() == totalBytes) {
-                    storeFileCallback.onProgress(1.0f);
-                    deltaUploaded.set(0);
-                } else {
-                    // do nothing
-                }
-            }
-        });
-
-        String url = String.format("http://%s:%s/shards/%s?token=%s", farmerAddress, farmerPort, metaHash, token);
-        Request request = new Request.Builder()
-                .tag("pushShard")
-                .url(url)
-                .post(uploadRequestBody)
-                .build();
-
         if (isCanceled) {
             throw new GenaroRuntimeException(genaroStrError(GENARO_TRANSFER_CANCELED));
         }
 
+        // wait for a slot, before the push is timed and watched
+        if (!concurrency.acquire()) {
+            throw new GenaroRuntimeException(genaroStrError(GENARO_TRANSFER_CANCELED));
+        }
+
         shard.getReport().setCode(GENARO_REPORT_FAILURE);
         shard.getReport().setMessage(GENARO_REPORT_UPLOAD_ERROR);
 
@@ -654,9 +944,56 @@ public final class Uploader implements Runnable {
         shard.getReport().setStart(System.currentTimeMillis());
 
         Log.i(TAG, String.format("Transferring Shard index %d...", shard.getIndex()));
-        try (Response response = upHttpClient.newCall(request).execute()) {
-            int code = response.code();
-            response.close();
+
+        ShardPush push = new ShardPush(shard.getPointer());
+        activePushes.put(shard, push);
+        int code = -1;
+        IOException error = null;
+        try {
+            code = executePush(shard, push);
+        } catch (IOException e) {
+            error = e;
+        } finally {
+            if (error instanceof SocketTimeoutException) {
+                concurrency.timedOut();
+            }
+            concurrency.release();
+        }
+
+        SpeculativePush speculative;
+        synchronized (speculativePushes) {
+            activePushes.remove(shard);
+            speculative = speculativePushes.remove(shard.getIndex());
+        }
+
+        // the backup farmer is the farmer of the shard on bridge now, whether the primary push succeeded or not
+        if (speculative != null && !speculative.abandonIfNotStarted()) {
+            boolean isWon = speculative.result.join();
+            if (isPushed(shard, push, code)) {
+                // the primary push is not used, its bytes are not counted
+                progress.shardFailed(push.uploadedSize);
+            }
+            if (speculative.push != null) {
+                shard.setPointer(speculative.push.pointer);
+            }
+            if (isWon) {
+                Log.i(TAG, String.format("Push to the backup farmer of shard index %d won", shard.getIndex()));
+                push = speculative.push;
+                code = 200;
+                shard.getReport().setStart(push.start);
+            } else {
+                Log.i(TAG, String.format("Push to the backup farmer of shard index %d failed", shard.getIndex()));
+                code = -1;
+            }
+            error = null;
+        }
+
+        shard.setUploadedSize(push.uploadedSize);
+
+        try {
+            if (error != null) {
+                throw error;
+            }
 
             if (code == 200 || code == 201 || code == 304) {
                 long uploaded = shard.getUploadedSize();
@@ -669,6 +1006,11 @@ public final class Uploader implements Runnable {
                     return shard;
                 }
                 shard.setStatus(SHARD_PUSH_SUCCESS);
+                progress.shardCompleted(total);
+                if (journal != null) {
+                    journal.shardPushed(shard.getIndex());
+                }
+                cacheShard(shard);
             } else {
                 if (shard.getPushCount() >= GENARO_MAX_PUSH_SHARD) {
                     throw new GenaroRuntimeException(genaroStrError(GENARO_FARMER_REQUEST_ERROR));
@@ -693,14 +1035,11 @@ public final class Uploader implements Runnable {
             // save the ending time of downloading
             shard.getReport().setEnd(System.currentTimeMillis());
             if (shard.getStatus() != SHARD_PUSH_SUCCESS) {
-                uploadedBytes.addAndGet(-shard.getUploadedSize());
                 shard.setUploadedSize(0);
 
                 // Add pointer to exclude for future calls
                 String farmerId = shard.getPointer().getFarmer().getNodeID();
-                if (!excludedFarmerIds.contains(farmerId)) {
-                    excludedFarmerIds.add(farmerId);
-                }
+                excludedFarmerIds.add(farmerId);
 
                 Log.i(TAG, String.format("Failed to transfer shard index %d", shard.getIndex()));
             } else {
@@ -714,59 +1053,211 @@ public final class Uploader implements Runnable {
         return shard;
     }
 
-    private ShardTracker sendExchangeReport(final ShardTracker shard) {
-        if (isCanceled) {
-            throw new GenaroRuntimeException(genaroStrError(GENARO_TRANSFER_CANCELED));
+    // the pushed shard may be downloaded again soon, keep it in the shard cache of the host
+    private void cacheShard(final ShardTracker shard) {
+        ShardCache cache = bridge.getShardCache();
+        if (cache != null && shard.getShardChannel() != null) {
+            cache.put(shard.getMeta().getHash(), shard.getShardChannel(), shardPosition(shard), shard.getMeta().getSize());
         }
+    }
 
-        if (shard.getReport().getStart() > 0 && shard.getReport().getEnd() > 0) {
-            String jsonStrBody = String.format("{\"dataHash\": \"%s\", \"farmerId\": \"%s\", \"exchangeStart\": \"%d\"," +
-                            "\"exchangeEnd\": \"%d\", \"exchangeResultCode\": \"%d\", \"exchangeResultMessage\": \"%s\"}",
-                    shard.getMeta().getHash(), shard.getPointer().getFarmer().getNodeID(), shard.getReport().getStart(),
-                    shard.getReport().getEnd(), shard.getReport().getCode(), shard.getReport().getMessage());
+    private boolean isPushed(final ShardTracker shard, final ShardPush push, final int code) {
+        return (code == 200 || code == 201 || code == 304) && push.uploadedSize == shard.getMeta().getSize();
+    }
 
-            MediaType JSON = MediaType.parse("application/json; charset=utf-8");
-            RequestBody body = RequestBody.create(JSON, jsonStrBody);
-            String path = "/reports/exchanges";
+    // push the shard to the farmer of push, return the response code
+    private int executePush(final ShardTracker shard, final ShardPush push) throws IOException {
+        ShardMeta shardMeta = shard.getMeta();
 
-            String signature;
-            try {
-                signature = bridge.signRequest("POST", path, jsonStrBody);
-            } catch (NoSuchAlgorithmException e) {
-                return shard;
+        Farmer farmer = push.pointer.getFarmer();
+        String metaHash = shardMeta.getHash();
+        long metaSize = shardMeta.getSize();
+        long filePosition = shardPosition(shard);
+        String token = push.pointer.getToken();
+
+        UploadRequestBody uploadRequestBody = new UploadRequestBody(shard.getShardChannel(), filePosition, metaSize,
+                "application/octet-stream; charset=utf-8", new UploadRequestBody.ProgressListener() {
+            @Override
+            public void transferred(long delta) {
+                push.uploadedSize += delta;
+                push.lastActivity = System.currentTimeMillis();
+                progress.transferred(delta);
+                concurrency.transferred(delta);
             }
+        }, limiter);
 
-            String pubKey = bridge.getPublicKeyHexString();
-            Request request = new Request.Builder()
-                    .tag("sendExchangeReport")
-                    .url(bridge.getBridgeUrl() + path)
-                    .header("x-signature", signature)
-                    .header("x-pubkey", pubKey)
-                    .post(body)
-                    .build();
+        String url = String.format("http://%s:%s/shards/%s?token=%s", farmer.getAddress(), farmer.getPort(), metaHash, token);
+        Request request = new Request.Builder()
+                .tag("pushShard")
+                .url(url)
+                .post(uploadRequestBody)
+                .build();
 
-            for (int i = 0; i < GENARO_MAX_REPORT_TRIES; i++) {
-                try (Response response = upHttpClient.newCall(request).execute()) {
-                    int code = response.code();
-                    String responseBody = response.body().string();
-                    ObjectMapper om = new ObjectMapper();
-                    JsonNode bodyNode = om.readTree(responseBody);
+        push.start = System.currentTimeMillis();
+        push.lastActivity = push.start;
+        push.call = upHttpClient.newCall(request);
 
-                    if (code == 201) {
-                        // success
-                        break;
-                    } else {
-                        if (bodyNode.has("error")) {
-                            Log.w(TAG, bodyNode.get("error").asText());
-                        }
-                    }
-                } catch (IOException e) {
-                    if(i == GENARO_MAX_REPORT_TRIES - 1) {
-                        // failed
-                        break;
-                    }
+        int code = -1;
+        try (Response response = push.call.execute()) {
+            code = response.code();
+            return code;
+        } finally {
+            long elapsed = System.currentTimeMillis() - push.start;
+            if (isPushed(shard, push, code)) {
+                synchronized (finishedThroughputs) {
+                    finishedThroughputs.add(push.uploadedSize * 1.0 / Math.max(1, elapsed));
                 }
-            }
+                farmerRegistry.recordSuccess(farmer.getNodeID(), push.uploadedSize, elapsed, -1);
+            } else {
+                // the bytes of a failed push are not counted
+                progress.shardFailed(push.uploadedSize);
+                // a canceled push(by the user, or because the other push won) says nothing about the farmer
+                if (!isCanceled && !push.call.isCanceled()) {
+                    farmerRegistry.recordFailure(farmer.getNodeID());
+                }
+            }
+        }
+    }
+
+    private void startSpeculativePush(final ShardTracker shard, final ShardPush primary) {
+        SpeculativePush speculative = new SpeculativePush();
+        synchronized (speculativePushes) {
+            // the primary is done already, or has a backup
+            if (activePushes.get(shard) != primary || speculativePushes.containsKey(shard.getIndex())) {
+                return;
+            }
+            speculativePushes.put(shard.getIndex(), speculative);
+        }
+
+        Log.i(TAG, String.format("Shard index %d is slow, push it to a backup farmer", shard.getIndex()));
+        CompletableFuture.runAsync(() -> {
+            if (!speculative.start()) {
+                speculative.result.complete(false);
+                return;
+            }
+
+            boolean isWon = false;
+            try {
+                // the backup farmer is requested only now, with the current farmer excluded
+                List<String> exclude = farmerRegistry.buildExcludeList(excludedFarmerIds);
+                Farmer current = primary.pointer.getFarmer();
+                if (current != null && !exclude.contains(current.getNodeID())) {
+                    exclude.add(current.getNodeID());
+                }
+                speculative.push = new ShardPush(requestFarmerPointer(shard, exclude));
+                isWon = isPushed(shard, speculative.push, executePush(shard, speculative.push));
+            } catch (IOException | GenaroRuntimeException e) {
+                // the push failed
+            } finally {
+                speculative.result.complete(isWon);
+            }
+
+            if (isWon && primary.call != null) {
+                primary.call.cancel();
+            }
+        }, speculativeExecutor);
+    }
+
+    // runs on watchdog
+    private void checkSlowPushes() {
+        if (isStopping) {
+            return;
+        }
+
+        concurrency.tick();
+
+        long now = System.currentTimeMillis();
+        List<Double> finished;
+        synchronized (finishedThroughputs) {
+            finished = new ArrayList<>(finishedThroughputs);
+        }
+
+        // the throughputs(bytes per millisecond) of the active pushes
+        Map<ShardTracker, Double> throughputs = new HashMap<>();
+        activePushes.forEach((shard, push) -> throughputs.put(shard, push.uploadedSize * 1.0 / Math.max(1, now - push.start)));
+
+        activePushes.forEach((shard, push) -> {
+            long elapsed = now - push.start;
+            Double throughput = throughputs.get(shard);
+            if (push.call == null || throughput == null || elapsed < GENARO_SPECULATIVE_MIN_ELAPSED * 1000L) {
+                return;
+            }
+
+            boolean isStalled = now - push.lastActivity >= GENARO_PUSH_STALL_TIMEOUT * 1000L;
+
+            List<Double> peers = new ArrayList<>(finished);
+            throughputs.forEach((peer, peerThroughput) -> {
+                if (peer != shard) {
+                    peers.add(peerThroughput);
+                }
+            });
+            peers.sort(null);
+            boolean isSlow = peers.size() >= GENARO_SPECULATIVE_MIN_PEERS &&
+                    throughput < GENARO_SPECULATIVE_SLOW_RATIO * peers.get(peers.size() / 2);
+
+            if (isStalled || isSlow) {
+                try {
+                    startSpeculativePush(shard, push);
+                } catch (RejectedExecutionException e) {
+                    // stopping
+                }
+            }
+        });
+    }
+
+    private ShardTracker sendExchangeReport(final ShardTracker shard) {
+        if (isCanceled) {
+            throw new GenaroRuntimeException(genaroStrError(GENARO_TRANSFER_CANCELED));
+        }
+
+        if (shard.getReport().getStart() > 0 && shard.getReport().getEnd() > 0) {
+            String jsonStrBody = String.format("{\"dataHash\": \"%s\", \"farmerId\": \"%s\", \"exchangeStart\": \"%d\"," +
+                            "\"exchangeEnd\": \"%d\", \"exchangeResultCode\": \"%d\", \"exchangeResultMessage\": \"%s\"}",
+                    shard.getMeta().getHash(), shard.getPointer().getFarmer().getNodeID(), shard.getReport().getStart(),
+                    shard.getReport().getEnd(), shard.getReport().getCode(), shard.getReport().getMessage());
+
+            MediaType JSON = MediaType.parse("application/json; charset=utf-8");
+            RequestBody body = RequestBody.create(JSON, jsonStrBody);
+            String path = "/reports/exchanges";
+
+            String signature;
+            try {
+                signature = bridge.signRequest("POST", path, jsonStrBody);
+            } catch (NoSuchAlgorithmException e) {
+                return shard;
+            }
+
+            String pubKey = bridge.getPublicKeyHexString();
+            Request request = new Request.Builder()
+                    .tag("sendExchangeReport")
+                    .url(bridge.getBridgeUrl() + path)
+                    .header("x-signature", signature)
+                    .header("x-pubkey", pubKey)
+                    .post(body)
+                    .build();
+
+            for (int i = 0; i < GENARO_MAX_REPORT_TRIES; i++) {
+                try (Response response = upHttpClient.newCall(request).execute()) {
+                    int code = response.code();
+                    String responseBody = response.body().string();
+                    ObjectMapper om = new ObjectMapper();
+                    JsonNode bodyNode = om.readTree(responseBody);
+
+                    if (code == 201) {
+                        // success
+                        break;
+                    } else {
+                        if (bodyNode.has("error")) {
+                            Log.w(TAG, bodyNode.get("error").asText());
+                        }
+                    }
+                } catch (IOException e) {
+                    if(i == GENARO_MAX_REPORT_TRIES - 1) {
+                        // failed
+                        break;
+                    }
+                }
+            }
         }
 
         return shard;
@@ -854,239 +1345,190 @@ public final class Uploader implements Runnable {
         }
     }
 
-    public void start() {
-        if (originPath == null || originPath.trim().isEmpty() || !Files.exists(Paths.get(originPath))) {
-            storeFileCallback.onFail("Invalid file path");
-            return;
+    private void verifyBucket() {
+        for (int i = 0; ; i++) {
+            try {
+                bridge.getBucket(this, bucketId);
+                return;
+            } catch (Exception e) {
+                if (i == GENARO_MAX_VERIFY_BUCKET_ID - 1 || isStopping) {
+                    throw BasicUtil.bridgeFailure(e);
+                }
+                // try again
+            }
         }
+    }
 
-        // calculate shard size and count
-        originFileSize = originFile.length();
+    private void verifyFileNotExist() {
+        boolean exist;
+        for (int i = 0; ; i++) {
+            try {
+                exist = bridge.isFileExist(this, bucketId, encryptedFileName);
+                break;
+            } catch (Exception e) {
+                if (i == GENARO_MAX_VERIFY_FILE_NAME - 1 || isStopping) {
+                    throw BasicUtil.bridgeFailure(e);
+                }
+                // try again
+            }
+        }
 
-        shardSize = determineShardSize(originFileSize, 0);
-        if (shardSize <= 0) {
-            storeFileCallback.onFail(genaroStrError(GENARO_FILE_SIZE_ERROR));
-            return;
+        if (exist) {
+            throw new GenaroRuntimeException(genaroStrError(GENARO_BRIDGE_BUCKET_FILE_EXISTS));
         }
+    }
 
-        // todo: when shard size >= 2GB(shardSize >= (1L << 31), means that the file size > 16GB) and you need to use Reed-Solomon, it is not supported for java version of libgenaro for now
-        // todo: when shard size >= 32MB(means that the file size > 256MB) and you need to use Reed-Solomon, may cause an OutOfMemoryError if use Reed-Solomon for java version of libgenaro for now
-        if (shardSize >= (1L << 25) && rs) {
-            rs = false;
-            Log.w(TAG, genaroStrError(GENARO_RS_FILE_SIZE_ERROR));
+    // the encrypted file and the parity file, reused from the journal if possible
+    private void prepareEncryptedFiles() {
+        boolean isReused = reuseEncryptedFiles();
+
+        if (!isReused && !createEncryptedFile()) {
+            throw new GenaroRuntimeException(genaroStrError(GENARO_FILE_ENCRYPTION_ERROR));
         }
 
-        // when file size <= MIN_SHARD_SIZE, there is only one shard, Reed-Solomon is unnecessary
-        if (originFileSize <= MIN_SHARD_SIZE) {
-            rs = false;
+        if (!isReused && rs && !createParityFile()) {
+            throw new GenaroRuntimeException(genaroStrError(GENARO_FILE_PARITY_ERROR));
         }
 
-        totalDataShards = (int)Math.ceil(originFileSize * 1.0 / shardSize);
-        totalParityShards = rs ? (int)Math.ceil(totalDataShards * 2.0 / 3.0) : 0;
-        totalShards = totalDataShards + totalParityShards;
-        totalBytes = originFileSize + totalParityShards * shardSize;
+        if (!isReused && journal != null) {
+            journal.setSha256OfEncrypted(base16.toString(sha256OfEncrypted).toLowerCase());
+            journal.save();
+        }
+    }
 
-        try {
-            sha256OfEncryptedMd = MessageDigest.getInstance("SHA-256");
-        } catch (NoSuchAlgorithmException e) {
-            storeFileCallback.onFail(genaroStrError(GENARO_ALGORITHM_ERROR));
-            return;
+    // request a new frame, null if the frame of the journal is used
+    private Frame requestFrame() {
+        if (journal != null && journal.getFrameId() != null) {
+            return null;
         }
 
-        storeFileCallback.onBegin(originFileSize);
+        Frame frame = bridge.takePooledFrame();
+        if (frame != null) {
+            Log.i(TAG, "Use frame of the pool: " + frame.getId());
+            return frame;
+        }
 
-        for (int i = 0; i < GENARO_MAX_VERIFY_BUCKET_ID; i++) {
-            // verify bucket id
+        for (int i = 0; ; i++) {
+            Log.i(TAG, "Request frame id");
             try {
-                bridge.getBucket(this, bucketId);
+                return bridge.requestNewFrame(this);
             } catch (Exception e) {
-                if(i == GENARO_MAX_VERIFY_BUCKET_ID - 1) {
-                    stop();
-                    if (e instanceof CancellationException) {
-                        storeFileCallback.onCancel();
-                    } else if (e instanceof TimeoutException) {
-                        storeFileCallback.onFail(genaroStrError(GENARO_BRIDGE_TIMEOUT_ERROR));
-                    } else if (e instanceof ExecutionException && e.getCause() instanceof GenaroRuntimeException) {
-                        storeFileCallback.onFail(e.getCause().getMessage());
-                    } else {
-                        storeFileCallback.onFail(genaroStrError(GENARO_BRIDGE_REQUEST_ERROR));
-                    }
-                    return;
+                if (i == GENARO_MAX_REQUEST_NEW_FRAME - 1 || isStopping) {
+                    throw BasicUtil.bridgeFailure(e);
                 }
                 // try again
-                continue;
             }
-            // success
-            break;
-        }
-
-        // check if cancel() is called
-        if(isCanceled) {
-            storeFileCallback.onCancel();
-            return;
         }
+    }
 
-        // verify file name
+    // encrypt the file name locally, the journal and the existence check need it, return false if failed(the callback is called)
+    private boolean encryptFileName() {
         try {
             encryptedFileName = CryptoUtil.encryptMetaHmacSha512(BasicUtil.string2Bytes(fileName), bridge.getPrivateKey(), Hex.decode(bucketId));
+            return true;
         } catch (Exception e) {
             stop();
             storeFileCallback.onFail("Encrypt file name error");
-            return;
-        }
-
-        boolean exist = false;
-        for (int i = 0; i < GENARO_MAX_VERIFY_FILE_NAME; i++) {
-            try {
-                exist = bridge.isFileExist(this, bucketId, encryptedFileName);
-            } catch (Exception e) {
-                if(i == GENARO_MAX_VERIFY_BUCKET_ID - 1) {
-                    stop();
-                    if (e instanceof CancellationException) {
-                        storeFileCallback.onCancel();
-                    } else if (e instanceof TimeoutException) {
-                        storeFileCallback.onFail(genaroStrError(GENARO_BRIDGE_TIMEOUT_ERROR));
-                    } else if (e instanceof ExecutionException && e.getCause() instanceof GenaroRuntimeException) {
-                        storeFileCallback.onFail(e.getCause().getMessage());
-                    } else {
-                        storeFileCallback.onFail(genaroStrError(GENARO_BRIDGE_REQUEST_ERROR));
-                    }
-                    return;
-                }
-                // try again
-                continue;
-            }
-            // success
-            break;
-        }
-
-        // check if cancel() is called
-        if (isCanceled) {
-            storeFileCallback.onCancel();
-            return;
-        }
-
-        if (exist) {
-            stop();
-            storeFileCallback.onFail(genaroStrError(GENARO_BRIDGE_BUCKET_FILE_EXISTS));
-            return;
+            return false;
         }
+    }
 
-        if(!createEncryptedFile()) {
-            stop();
-            storeFileCallback.onFail(genaroStrError(GENARO_FILE_ENCRYPTION_ERROR));
-            return;
+    // preflight: the bucket check, the existence check(both done once by the batch of the upload if there is), the
+    // frame request and the preparation of the data run at the same time, the first failure fails the upload, return
+    // false if failed(the callback is called)
+    private boolean preflight(final Runnable preparation) {
+        futurePrepare = CompletableFuture.runAsync(preparation, uploaderExecutor);
+        CompletableFuture<Frame> futureFrame = CompletableFuture.supplyAsync(this::requestFrame, uploaderExecutor);
+        List<CompletableFuture<?>> preflightList = new ArrayList<>();
+        if (!isPreflightChecked) {
+            preflightList.add(CompletableFuture.runAsync(this::verifyBucket, uploaderExecutor));
+            preflightList.add(CompletableFuture.runAsync(this::verifyFileNotExist, uploaderExecutor));
         }
-
-        if (tmpFile != null) {
-            tmpFile.delete();
+        preflightList.add(futurePrepare);
+        preflightList.add(futureFrame);
+        CompletableFuture<?>[] preflights = preflightList.toArray(new CompletableFuture<?>[0]);
+
+        CompletableFuture<Void> futurePreflight = new CompletableFuture<>();
+        for (CompletableFuture<?> preflight : preflights) {
+            preflight.whenComplete((v, e) -> {
+                if (e != null) {
+                    futurePreflight.completeExceptionally(BasicUtil.unwrap(e));
+                }
+            });
         }
+        CompletableFuture.allOf(preflights).thenRun(() -> futurePreflight.complete(null));
 
-        if (rs && !createParityFile()) {
+        try {
+            futurePreflight.get();
+        } catch (Exception e) {
+            // the preparation stops soon, its files are cleaned up after it stops(see run)
             stop();
-            storeFileCallback.onFail(genaroStrError(GENARO_FILE_PARITY_ERROR));
-            return;
-        }
-
-        // request frame id
-        Log.i(TAG, "Request frame id");
-        Frame frame = null;
 
-        for (int i = 0; i < GENARO_MAX_REQUEST_NEW_FRAME; i++) {
-            try {
-                frame = bridge.requestNewFrame(this);
-            } catch (Exception e) {
-                if(i == GENARO_MAX_REQUEST_NEW_FRAME - 1) {
-                    stop();
-                    if (e instanceof CancellationException) {
-                        storeFileCallback.onCancel();
-                    } else if (e instanceof TimeoutException) {
-                        storeFileCallback.onFail(genaroStrError(GENARO_BRIDGE_TIMEOUT_ERROR));
-                    } else if (e instanceof ExecutionException && e.getCause() instanceof GenaroRuntimeException) {
-                        storeFileCallback.onFail(e.getCause().getMessage());
-                    } else {
-                        storeFileCallback.onFail(genaroStrError(GENARO_BRIDGE_REQUEST_ERROR));
-                    }
-                    return;
-                }
-                // try again
-                continue;
+            Throwable cause = BasicUtil.unwrap(e);
+            if (cause instanceof CancellationException) {
+                storeFileCallback.onCancel();
+            } else if (cause instanceof GenaroRuntimeException) {
+                storeFileCallback.onFail(cause.getMessage());
+            } else {
+                storeFileCallback.onFail(genaroStrError(GENARO_UNKNOWN_ERROR));
             }
-            // success
-            break;
+            return false;
         }
 
         // check if cancel() is called
         if(isCanceled) {
             storeFileCallback.onCancel();
-            return;
+            return false;
         }
 
-        frameId = frame.getId();
+        // the frame of the journal is used if there is
+        Frame frame = futureFrame.join();
+        frameId = journal == null ? null : journal.getFrameId();
+        if (frame != null) {
+            frameId = frame.getId();
+            if (journal != null) {
+                journal.setFrameId(frameId);
+                journal.save();
+            }
+        }
 
         Log.i(TAG, String.format("Request frame id success, frame id: %s", frameId));
+        return true;
+    }
 
-        List<ShardTracker> shards = new ArrayList<>(totalShards);
-        for (int i = 0; i < totalShards; i++) {
-            ShardTracker shard = new ShardTracker();
-            shard.setIndex(i);
-            shard.setPointer(new FarmerPointer());
-            shard.setMeta(new ShardMeta(i));
-            shard.getMeta().setParity(i + 1 > totalDataShards);
-            shard.setReport(new GenaroExchangeReport());
-            shards.add(shard);
-        }
-
-        storeFileCallback.onProgress(0.0f);
+    private static ShardTracker newShard(final int index, final boolean isParity) {
+        ShardTracker shard = new ShardTracker();
+        shard.setIndex(index);
+        shard.setPointer(new FarmerPointer());
+        shard.setMeta(new ShardMeta(index));
+        shard.getMeta().setParity(isParity);
+        shard.setReport(new GenaroExchangeReport());
+        return shard;
+    }
 
-        // TODO: seems terrible for so many duplicate codes
-        CompletableFuture<Void>[] upFutures = shards
-                .parallelStream()
-                .map(shard -> CompletableFuture.supplyAsync(() -> prepareFrame(shard), uploaderExecutor))
-                // 1st pushFrame
-                .map(future -> future.thenApplyAsync(this::pushFrame, uploaderExecutor))
-                .map(future -> future.thenApplyAsync(this::pushShard, uploaderExecutor))
-                .map(future -> future.thenApplyAsync(this::sendExchangeReport, uploaderExecutor))
-                // 2nd pushFrame
-                .map(future -> future.thenApplyAsync(this::pushFrame, uploaderExecutor))
-                .map(future -> future.thenApplyAsync(this::pushShard, uploaderExecutor))
-                .map(future -> future.thenApplyAsync(shard -> {
-                    if (shard.getHasTriedToPush()) {
-                        sendExchangeReport(shard);
-                    }
-                    return shard;
-                }, uploaderExecutor))
-                // 3rd pushFrame
-                .map(future -> future.thenApplyAsync(this::pushFrame, uploaderExecutor))
-                .map(future -> future.thenApplyAsync(this::pushShard, uploaderExecutor))
-                .map(future -> future.thenApplyAsync(shard -> {
-                    if (shard.getHasTriedToPush()) {
-                        sendExchangeReport(shard);
-                    }
-                    return shard;
-                }, uploaderExecutor))
-                // 4th pushFrame
-                .map(future -> future.thenApplyAsync(this::pushFrame, uploaderExecutor))
-                .map(future -> future.thenApplyAsync(this::pushShard, uploaderExecutor))
-                .map(future -> future.thenApplyAsync(shard -> {
-                    if (shard.getHasTriedToPush()) {
-                        sendExchangeReport(shard);
-                    }
-                    return shard;
-                }, uploaderExecutor))
-                // 5th pushFrame
-                .map(future -> future.thenApplyAsync(this::pushFrame, uploaderExecutor))
-                .map(future -> future.thenApplyAsync(this::pushShard, uploaderExecutor))
-                .map(future -> future.thenApplyAsync(shard -> {
-                    if (shard.getHasTriedToPush()) {
-                        sendExchangeReport(shard);
-                    }
-                    return shard;
-                }, uploaderExecutor))
-                .toArray(CompletableFuture[]::new);
+    // prepare and push the shard, a failed push is retried with another farmer GENARO_MAX_PUSH_SHARD - 1 times
+    private CompletableFuture<ShardTracker> uploadShard(final ShardTracker shard) {
+        CompletableFuture<ShardTracker> future = CompletableFuture.supplyAsync(() -> prepareFrame(shard), uploaderExecutor)
+                .thenApplyAsync(this::pushFrame, uploaderExecutor)
+                .thenApplyAsync(this::pushShard, uploaderExecutor)
+                .thenApplyAsync(this::sendExchangeReport, uploaderExecutor);
+
+        for (int i = 1; i < GENARO_MAX_PUSH_SHARD; i++) {
+            future = future.thenApplyAsync(this::pushFrame, uploaderExecutor)
+                    .thenApplyAsync(this::pushShard, uploaderExecutor)
+                    .thenApplyAsync(s -> {
+                        if (s.getHasTriedToPush()) {
+                            sendExchangeReport(s);
+                        }
+                        return s;
+                    }, uploaderExecutor);
+        }
 
-        futureAllFromPrepareFrame = CompletableFuture.allOf(upFutures);
+        return future;
+    }
 
+    // wait for futureAllFromPrepareFrame, return false if failed(the callback is called)
+    private boolean awaitShards() {
         try {
             futureAllFromPrepareFrame.get();
         } catch (Exception e) {
@@ -1094,23 +1536,25 @@ public final class Uploader implements Runnable {
             if(e instanceof CancellationException) {
                 if (isCanceled) {
                     storeFileCallback.onCancel();
-                    return;
+                    return false;
                 } else {
                     // do nothing
                 }
             } else if(e instanceof ExecutionException && e.getCause() instanceof GenaroRuntimeException) {
                 storeFileCallback.onFail(e.getCause().getMessage());
-                return;
+                return false;
             } else {
                 Log.w(TAG, "Warn: Would not get here");
                 e.printStackTrace();
                 storeFileCallback.onFail(genaroStrError(GENARO_UNKNOWN_ERROR));
-                return;
+                return false;
             }
         } finally {
             try {
-                cryptChannel.close();
-                if (rs) {
+                if (cryptChannel != null) {
+                    cryptChannel.close();
+                }
+                if (parityChannel != null) {
                     parityChannel.close();
                 }
             } catch (IOException e) {
@@ -1121,11 +1565,16 @@ public final class Uploader implements Runnable {
         // check if cancel() is called
         if (isCanceled) {
             storeFileCallback.onCancel();
-            return;
+            return false;
         }
 
-        if (uploadedBytes.get() != totalBytes) {
-            Log.e(TAG, "uploadedBytes: " + uploadedBytes + ", totalBytes: " + totalBytes);
+        return true;
+    }
+
+    // create the bucket entry of the pushed shards
+    private void finishUpload(final List<ShardTracker> shards) {
+        if (progress.getTransferredBytes() != totalBytes) {
+            Log.e(TAG, "uploadedBytes: " + progress.getTransferredBytes() + ", totalBytes: " + totalBytes);
             stop();
             storeFileCallback.onFail(genaroStrError(GENARO_FARMER_INTEGRITY_ERROR));
             return;
@@ -1133,6 +1582,11 @@ public final class Uploader implements Runnable {
 
         try {
             createBucketEntry(shards);
+            isUploaded = true;
+            if (journal != null) {
+                journal.setFileId(fileId);
+                journal.save();
+            }
         } catch (Exception e) {
             stop();
             if (isCanceled) {
@@ -1149,10 +1603,288 @@ public final class Uploader implements Runnable {
             return;
         }
 
-        // it's not necessary, because 1.0f is already passed to onProgress
-        // storeFileCallback.onProgress(1.0f);
+        // the progress polled may not reach 1.0f before onFinish
+        storeFileCallback.onProgress(1.0f);
 
-        storeFileCallback.onFinish(fileId, sha256OfEncryptedMd.digest());
+        storeFileCallback.onFinish(fileId, sha256OfEncrypted);
+    }
+
+    public void start() {
+        // canceled before admitted
+        if (isCanceled) {
+            storeFileCallback.onCancel();
+            return;
+        }
+
+        if (originStream != null) {
+            startStream();
+            return;
+        }
+
+        if (originData == null && (originPath == null || originPath.trim().isEmpty() || !Files.exists(Paths.get(originPath)))) {
+            storeFileCallback.onFail("Invalid file path");
+            return;
+        }
+
+        // calculate shard size and count
+        originFileSize = originData != null ? originData.remaining() : originFile.length();
+
+        shardSize = determineShardSize(originFileSize, 0);
+        if (shardSize <= 0) {
+            storeFileCallback.onFail(genaroStrError(GENARO_FILE_SIZE_ERROR));
+            return;
+        }
+
+        // when file size <= MIN_SHARD_SIZE, there is only one shard, Reed-Solomon is unnecessary
+        if (originFileSize <= MIN_SHARD_SIZE) {
+            rs = false;
+        }
+
+        totalDataShards = (int)Math.ceil(originFileSize * 1.0 / shardSize);
+        totalParityShards = rs ? (int)Math.ceil(totalDataShards * 2.0 / 3.0) : 0;
+        totalShards = totalDataShards + totalParityShards;
+        totalBytes = originFileSize + totalParityShards * shardSize;
+        if (ticket != null) {
+            ticket.setSize(originFileSize, originPath != null ? totalBytes : 0);
+        }
+
+        try {
+            sha256OfEncryptedMd = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            storeFileCallback.onFail(genaroStrError(GENARO_ALGORITHM_ERROR));
+            return;
+        }
+
+        storeFileCallback.onBegin(originFileSize);
+
+        if (!encryptFileName()) {
+            return;
+        }
+
+        openJournal();
+
+        // the bucket entry was created before the last attempt stopped
+        if (journal != null && journal.getFileId() != null && journal.getSha256OfEncrypted() != null) {
+            Log.i(TAG, "The upload was finished, according to its journal");
+            isUploaded = true;
+            // the encrypted files left by the last attempt are deleted with the journal
+            cryptFilePath = createTmpName(encryptedFileName, ".crypt");
+            parityFilePath = rs ? createTmpName(encryptedFileName, ".parity") : null;
+            storeFileCallback.onProgress(1.0f);
+            storeFileCallback.onFinish(journal.getFileId(), base16.fromString(journal.getSha256OfEncrypted()));
+            return;
+        }
+
+        // the data is encrypted during the preflight
+        if (!preflight(this::prepareEncryptedFiles)) {
+            return;
+        }
+
+        List<ShardTracker> shards = new ArrayList<>(totalShards);
+        for (int i = 0; i < totalShards; i++) {
+            ShardTracker shard = newShard(i, i + 1 > totalDataShards);
+            shards.add(shard);
+
+            // the shards prepared before are not hashed again, the pushed ones are not pushed again
+            if (journal != null && journal.restore(shard.getMeta(), i) && journal.getShard(i).isPushed()) {
+                shard.setStatus(SHARD_PUSH_SUCCESS);
+                shard.setUploadedSize(shard.getMeta().getSize());
+            }
+        }
+
+        storeFileCallback.onProgress(0.0f);
+        progress.setTarget(totalBytes, totalShards);
+        for (ShardTracker shard : shards) {
+            if (shard.getStatus() == SHARD_PUSH_SUCCESS) {
+                progress.transferred(shard.getUploadedSize());
+                progress.shardCompleted(shard.getUploadedSize());
+            }
+        }
+        dispatcher.setProgressSource(progress::fraction);
+
+        watchdog.scheduleAtFixedRate(this::checkSlowPushes, 1, 1, TimeUnit.SECONDS);
+
+        CompletableFuture<?>[] upFutures = new CompletableFuture<?>[totalShards];
+        for (int i = 0; i < totalShards; i++) {
+            upFutures[i] = uploadShard(shards.get(i));
+        }
+        futureAllFromPrepareFrame = CompletableFuture.allOf(upFutures);
+
+        if (!awaitShards()) {
+            return;
+        }
+
+        finishUpload(shards);
+    }
+
+    // pick the shard size of the stream, from the size hint, or from the first bytes if the stream is not larger than
+    // a shard of STREAM_MAX_SHARD_SIZE
+    private void probeStream() {
+        if (sizeHint > 0) {
+            shardSize = Math.min(determineShardSize(sizeHint, 0), STREAM_MAX_SHARD_SIZE);
+            return;
+        }
+
+        streamHead = new MemoryChannel();
+        try {
+            streamHead.transferFrom(originStream, 0, STREAM_MAX_SHARD_SIZE);
+        } catch (IOException e) {
+            throw new GenaroRuntimeException(genaroStrError(isCanceled ? GENARO_TRANSFER_CANCELED : GENARO_FILE_READ_ERROR));
+        }
+
+        long headSize = streamHead.size();
+        shardSize = headSize < STREAM_MAX_SHARD_SIZE ? determineShardSize(headSize, 0) : STREAM_MAX_SHARD_SIZE;
+        if (shardSize <= 0) {
+            throw new GenaroRuntimeException(genaroStrError(GENARO_FILE_SIZE_ERROR));
+        }
+    }
+
+    // fill buffer from the head read by probeStream first, then from the stream
+    private void readStream(final ByteBuffer buffer) throws IOException {
+        if (streamHead != null) {
+            streamHead.read(buffer);
+            // the head is not kept once read
+            if (streamHead.position() == streamHead.size()) {
+                streamHead = null;
+            }
+        }
+
+        while (buffer.hasRemaining() && originStream.read(buffer) != -1) {
+            // read the rest
+        }
+    }
+
+    // encrypt, shard and push the stream on the fly, GENARO_STREAM_BUFFERED_SHARDS shards are kept in memory at most
+    private void startStream() {
+        rs = false;
+
+        javax.crypto.Cipher cipher;
+        try {
+            sha256OfEncryptedMd = MessageDigest.getInstance("SHA-256");
+            cipher = javax.crypto.Cipher.getInstance("AES/CTR/NoPadding");
+            cipher.init(ENCRYPT_MODE, new SecretKeySpec(ei.getKey(), "AES"), new IvParameterSpec(ei.getCtr()));
+        } catch (Exception e) {
+            storeFileCallback.onFail(genaroStrError(GENARO_ALGORITHM_ERROR));
+            return;
+        }
+        index = ei.getIndex();
+        fileKey = ei.getKey();
+
+        storeFileCallback.onBegin(sizeHint);
+
+        if (!encryptFileName()) {
+            return;
+        }
+
+        // the shard size is picked during the preflight
+        if (!preflight(this::probeStream)) {
+            return;
+        }
+
+        storeFileCallback.onProgress(0.0f);
+        // the target is exact once the stream ends
+        progress.setTarget(sizeHint > 0 ? sizeHint : -1, Integer.MAX_VALUE);
+        dispatcher.setProgressSource(progress::fraction);
+
+        watchdog.scheduleAtFixedRate(this::checkSlowPushes, 1, 1, TimeUnit.SECONDS);
+
+        // fails as soon as a shard fails, completes after the stream ends and all the shards are pushed
+        CompletableFuture<Void> futureStream = new CompletableFuture<>();
+        futureAllFromPrepareFrame = futureStream;
+
+        Semaphore buffered = new Semaphore(GENARO_STREAM_BUFFERED_SHARDS);
+        MemoryBudget memoryBudget = MemoryBudget.global();
+        List<ShardTracker> shards = new ArrayList<>();
+        List<CompletableFuture<ShardTracker>> upFutures = new ArrayList<>();
+        try {
+            while (!futureStream.isDone()) {
+                // wait until a buffered shard is pushed
+                if (!buffered.tryAcquire(100, TimeUnit.MILLISECONDS)) {
+                    continue;
+                }
+
+                // fewer shards are buffered while the memory budget is exhausted
+                if (!memoryBudget.reserve(shardSize, 100)) {
+                    buffered.release();
+                    continue;
+                }
+
+                ByteBuffer plain = ByteBuffer.allocate((int) shardSize);
+                try {
+                    readStream(plain);
+                } catch (IOException e) {
+                    memoryBudget.release(shardSize);
+                    throw e;
+                }
+                if (plain.position() == 0) {
+                    buffered.release();
+                    memoryBudget.release(shardSize);
+                    break;
+                }
+
+                byte[] encrypted = cipher.update(plain.array(), 0, plain.position());
+                sha256OfEncryptedMd.update(encrypted);
+                originFileSize += encrypted.length;
+
+                ShardTracker shard = newShard(shards.size(), false);
+                shard.setShardChannel(new MemoryChannel(encrypted));
+                shards.add(shard);
+
+                CompletableFuture<ShardTracker> upFuture = uploadShard(shard);
+                upFuture.whenComplete((v, e) -> {
+                    // the pushed shard is not kept
+                    shard.setShardChannel(null);
+                    buffered.release();
+                    memoryBudget.release(shardSize);
+                    if (e != null) {
+                        futureStream.completeExceptionally(BasicUtil.unwrap(e));
+                    }
+                });
+                upFutures.add(upFuture);
+
+                // the end of the stream
+                if (plain.hasRemaining()) {
+                    break;
+                }
+            }
+        } catch (IOException e) {
+            stop();
+            storeFileCallback.onFail(genaroStrError(isCanceled ? GENARO_TRANSFER_CANCELED : GENARO_FILE_READ_ERROR));
+            return;
+        } catch (InterruptedException | RejectedExecutionException e) {
+            // stopping
+            if (e instanceof InterruptedException) {
+                Thread.currentThread().interrupt();
+            }
+            stop();
+        }
+
+        if (shards.isEmpty() && !futureStream.isDone()) {
+            stop();
+            storeFileCallback.onFail(genaroStrError(GENARO_FILE_SIZE_ERROR));
+            return;
+        }
+
+        // the totals are known now
+        totalDataShards = shards.size();
+        totalShards = totalDataShards;
+        totalBytes = originFileSize;
+        sha256OfEncrypted = sha256OfEncryptedMd.digest();
+        progress.setTarget(totalBytes, totalShards);
+
+        CompletableFuture.allOf(upFutures.toArray(new CompletableFuture<?>[0])).whenComplete((v, e) -> {
+            if (e != null) {
+                futureStream.completeExceptionally(BasicUtil.unwrap(e));
+            } else {
+                futureStream.complete(null);
+            }
+        });
+
+        if (!awaitShards()) {
+            return;
+        }
+
+        finishUpload(shards);
     }
 
     private void stop() {
@@ -1197,24 +1929,49 @@ public final class Uploader implements Runnable {
             futureAllFromPrepareFrame.cancel(true);
         }
 
+        // the pushes waiting for a slot give up
+        concurrency.shutdown();
         uploaderExecutor.shutdown();
+        speculativeExecutor.shutdown();
+        watchdog.shutdownNow();
     }
 
     // Non-blocking
     public void cancel() {
         isCanceled = true;
         stop();
+        // started at once if queued
+        if (ticket != null) {
+            ticket.cancel();
+        }
     }
 
     // wait for finish
     public void join() {
         if (futureBelongsTo != null) {
             futureBelongsTo.join();
+            // wait for the callbacks to be delivered
+            dispatcher.awaitTermination();
         }
     }
 
     @Override
     public void run() {
-        start();
+        try {
+            start();
+        } finally {
+            watchdog.shutdownNow();
+            // the journal and the encrypted files are kept for resumeUpload if failed
+            if (isUploaded || isCanceled || journal == null) {
+                if (futurePrepare == null) {
+                    discardTempFiles();
+                } else {
+                    // not before the preparation stops writing them
+                    futurePrepare.whenComplete((v, e) -> discardTempFiles());
+                }
+            }
+            dispatcher.shutdown();
+            farmerRegistry.save();
+        }
     }
 }
@@ -35,6 +35,13 @@ public final class VerifyCryptoUtil {
 //        Assert.assertEquals(tt, "12343213ef");
 //    }
 
+    public void verfiyIncrementCtrAesIv() {
+        byte[] iv = Hex.decode("000000000000000000000000ffffffff");
+        Assert.assertEquals(Hex.toHexString(CryptoUtil.incrementCtrAesIv(iv, 0)), "000000000000000000000000ffffffff");
+        Assert.assertEquals(Hex.toHexString(CryptoUtil.incrementCtrAesIv(iv, 32)), "00000000000000000000000100000001");
+        Assert.assertEquals(Hex.toHexString(CryptoUtil.incrementCtrAesIv(Hex.decode("ffffffffffffffffffffffffffffffff"), 16)), "00000000000000000000000000000000");
+    }
+
     public void verfiyDeterministicKey() throws Exception {
         byte[] ss = CryptoUtil.generateDeterministicKey(Hex.decode("1625348fba"), Hex.decode("385960ffa4"));
         Assert.assertEquals(Hex.toHexString(ss), "296195601e0557bef8963a418c53489f4216e8fe033768b5ca2a9bfb02188296");
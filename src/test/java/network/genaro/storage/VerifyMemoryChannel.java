@@ -0,0 +1,88 @@
+package network.genaro.storage;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Random;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+@Test()
+public final class VerifyMemoryChannel {
+    private static byte[] random(final int size) {
+        byte[] data = new byte[size];
+        new Random(size).nextBytes(data);
+        return data;
+    }
+
+    public void testPositionalWriteFillsGap() throws IOException {
+        MemoryChannel channel = new MemoryChannel();
+        channel.write(ByteBuffer.wrap(new byte[] {1, 2, 3}), 5);
+        Assert.assertEquals(channel.size(), 8);
+        Assert.assertEquals(channel.position(), 0);
+        Assert.assertEquals(channel.toByteArray(), new byte[] {0, 0, 0, 0, 0, 1, 2, 3});
+
+        ByteBuffer buffer = ByteBuffer.allocate(4);
+        Assert.assertEquals(channel.read(buffer, 6), 2);
+        Assert.assertEquals(channel.read(buffer, 8), -1);
+    }
+
+    public void testRelativeReadWrite() throws IOException {
+        MemoryChannel channel = new MemoryChannel();
+        channel.write(ByteBuffer.wrap(new byte[] {1, 2, 3, 4}));
+        Assert.assertEquals(channel.position(), 4);
+
+        channel.position(1);
+        ByteBuffer buffer = ByteBuffer.allocate(2);
+        Assert.assertEquals(channel.read(buffer), 2);
+        Assert.assertEquals(buffer.array(), new byte[] {2, 3});
+        Assert.assertEquals(channel.position(), 3);
+    }
+
+    public void testTruncateDropsStaleBytes() throws IOException {
+        MemoryChannel channel = new MemoryChannel(new byte[] {1, 2, 3, 4});
+        channel.truncate(1);
+        channel.write(ByteBuffer.wrap(new byte[] {9}), 3);
+        Assert.assertEquals(channel.toByteArray(), new byte[] {1, 0, 0, 9});
+    }
+
+    public void testTransferFrom() throws IOException {
+        byte[] data = random(3 * CryptoUtil.BLOCK_BYTES + 5);
+        MemoryChannel channel = new MemoryChannel();
+        long transferred = channel.transferFrom(Channels.newChannel(new ByteArrayInputStream(data)), 0, data.length);
+        Assert.assertEquals(transferred, data.length);
+        Assert.assertEquals(channel.toByteArray(), data);
+    }
+
+    // shards decrypted out of order into memory are the same as the plain data, and so is the digest
+    public void testAssembleIntoMemory() throws Exception {
+        int shardSize = 64 * 1024;
+        byte[] plain = random(3 * shardSize - 100);
+        byte[] key = random(32);
+        byte[] iv = random(16);
+
+        Cipher cipher = Cipher.getInstance("AES/CTR/NoPadding");
+        cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(key, "AES"), new IvParameterSpec(iv));
+        MemoryChannel source = new MemoryChannel(cipher.doFinal(plain));
+        MemoryChannel target = new MemoryChannel();
+
+        ShardAssembler assembler = new ShardAssembler(source, target, new SecretKeySpec(key, "AES"), iv);
+        assembler.setSize(plain.length);
+        for (int index : new int[] {2, 0, 1}) {
+            long position = (long) index * shardSize;
+            assembler.assemble(index, position, Math.min(shardSize, plain.length - position));
+        }
+        assembler.abort();
+
+        Assert.assertEquals(assembler.digest(3), MessageDigest.getInstance("SHA-256").digest(plain));
+        Assert.assertTrue(Arrays.equals(target.toByteArray(), plain));
+    }
+}
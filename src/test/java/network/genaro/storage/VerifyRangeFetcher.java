@@ -0,0 +1,126 @@
+package network.genaro.storage;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.testng.Assert;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import okhttp3.OkHttpClient;
+
+/*
+* a local stand-in farmer serves the shard, "/range" supports "Range", "/whole" ignores it and "/corrupt" serves
+* a shard with a flipped byte
+*/
+@Test()
+public final class VerifyRangeFetcher {
+    private static final int SHARD_SIZE = 1024 * 1024 + 17;
+    // the shard is written after a header of the channel
+    private static final long POSITION = 1000;
+
+    private final byte[] shard = new byte[SHARD_SIZE];
+    private String shardHash;
+    private HttpServer server;
+    private String baseUrl;
+    private final AtomicInteger rangeRequests = new AtomicInteger();
+    private final OkHttpClient client = new OkHttpClient();
+
+    @BeforeClass
+    public void startFarmer() throws Exception {
+        new Random(1).nextBytes(shard);
+        shardHash = CryptoUtil.ripemd160Sha256HexString(shard);
+
+        byte[] corrupt = Arrays.copyOf(shard, shard.length);
+        corrupt[SHARD_SIZE / 2] ^= 1;
+
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/range", exchange -> serve(exchange, shard, true));
+        server.createContext("/whole", exchange -> serve(exchange, shard, false));
+        server.createContext("/corrupt", exchange -> serve(exchange, corrupt, true));
+        server.start();
+        baseUrl = "http://127.0.0.1:" + server.getAddress().getPort();
+    }
+
+    @AfterClass
+    public void stopFarmer() {
+        server.stop(0);
+    }
+
+    private void serve(final HttpExchange exchange, final byte[] data, final boolean isRangeSupported) throws IOException {
+        String range = exchange.getRequestHeaders().getFirst("Range");
+        int start = 0;
+        int end = data.length - 1;
+        if (isRangeSupported && range != null) {
+            rangeRequests.incrementAndGet();
+            String[] bounds = range.substring("bytes=".length()).split("-");
+            start = Integer.parseInt(bounds[0]);
+            end = Integer.parseInt(bounds[1]);
+            exchange.getResponseHeaders().add("Content-Range", String.format("bytes %d-%d/%d", start, end, data.length));
+            exchange.sendResponseHeaders(206, end - start + 1);
+        } else {
+            exchange.sendResponseHeaders(200, data.length);
+        }
+
+        try (OutputStream os = exchange.getResponseBody()) {
+            os.write(data, start, end - start + 1);
+        }
+    }
+
+    private byte[] fetch(final String path, final String hash, final int connections, final AtomicLong transferred) throws Exception {
+        Path temp = Files.createTempFile("genaro-test-range", ".data");
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.DELETE_ON_CLOSE)) {
+            RangeFetcher fetcher = new RangeFetcher(client, baseUrl + path, "requestShard", channel, POSITION, SHARD_SIZE, hash,
+                    connections, transferred::addAndGet);
+            fetcher.fetch().get();
+
+            ByteBuffer buffer = ByteBuffer.allocate(SHARD_SIZE);
+            while (buffer.hasRemaining()) {
+                channel.read(buffer, POSITION + buffer.position());
+            }
+            return buffer.array();
+        }
+    }
+
+    public void verifyRanges() throws Exception {
+        rangeRequests.set(0);
+        AtomicLong transferred = new AtomicLong();
+        byte[] fetched = fetch("/range", shardHash, 4, transferred);
+
+        Assert.assertEquals(fetched, shard);
+        Assert.assertEquals(rangeRequests.get(), 4);
+        Assert.assertEquals(transferred.get(), SHARD_SIZE);
+    }
+
+    public void verifyRangeNotSupported() throws Exception {
+        AtomicLong transferred = new AtomicLong();
+        byte[] fetched = fetch("/whole", shardHash, 4, transferred);
+
+        Assert.assertEquals(fetched, shard);
+        Assert.assertEquals(transferred.get(), SHARD_SIZE);
+    }
+
+    public void verifyIntegrity() throws Exception {
+        try {
+            fetch("/corrupt", shardHash, 3, new AtomicLong());
+            Assert.fail("Corrupt shard is accepted.");
+        } catch (ExecutionException e) {
+            Assert.assertEquals(e.getCause().getMessage(), Genaro.genaroStrError(Parameters.GENARO_FARMER_INTEGRITY_ERROR));
+        }
+    }
+}
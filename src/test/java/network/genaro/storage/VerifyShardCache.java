@@ -0,0 +1,83 @@
+package network.genaro.storage;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Comparator;
+import java.util.Random;
+import java.util.stream.Stream;
+
+import org.spongycastle.util.encoders.Hex;
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+@Test()
+public final class VerifyShardCache {
+    private Path dir;
+
+    @BeforeMethod
+    public void createDir() throws IOException {
+        dir = Files.createTempDirectory("shardcache");
+    }
+
+    @AfterMethod
+    public void deleteDir() throws IOException {
+        try (Stream<Path> files = Files.walk(dir)) {
+            files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    private static byte[] random(final int size, final int seed) {
+        byte[] data = new byte[size];
+        new Random(seed).nextBytes(data);
+        return data;
+    }
+
+    private static String hash(final byte[] data) throws Exception {
+        return Hex.toHexString(CryptoUtil.ripemd160(CryptoUtil.sha256(data)));
+    }
+
+    public void testPutAndGet() throws Exception {
+        ShardCache cache = new ShardCache(dir, 1024 * 1024);
+        byte[] shard = random(10000, 1);
+        cache.put(hash(shard), new MemoryChannel(shard), 0, shard.length);
+
+        MemoryChannel target = new MemoryChannel();
+        Assert.assertTrue(cache.get(hash(shard), shard.length, target, 100));
+        Assert.assertEquals(target.size(), 100 + shard.length);
+        Assert.assertFalse(cache.get(hash(random(10, 2)), 10, new MemoryChannel(), 0));
+    }
+
+    public void testDamagedShardIsDropped() throws Exception {
+        ShardCache cache = new ShardCache(dir, 1024 * 1024);
+        byte[] shard = random(10000, 1);
+        String hash = hash(shard);
+        cache.put(hash, new MemoryChannel(shard), 0, shard.length);
+
+        shard[0] ^= 1;
+        Files.write(dir.resolve(hash), shard);
+        Assert.assertFalse(cache.get(hash, shard.length, new MemoryChannel(), 0));
+        Assert.assertFalse(Files.exists(dir.resolve(hash)));
+    }
+
+    // the least recently used shards are evicted when the cache is full
+    public void testEviction() throws Exception {
+        ShardCache cache = new ShardCache(dir, 25000);
+        byte[][] shards = {random(10000, 1), random(10000, 2), random(10000, 3)};
+        cache.put(hash(shards[0]), new MemoryChannel(shards[0]), 0, 10000);
+        cache.put(hash(shards[1]), new MemoryChannel(shards[1]), 0, 10000);
+        Files.setLastModifiedTime(dir.resolve(hash(shards[0])), FileTime.fromMillis(System.currentTimeMillis() - 20000));
+        Files.setLastModifiedTime(dir.resolve(hash(shards[1])), FileTime.fromMillis(System.currentTimeMillis() - 30000));
+
+        // the first one is used again
+        Assert.assertTrue(cache.get(hash(shards[0]), 10000, new MemoryChannel(), 0));
+        cache.put(hash(shards[2]), new MemoryChannel(shards[2]), 0, 10000);
+
+        Assert.assertTrue(Files.exists(dir.resolve(hash(shards[0]))));
+        Assert.assertFalse(Files.exists(dir.resolve(hash(shards[1]))));
+        Assert.assertTrue(Files.exists(dir.resolve(hash(shards[2]))));
+    }
+}
@@ -0,0 +1,56 @@
+package network.genaro.storage;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.channels.Channels;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+@Test()
+public final class VerifyShardStreamer {
+    // shards offered out of order are delivered in file order, each as soon as the gap before it is filled
+    public void testDeliverInOrder() throws Exception {
+        int shardSize = 64 * 1024;
+        byte[] plain = new byte[4 * shardSize - 100];
+        new Random(1).nextBytes(plain);
+        byte[] key = new byte[32];
+        byte[] iv = new byte[16];
+        new Random(2).nextBytes(key);
+        new Random(3).nextBytes(iv);
+
+        Cipher cipher = Cipher.getInstance("AES/CTR/NoPadding");
+        cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(key, "AES"), new IvParameterSpec(iv));
+        byte[] encrypted = cipher.doFinal(plain);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        List<Integer> delivered = new ArrayList<>();
+        ShardStreamer streamer = new ShardStreamer(Channels.newChannel(out), new SecretKeySpec(key, "AES"), iv, delivered::add);
+
+        for (int index : new int[] {2, 1, 3, 0}) {
+            long position = (long) index * shardSize;
+            int size = (int) Math.min(shardSize, plain.length - position);
+            // every shard is kept in a channel of its own
+            MemoryChannel channel = new MemoryChannel(Arrays.copyOfRange(encrypted, (int) position, (int) position + size));
+            streamer.offer(index, channel, 0, position, size);
+
+            if (index != 0) {
+                Assert.assertEquals(out.size(), 0);
+                Assert.assertNull(streamer.digest(4));
+            }
+        }
+
+        Assert.assertEquals(delivered, Arrays.asList(0, 1, 2, 3));
+        Assert.assertEquals(streamer.getNextIndex(), 4);
+        Assert.assertTrue(Arrays.equals(out.toByteArray(), plain));
+        Assert.assertEquals(streamer.digest(4), MessageDigest.getInstance("SHA-256").digest(plain));
+    }
+}
@@ -0,0 +1,83 @@
+package network.genaro.storage;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.backblaze.erasure.OutputInputByteTableCodingLoop;
+import com.backblaze.erasure.ReedSolomon;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+@Test()
+public final class VerifyStripedReedSolomon {
+    private static final int DATA_SHARDS = 4;
+    private static final int PARITY_SHARDS = 2;
+    private static final int SHARD_SIZE = 10000;
+    private static final int MIN_STRIPE = 1000;
+
+    // the parity coded in stripes within a small budget is the same as coded at once, and recovers the lost data shards
+    public void testEncodeAndDecodeInStripes() throws Exception {
+        byte[] data = new byte[DATA_SHARDS * SHARD_SIZE - 1234];
+        new Random(1).nextBytes(data);
+
+        // room for 3 stripes of the minimum and a half, the last stripe is shorter
+        MemoryBudget budget = new MemoryBudget((DATA_SHARDS + PARITY_SHARDS) * MIN_STRIPE * 7 / 2);
+        StripedReedSolomon coder = new StripedReedSolomon(DATA_SHARDS, PARITY_SHARDS, SHARD_SIZE, budget, MIN_STRIPE);
+
+        MemoryChannel parity = new MemoryChannel();
+        coder.encode(new MemoryChannel(data), data.length, parity);
+        Assert.assertEquals(budget.getReserved(), 0);
+        Assert.assertTrue(budget.getPeak() <= budget.getLimit());
+
+        byte[][] shards = new byte[DATA_SHARDS + PARITY_SHARDS][SHARD_SIZE];
+        for (int i = 0; i < DATA_SHARDS; i++) {
+            int from = i * SHARD_SIZE;
+            System.arraycopy(data, from, shards[i], 0, Math.min(SHARD_SIZE, data.length - from));
+        }
+        new ReedSolomon(DATA_SHARDS, PARITY_SHARDS, new OutputInputByteTableCodingLoop()).encodeParity(shards, 0, SHARD_SIZE);
+        byte[] expectedParity = new byte[PARITY_SHARDS * SHARD_SIZE];
+        for (int i = 0; i < PARITY_SHARDS; i++) {
+            System.arraycopy(shards[DATA_SHARDS + i], 0, expectedParity, i * SHARD_SIZE, SHARD_SIZE);
+        }
+        Assert.assertTrue(Arrays.equals(parity.toByteArray(), expectedParity));
+
+        // lose the first and the last data shards
+        long[] sizes = new long[DATA_SHARDS + PARITY_SHARDS];
+        boolean[] present = new boolean[DATA_SHARDS + PARITY_SHARDS];
+        MemoryChannel all = new MemoryChannel();
+        for (int i = 0; i < DATA_SHARDS + PARITY_SHARDS; i++) {
+            sizes[i] = i < DATA_SHARDS ? Math.min(SHARD_SIZE, data.length - i * SHARD_SIZE) : SHARD_SIZE;
+            present[i] = i != 0 && i != DATA_SHARDS - 1;
+            byte[] shard = present[i] ? Arrays.copyOf(shards[i], (int) sizes[i]) : new byte[(int) sizes[i]];
+            all.write(ByteBuffer.wrap(shard), (long) i * SHARD_SIZE);
+        }
+
+        coder.decodeMissing(all, sizes, present);
+        Assert.assertEquals(budget.getReserved(), 0);
+        Assert.assertTrue(Arrays.equals(Arrays.copyOf(all.toByteArray(), data.length), data));
+    }
+
+    // the coding stops at the stripe after it is asked to, and gives back its memory
+    public void testEncodeStops() throws Exception {
+        byte[] data = new byte[DATA_SHARDS * SHARD_SIZE];
+        MemoryBudget budget = new MemoryBudget((DATA_SHARDS + PARITY_SHARDS) * MIN_STRIPE);
+        StripedReedSolomon coder = new StripedReedSolomon(DATA_SHARDS, PARITY_SHARDS, SHARD_SIZE, budget, MIN_STRIPE);
+
+        AtomicInteger stripes = new AtomicInteger();
+        MemoryChannel parity = new MemoryChannel();
+        try {
+            coder.encode(new MemoryChannel(data), data.length, parity, () -> stripes.incrementAndGet() > 2);
+            Assert.fail("The coding is not stopped");
+        } catch (CancellationException e) {
+            // expected
+        }
+
+        Assert.assertEquals(stripes.get(), 3);
+        Assert.assertEquals(parity.size(), (PARITY_SHARDS - 1) * SHARD_SIZE + 2 * MIN_STRIPE);
+        Assert.assertEquals(budget.getReserved(), 0);
+    }
+}
@@ -0,0 +1,72 @@
+package network.genaro.storage;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+@Test()
+public final class VerifyTransferManager {
+    // one at a time: the higher priority first, then the smaller, then the earlier
+    public void testAdmissionOrder() {
+        TransferManager manager = new TransferManager();
+        manager.setLimits(1, 0, 0);
+        manager.pause();
+
+        List<String> started = Collections.synchronizedList(new ArrayList<>());
+        List<CompletableFuture<Void>> futures = new ArrayList<>();
+        futures.add(manager.submit(() -> started.add("large"), 1000, 0).getFuture());
+        futures.add(manager.submit(() -> started.add("unknown"), -1, 0).getFuture());
+        futures.add(manager.submit(() -> started.add("small"), 10, 0).getFuture());
+        TransferManager.Ticket urgent = manager.submit(() -> started.add("urgent"), 5000, 0);
+        urgent.setPriority(1);
+        futures.add(urgent.getFuture());
+        Assert.assertEquals(manager.getQueued(), 4);
+
+        manager.resume();
+        CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0])).join();
+        Assert.assertEquals(started, Arrays.asList("urgent", "small", "large", "unknown"));
+        Assert.assertEquals(manager.getRunning(), 0);
+    }
+
+    // a transfer over the byte limit waits, the smaller ones which fit go ahead
+    public void testByteLimit() throws Exception {
+        TransferManager manager = new TransferManager();
+        manager.setLimits(0, 100, 0);
+
+        CompletableFuture<Void> release = new CompletableFuture<>();
+        TransferManager.Ticket first = manager.submit(release::join, 60, 0);
+        CompletableFuture<Void> large = manager.submit(() -> { }, 50, 0).getFuture();
+        CompletableFuture<Void> small = manager.submit(() -> { }, 30, 0).getFuture();
+
+        small.join();
+        Assert.assertFalse(large.isDone());
+        Assert.assertEquals(manager.getQueued(), 1);
+
+        release.complete(null);
+        first.getFuture().join();
+        large.join();
+    }
+
+    // a queued transfer of unknown size is ordered by its estimated size once known, a reported size is kept
+    public void testEstimatedSize() {
+        TransferManager manager = new TransferManager();
+        manager.setLimits(1, 0, 0);
+        manager.pause();
+
+        List<String> started = Collections.synchronizedList(new ArrayList<>());
+        TransferManager.Ticket large = manager.submit(() -> started.add("large"), 1000, 0);
+        TransferManager.Ticket unknown = manager.submit(() -> started.add("estimated"), -1, 0);
+        unknown.estimateSize(10, 0);
+        large.estimateSize(1, 0);
+        Assert.assertTrue(unknown.isQueued());
+
+        manager.resume();
+        CompletableFuture.allOf(large.getFuture(), unknown.getFuture()).join();
+        Assert.assertEquals(started, Arrays.asList("estimated", "large"));
+    }
+}
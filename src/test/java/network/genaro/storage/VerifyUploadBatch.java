@@ -0,0 +1,104 @@
+package network.genaro.storage;
+
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import com.sun.net.httpserver.HttpServer;
+
+import network.genaro.storage.GenaroCallback.StoreFilesCallback;
+import static network.genaro.storage.Parameters.*;
+import static network.genaro.storage.Genaro.genaroStrError;
+
+/*
+* a local stand-in bridge lists one file named "taken" in the bucket, and fails the frame requests, so the files
+* started fail after their preflight
+*/
+@Test()
+public final class VerifyUploadBatch {
+    private static final String BUCKET_ID = "0123456789abcdef01234567";
+
+    // a name used in the bucket or by an earlier file of the batch fails without being started, every file is counted
+    public void testDuplicateNames() throws Exception {
+        HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        List<String> frameRequests = Collections.synchronizedList(new ArrayList<>());
+        server.createContext("/", exchange -> {
+            byte[] body = new byte[0];
+            int code = 500;
+            if (exchange.getRequestURI().getPath().equals("/buckets/" + BUCKET_ID + "/files")) {
+                body = "[{\"id\": \"1\", \"filename\": \"taken\"}]".getBytes(StandardCharsets.UTF_8);
+                code = 200;
+            } else if (exchange.getRequestURI().getPath().startsWith("/frames")) {
+                frameRequests.add(exchange.getRequestURI().getPath());
+            }
+            exchange.sendResponseHeaders(code, body.length == 0 ? -1 : body.length);
+            exchange.getResponseBody().write(body);
+            exchange.close();
+        });
+        server.start();
+
+        List<Path> files = new ArrayList<>();
+        try {
+            List<String> paths = new ArrayList<>();
+            for (int i = 0; i < 4; i++) {
+                Path file = Files.createTempFile("genaro-batch", ".txt");
+                Files.write(file, ("file " + i).getBytes(StandardCharsets.UTF_8));
+                files.add(file);
+                paths.add(file.toString());
+            }
+
+            Genaro genaro = new Genaro("http://127.0.0.1:" + server.getAddress().getPort(), "test");
+            Map<Integer, String> errors = new ConcurrentHashMap<>();
+            int[] counts = new int[] {-1, -1};
+            UploadBatch batch = genaro.storeFiles(false, paths, Arrays.asList("taken", "a", "a", "b"), BUCKET_ID,
+                    new StoreFilesCallback() {
+                        @Override
+                        public void onFileFinish(final int index, final String fileId, final byte[] sha256OfEncrypted) {
+                            Assert.fail("No file can be finished");
+                        }
+
+                        @Override
+                        public void onFileFail(final int index, final String error) {
+                            errors.put(index, error);
+                        }
+
+                        @Override
+                        public void onFinish(final int finished, final int failed) {
+                            counts[0] = finished;
+                            counts[1] = failed;
+                        }
+
+                        @Override
+                        public void onFail(final String error) {
+                            Assert.fail("The bucket is listed");
+                        }
+                    });
+            batch.join();
+
+            Assert.assertEquals(counts, new int[] {0, 4});
+            Assert.assertEquals(errors.size(), 4);
+            String exists = genaroStrError(GENARO_BRIDGE_BUCKET_FILE_EXISTS);
+            Assert.assertEquals(errors.get(0), exists);
+            Assert.assertEquals(errors.get(2), exists);
+            Assert.assertNotEquals(errors.get(1), exists);
+            Assert.assertNotEquals(errors.get(3), exists);
+            // only "a" and "b" are started
+            Assert.assertTrue(frameRequests.size() >= 2);
+        } finally {
+            server.stop(0);
+            for (Path file : files) {
+                Files.deleteIfExists(file);
+            }
+        }
+    }
+}